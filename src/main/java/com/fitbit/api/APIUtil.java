@@ -28,7 +28,37 @@ public class APIUtil {
 
 	protected static final int TYPICAL_URL_LENGTH = 70;
 	protected static final String[] DATE_FORMATS = new String[] { "yyyy-MM-dd", "yyyy-MM" };
-	protected static final int STREAM_BUFFER_SIZE = 1024;
+	private static final DateTimeFormatter[] DATE_FORMATTERS = new DateTimeFormatter[DATE_FORMATS.length];
+	protected static final int STREAM_BUFFER_SIZE = 8192;
+	/* Fitbit sends JSON, which is UTF-8 unless stated otherwise */
+	protected static final String STREAM_CHARSET = "UTF-8";
+
+	/*
+	 * URLs of the API endpoints, parsed once. Entity caches key entries by the URLs built here, so cache keys and
+	 * request URLs come from the same templates. Every part is optional in the null safe methods.
+	 */
+	private static final UrlTemplate COLLECTION_URL =
+		UrlTemplate.parse("[{baseUrl}][/{version}][/{ownerType}/{ownerId}][/{collection}][/date/{date}][.{format}]");
+	private static final UrlTemplate COLLECTION_PROPERTY_URL =
+		UrlTemplate.parse("[{baseUrl}][/{version}][/{ownerType}/{ownerId}][/{collection}][/{property}][.{format}]");
+	private static final UrlTemplate SUBSCRIPTION_URL =
+		UrlTemplate.parse("[{baseUrl}][/{version}][/{ownerType}/{ownerId}][/{collection}][/date/{date}]/apiSubscriptions[/{subscriptionId}][.{format}]");
+	private static final UrlTemplate RELATIVE_COLLECTION_URL =
+		UrlTemplate.parse("[/{ownerType}/{ownerId}][/{collection}][/date/{date}]");
+	private static final UrlTemplate RELATIVE_SUBSCRIPTION_URL =
+		UrlTemplate.parse("[/{ownerType}/{ownerId}][/{collection}][/date/{date}]/apiSubscriptions[/{subscriptionId}]");
+	private static final UrlTemplate CONTEXTUALIZED_URL =
+		UrlTemplate.parse("[{baseUrl}][/{version}][{relativeUrl}][.{format}]");
+	private static final UrlTemplate TIME_SERIES_URL =
+		UrlTemplate.parse("{baseUrl}/{version}/{ownerType}/{ownerId}{resourcePath}/date/{startDate}/{endDateOrPeriod}.{format}");
+	private static final UrlTemplate INTRADAY_TIME_SERIES_URL =
+		UrlTemplate.parse("{baseUrl}/{version}/{ownerType}/{ownerId}{resourcePath}/date/{startDate}/{endDateOrPeriod}/time/{startTime}/{endTime}.{format}");
+
+	static {
+		for (int i = 0; i < DATE_FORMATS.length; i++) {
+			DATE_FORMATTERS[i] = DateTimeFormat.forPattern(DATE_FORMATS[i]);
+		}
+	}
 
 
     public static String constructFullUrl(String baseUrl, APIVersion version, FitbitResourceOwner owner, APICollectionType collectionType, LocalDate date, APIFormat format) {
@@ -70,10 +100,11 @@ public class APIUtil {
     	
     	LocalDate result = null;
     	
-    	for (String format : DATE_FORMATS) {
+    	for (int i = 0; i < DATE_FORMATS.length; i++) {
+    		String format = DATE_FORMATS[i];
     		if (date.length()==format.length()) {
     			try {
-	    			long time = DateTimeFormat.forPattern(format).parseMillis(date);
+	    			long time = DATE_FORMATTERS[i].parseMillis(date);
 	    			result = new LocalDate(time);
 	    			break;
     			} catch (Exception e) {
@@ -96,7 +127,7 @@ public class APIUtil {
     public static String inputStreamToString(InputStream is) throws IOException {
     	StringBuilder sb = new StringBuilder();
     	
-    	Reader reader = new InputStreamReader(is);
+    	Reader reader = new InputStreamReader(is, STREAM_CHARSET);
     	
     	char[] buffer = new char[STREAM_BUFFER_SIZE];
     	int count;
@@ -117,119 +148,58 @@ public class APIUtil {
     /* ********************************************************************* */
 
     protected static String nullSafeConstructUrl(String baseUrl, APIVersion version, FitbitResourceOwner owner, APICollectionType collectionType, LocalDate date, String subscriptionId, APIFormat format) {
-    	return 
-    		nullSafeContextualizeUrl(
-    			baseUrl,
-    			version,
-    			nullSafeConstructRelativeUrl(
-    				owner,
-    				collectionType,
-    				date,
-    				subscriptionId
-    			),
-    			format
-    		);
+    	if (null==subscriptionId) {
+    		return COLLECTION_URL.expand(baseUrl, version, getOwnerType(owner), getOwnerId(owner), getUrlPath(collectionType), date, format);
+    	}
+    	return SUBSCRIPTION_URL.expand(baseUrl, version, getOwnerType(owner), getOwnerId(owner), getSubscriptionPath(collectionType), date, getSubscriptionId(subscriptionId), format);
     }
 
     protected static String nullSafeConstructUrl(String baseUrl, APIVersion version, FitbitResourceOwner owner, APICollectionType collectionType, ApiCollectionProperty collectionProperty, APIFormat format) {
-    	return
-    		nullSafeContextualizeUrl(
-    			baseUrl,
-    			version,
-    			nullSafeConstructRelativeUrl(
-    				owner,
-    				collectionType,
-    				collectionProperty
-    			),
-    			format
-    		);
-    }
-
-    private static String nullSafeConstructRelativeUrl(FitbitResourceOwner owner, APICollectionType collectionType, ApiCollectionProperty collectionProperty) {
-        StringBuilder sb = new StringBuilder(TYPICAL_URL_LENGTH);
-
-        if (null!=owner) {
-            sb.append("/" + owner.getResourceOwnerType().name() + "/" + owner.getId());
-        }
-        if (null!=collectionType) {
-            sb.append("/" + collectionType.getUrlPath());
-        }
-        if (null!=collectionProperty) {
-            sb.append("/" + collectionProperty);
-        }
-
-        return sb.toString();
+    	return COLLECTION_PROPERTY_URL.expand(baseUrl, version, getOwnerType(owner), getOwnerId(owner), getUrlPath(collectionType), collectionProperty, format);
     }
 
-
     protected static String nullSafeConstructRelativeUrl(FitbitResourceOwner owner, APICollectionType collectionType, LocalDate date, String subscriptionId) {
-    	StringBuilder sb = new StringBuilder(TYPICAL_URL_LENGTH);
-
-    	if (null!=owner) {
-    		sb.append("/" + owner.getResourceOwnerType().name() + "/" + owner.getId());
-    	}
-        if (null!=collectionType) {
-            if( null!= subscriptionId ) {
-                sb.append("/"+collectionType.getSubscriptionPath());
-            } else {
-                sb.append("/" + collectionType.getUrlPath());
-            }
-        }
-    	if (null!=date) {
-            DateTimeFormatter formatter = DateTimeFormat.forPattern("yyyy-MM-dd");
-            sb.append("/date/" + formatter.print(date));
+    	if (null==subscriptionId) {
+    		return RELATIVE_COLLECTION_URL.expand(getOwnerType(owner), getOwnerId(owner), getUrlPath(collectionType), date);
     	}
-    	if (null!=subscriptionId) {
-    		sb.append("/apiSubscriptions");
-    		if (! subscriptionId.equals(UNSPECIFIED_SUBSCRIPTION_ID)) {
-    			sb.append("/" + subscriptionId);
-    		}
-    	}
-    	
-    	return sb.toString();
+    	return RELATIVE_SUBSCRIPTION_URL.expand(getOwnerType(owner), getOwnerId(owner), getSubscriptionPath(collectionType), date, getSubscriptionId(subscriptionId));
     }
 
-    
-    protected static String nullSafeContextualizeUrl(String baseUrl, APIVersion version, String relativeUrl, APIFormat format) {    
-    	StringBuilder sb = new StringBuilder(TYPICAL_URL_LENGTH);
-
-    	if (null!=baseUrl) {
-    		sb.append(baseUrl);
-    	}
-    	if (null!=version) {
-    		sb.append("/" + version.getVersion());
-    	}
-    	if (null!=relativeUrl) {
-    		sb.append(relativeUrl);
-    	}
-    	if (null!=format) {
-    		sb.append("." + format.toString().toLowerCase());
-    	}
-    	
-    	return sb.toString();
+    protected static String nullSafeContextualizeUrl(String baseUrl, APIVersion version, String relativeUrl, APIFormat format) {
+    	return CONTEXTUALIZED_URL.expand(baseUrl, version, relativeUrl, format);
     }
 
     public static String constructTimeSeriesUrl(String baseUrl, APIVersion version, FitbitResourceOwner owner, TimeSeriesResourceType resourceType,
                                                 String startDate, String endDateOrPeriod, APIFormat format) {
-        return baseUrl + '/' + version.getVersion()
-                + '/' + owner.getResourceOwnerType().name() + '/' + owner.getId()
-                + resourceType.getResourcePath()
-                + "/date/" + startDate
-                + '/' + endDateOrPeriod
-                + '.' + format.toString().toLowerCase();
+        return TIME_SERIES_URL.expand(baseUrl, version, owner.getResourceOwnerType().name(), owner.getId(),
+                resourceType.getResourcePath(), startDate, endDateOrPeriod, format);
     }
 
     public static String constructTimeSeriesUrl(String baseUrl, APIVersion version, FitbitResourceOwner owner, TimeSeriesResourceType resourceType,
                                                 String startDate, String endDateOrPeriod,
                                                 String startTime, String endTime, APIFormat format) {
-        return baseUrl + '/' + version.getVersion()
-                + '/' + owner.getResourceOwnerType().name() + '/' + owner.getId()
-                + resourceType.getResourcePath()
-                + "/date/" + startDate
-                + '/' + endDateOrPeriod
-                + "/time/" + startTime
-                + '/' + endTime
-                + '.' + format.toString().toLowerCase();
+        return INTRADAY_TIME_SERIES_URL.expand(baseUrl, version, owner.getResourceOwnerType().name(), owner.getId(),
+                resourceType.getResourcePath(), startDate, endDateOrPeriod, startTime, endTime, format);
+    }
+
+    private static String getOwnerType(FitbitResourceOwner owner) {
+    	return null==owner ? null : owner.getResourceOwnerType().name();
+    }
+
+    private static String getOwnerId(FitbitResourceOwner owner) {
+    	return null==owner ? null : owner.getId();
+    }
+
+    private static String getUrlPath(APICollectionType collectionType) {
+    	return null==collectionType ? null : collectionType.getUrlPath();
+    }
+
+    private static String getSubscriptionPath(APICollectionType collectionType) {
+    	return null==collectionType ? null : collectionType.getSubscriptionPath();
+    }
+
+    private static String getSubscriptionId(String subscriptionId) {
+    	return UNSPECIFIED_SUBSCRIPTION_ID.equals(subscriptionId) ? null : subscriptionId;
     }
 
     public static String capitalize(String s) {
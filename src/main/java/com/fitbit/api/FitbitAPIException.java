@@ -34,6 +34,7 @@ public class FitbitAPIException extends Exception {
     private int statusCode = -1;
     private static final long serialVersionUID = -2623309261327598087L;
     private List<FitbitApiError> apiErrors;
+    private int retryAfterSecs = -1;
 
     public FitbitAPIException(String msg) {
         super(msg);
@@ -63,12 +64,32 @@ public class FitbitAPIException extends Exception {
         this(cause + '\n' + res.asString(), res.getStatusCode());
         statusCode = res.getStatusCode();
         apiErrors = FitbitApiError.constructFitbitApiErrorList(res);
+        retryAfterSecs = parseRetryAfter(res.getResponseHeader("Retry-After"));
+    }
+
+    private static int parseRetryAfter(String value) {
+        if (null == value) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            // HTTP-date form is not used by the Fitbit API
+            return -1;
+        }
     }
 
     public int getStatusCode() {
         return statusCode;
     }
 
+    /**
+     * @return seconds the server asked to wait before retrying (Retry-After header), -1 if not given
+     */
+    public int getRetryAfterSecs() {
+        return retryAfterSecs;
+    }
+
     public List<FitbitApiError> getApiErrors() {
         return apiErrors;
     }
@@ -0,0 +1,218 @@
+package com.fitbit.api;
+
+import com.fitbit.api.common.service.FitbitApiService;
+import com.fitbit.api.model.APIFormat;
+import com.fitbit.api.model.APIVersion;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * URL pattern parsed once and filled in per request. Patterns consist of literal text, variables written as
+ * <code>{name}</code> and optional groups written as <code>[...]</code>, which are left out when one of their
+ * variables is null, e.g. <code>{baseUrl}/{version}[/date/{date}].{format}</code>.
+ * <p/>
+ * Values are passed in the order their variables first appear in the pattern. Dates are printed as yyyy-MM-dd,
+ * versions and formats as they appear in API URLs and anything else by its string form. URLs are written into a buffer
+ * kept per thread, so filling in a template allocates little more than the resulting string.
+ */
+public class UrlTemplate {
+
+    private static final int MAX_BUFFER_LENGTH = 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(APIUtil.TYPICAL_URL_LENGTH * 2);
+        }
+    };
+
+    private final String pattern;
+    private final String[] variables;
+    private final Segment[] segments;
+
+    private UrlTemplate(String pattern, String[] variables, Segment[] segments) {
+        this.pattern = pattern;
+        this.variables = variables;
+        this.segments = segments;
+    }
+
+    /**
+     * @throws IllegalArgumentException if braces or brackets are unbalanced, or groups are nested
+     */
+    public static UrlTemplate parse(String pattern) {
+        List<String> variables = new ArrayList<String>();
+        List<Segment> segments = new ArrayList<Segment>();
+        List<Object> parts = new ArrayList<Object>();
+        boolean inGroup = false;
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '{') {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed variable at " + i + " in " + pattern);
+                }
+                String name = pattern.substring(i + 1, end);
+                int index = variables.indexOf(name);
+                if (index < 0) {
+                    index = variables.size();
+                    variables.add(name);
+                }
+                addLiteral(parts, literal);
+                parts.add(index);
+                i = end + 1;
+            } else if (c == '[' || c == ']') {
+                if (inGroup == (c == '[')) {
+                    throw new IllegalArgumentException("Unbalanced group at " + i + " in " + pattern);
+                }
+                addLiteral(parts, literal);
+                addSegment(segments, parts, inGroup);
+                inGroup = !inGroup;
+                i++;
+            } else if (c == '}') {
+                throw new IllegalArgumentException("Unopened variable at " + i + " in " + pattern);
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (inGroup) {
+            throw new IllegalArgumentException("Unclosed group in " + pattern);
+        }
+        addLiteral(parts, literal);
+        addSegment(segments, parts, false);
+        return new UrlTemplate(pattern, variables.toArray(new String[variables.size()]), segments.toArray(new Segment[segments.size()]));
+    }
+
+    private static void addLiteral(List<Object> parts, StringBuilder literal) {
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+
+    private static void addSegment(List<Segment> segments, List<Object> parts, boolean optional) {
+        if (!parts.isEmpty()) {
+            segments.add(new Segment(parts.toArray(), optional));
+            parts.clear();
+        }
+    }
+
+    /**
+     * @return names of the variables, in the order their values are expected
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * @param values one value per variable
+     * @return filled in URL
+     * @throws IllegalArgumentException if the number of values does not match, or a variable outside of an optional
+     * group is null
+     */
+    public String expand(Object... values) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        appendTo(sb, values);
+        String result = sb.toString();
+        if (sb.capacity() > MAX_BUFFER_LENGTH) {
+            // do not keep the buffer of an unusually long URL for the life of the thread
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Appends the filled in URL to the given builder.
+     *
+     * @see #expand(Object...)
+     */
+    public void appendTo(StringBuilder sb, Object... values) {
+        if (values.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " values for " + pattern + ", got " + values.length);
+        }
+        for (Segment segment : segments) {
+            if (segment.optional && segment.hasNull(values)) {
+                continue;
+            }
+            for (Object part : segment.parts) {
+                if (part instanceof String) {
+                    sb.append((String) part);
+                } else {
+                    int index = (Integer) part;
+                    if (null == values[index]) {
+                        throw new IllegalArgumentException("Missing value of " + variables[index] + " for " + pattern);
+                    }
+                    appendValue(sb, values[index]);
+                }
+            }
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Object value) {
+        if (value instanceof String) {
+            sb.append((String) value);
+        } else if (value instanceof LocalDate) {
+            appendDate(sb, (LocalDate) value);
+        } else if (value instanceof APIFormat) {
+            sb.append(((APIFormat) value).getLabel());
+        } else if (value instanceof APIVersion) {
+            sb.append(((APIVersion) value).getVersion());
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Prints the date as yyyy-MM-dd without going through the formatter, which is most of the cost of a URL.
+     */
+    private static void appendDate(StringBuilder sb, LocalDate date) {
+        int year = date.getYear();
+        if (year < 1000 || year > 9999) {
+            try {
+                FitbitApiService.LOCAL_DATE_FORMATTER.printTo(sb, date);
+            } catch (IOException e) {
+                // StringBuilder does not throw
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
+        sb.append(year).append('-');
+        appendTwoDigits(sb, date.getMonthOfYear());
+        sb.append('-');
+        appendTwoDigits(sb, date.getDayOfMonth());
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static class Segment {
+        final Object[] parts;
+        final boolean optional;
+
+        Segment(Object[] parts, boolean optional) {
+            this.parts = parts;
+            this.optional = optional;
+        }
+
+        boolean hasNull(Object[] values) {
+            for (Object part : parts) {
+                if (part instanceof Integer && null == values[(Integer) part]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
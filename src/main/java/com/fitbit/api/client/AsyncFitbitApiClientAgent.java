@@ -0,0 +1,372 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.http.HttpClient;
+import com.fitbit.api.client.http.RetryPolicy;
+import com.fitbit.api.common.model.activities.Activities;
+import com.fitbit.api.common.model.devices.Device;
+import com.fitbit.api.common.model.foods.Foods;
+import com.fitbit.api.common.model.sleep.Sleep;
+import com.fitbit.api.common.model.timeseries.Data;
+import com.fitbit.api.common.model.timeseries.IntradaySummary;
+import com.fitbit.api.common.model.timeseries.TimeSeriesResourceType;
+import com.fitbit.api.common.model.user.UserInfo;
+import com.fitbit.api.model.APICollectionType;
+import com.fitbit.api.model.Alarm;
+import com.fitbit.api.model.FitbitUser;
+import org.joda.time.LocalDate;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking facade over a {@link FitbitApiClientAgent}. Every call is run on a bounded executor and returns a
+ * {@link FitbitApiFuture} right away, so a request handler can fan out e.g. devices, sleep and activities for a user
+ * concurrently and join on the results.
+ * <p/>
+ * The pool size comes from -DfitbitAPIClient.async.numThreads and the queue length from
+ * -DfitbitAPIClient.async.queueSize. When the queue is full the submitting thread runs the call itself, which throttles
+ * producers instead of dropping work. Calls submitted after {@link #shutdown()} fail right away.
+ * <p/>
+ * Failed calls are retried according to the agent's {@link RetryPolicy}. Instead of pausing a worker, the retry is
+ * scheduled on a timer thread, created on the first retry, and handed back to the pool when due. The timer thread never
+ * runs an attempt itself; when the pool is saturated the hand-off is tried again shortly after.
+ * <p/>
+ * On App Engine pass {@code ThreadManager.currentRequestThreadFactory()} (or a background thread factory) since the
+ * default thread factory is not permitted there.
+ */
+public class AsyncFitbitApiClientAgent {
+
+    private static final long HANDOFF_RETRY_DELAY_MILLIS = 100L;
+
+    /**
+     * Set on the retry timer thread while it hands an attempt to the pool.
+     */
+    private static final ThreadLocal<Boolean> HANDING_OFF = new ThreadLocal<Boolean>();
+
+    private final FitbitApiClientAgent agent;
+    private final ExecutorService executor;
+    private final ThreadFactory threadFactory;
+    private ScheduledExecutorService retryTimer;
+
+    public AsyncFitbitApiClientAgent(FitbitApiClientAgent agent) {
+        this(agent, Executors.defaultThreadFactory());
+    }
+
+    public AsyncFitbitApiClientAgent(FitbitApiClientAgent agent, ThreadFactory threadFactory) {
+        this(agent, createExecutor(Configuration.getNumberOfAsyncThreads(), Configuration.getAsyncQueueSize(), threadFactory), threadFactory);
+    }
+
+    /**
+     * @param agent agent to delegate to, shared by all calls
+     * @param executor executor to run the calls on; shut down by {@link #shutdown()}
+     */
+    public AsyncFitbitApiClientAgent(FitbitApiClientAgent agent, ExecutorService executor) {
+        this(agent, executor, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param agent agent to delegate to, shared by all calls
+     * @param executor executor to run the calls on; shut down by {@link #shutdown()}
+     * @param threadFactory factory for the retry timer thread
+     */
+    public AsyncFitbitApiClientAgent(FitbitApiClientAgent agent, ExecutorService executor, ThreadFactory threadFactory) {
+        this.agent = agent;
+        this.executor = executor;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Creates a fixed size pool with a bounded queue that runs overflowing calls on the submitting thread. Once shut
+     * down it rejects calls with a {@link RejectedExecutionException} instead of silently dropping them.
+     *
+     * @param numThreads number of worker threads
+     * @param queueSize number of calls allowed to wait for a worker
+     * @param threadFactory factory for the worker threads
+     * @return executor for an {@link AsyncFitbitApiClientAgent}
+     */
+    public static ExecutorService createExecutor(int numThreads, int queueSize, ThreadFactory threadFactory) {
+        int threads = Math.max(1, numThreads);
+        return new ThreadPoolExecutor(
+                threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                threadFactory,
+                new CallerRunsUnlessShutdownPolicy()
+        );
+    }
+
+    public FitbitApiClientAgent getAgent() {
+        return agent;
+    }
+
+    /**
+     * Runs an arbitrary call against the agent asynchronously.
+     *
+     * @param call the call
+     * @return pending result
+     */
+    public <T> FitbitApiFuture<T> submit(Callable<T> call) {
+        FitbitApiFuture<T> future = new FitbitApiFuture<T>(call);
+        if (executor.isShutdown()) {
+            future.fail(new FitbitAPIException("Asynchronous client is shut down."));
+            return future;
+        }
+        try {
+            executor.execute(new Attempt<T>(future, call, agent.getRetryPolicy(), 1, System.currentTimeMillis()));
+        } catch (RejectedExecutionException e) {
+            future.fail(new FitbitAPIException("Call rejected by the executor.", e));
+        }
+        return future;
+    }
+
+    public FitbitApiFuture<Activities> getActivities(final LocalUserDetail localUser, final FitbitUser fitbitUser, final LocalDate date) {
+        return submit(new Callable<Activities>() {
+            @Override
+            public Activities call() throws Exception {
+                return agent.getActivities(localUser, fitbitUser, date);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Foods> getFoods(final LocalUserDetail localUser, final FitbitUser fitbitUser, final LocalDate date) {
+        return submit(new Callable<Foods>() {
+            @Override
+            public Foods call() throws Exception {
+                return agent.getFoods(localUser, fitbitUser, date);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Sleep> getSleep(final LocalUserDetail localUser, final FitbitUser fitbitUser, final LocalDate date) {
+        return submit(new Callable<Sleep>() {
+            @Override
+            public Sleep call() throws Exception {
+                return agent.getSleep(localUser, fitbitUser, date);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Object> getCollectionForDate(final LocalUserDetail localUser, final FitbitUser fitbitUser, final APICollectionType type, final LocalDate date) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return agent.getCollectionForDate(localUser, fitbitUser, type, date);
+            }
+        });
+    }
+
+    public FitbitApiFuture<UserInfo> getUserInfo(final LocalUserDetail localUser) {
+        return submit(new Callable<UserInfo>() {
+            @Override
+            public UserInfo call() throws Exception {
+                return agent.getUserInfo(localUser);
+            }
+        });
+    }
+
+    public FitbitApiFuture<List<Device>> getDevices(final LocalUserDetail localUser) {
+        return submit(new Callable<List<Device>>() {
+            @Override
+            public List<Device> call() throws Exception {
+                return agent.getDevices(localUser);
+            }
+        });
+    }
+
+    public FitbitApiFuture<List<Alarm>> getAlarms(final LocalUserDetail localUser, final String deviceId) {
+        return submit(new Callable<List<Alarm>>() {
+            @Override
+            public List<Alarm> call() throws Exception {
+                return agent.getAlarms(localUser, deviceId);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Alarm> addAlarm(final LocalUserDetail localUser, final Alarm alarm, final String deviceId) {
+        return submit(new Callable<Alarm>() {
+            @Override
+            public Alarm call() throws Exception {
+                return agent.addAlarm(localUser, alarm, deviceId);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Alarm> updateAlarm(final LocalUserDetail localUser, final Alarm alarm, final String deviceId) {
+        return submit(new Callable<Alarm>() {
+            @Override
+            public Alarm call() throws Exception {
+                return agent.updateAlarm(localUser, alarm, deviceId);
+            }
+        });
+    }
+
+    public FitbitApiFuture<Alarm> deleteAlarm(final LocalUserDetail localUser, final Alarm alarm, final String deviceId) {
+        return submit(new Callable<Alarm>() {
+            @Override
+            public Alarm call() throws Exception {
+                return agent.deleteAlarm(localUser, alarm, deviceId);
+            }
+        });
+    }
+
+    public FitbitApiFuture<List<Data>> getTimeSeries(final LocalUserDetail localUser, final FitbitUser user, final TimeSeriesResourceType resourceType, final LocalDate startDate, final LocalDate endDate) {
+        return submit(new Callable<List<Data>>() {
+            @Override
+            public List<Data> call() throws Exception {
+                return agent.getTimeSeries(localUser, user, resourceType, startDate, endDate);
+            }
+        });
+    }
+
+    public FitbitApiFuture<IntradaySummary> getIntraDayTimeSeries(final LocalUserDetail localUser, final FitbitUser user, final TimeSeriesResourceType resourceType, final LocalDate date) {
+        return submit(new Callable<IntradaySummary>() {
+            @Override
+            public IntradaySummary call() throws Exception {
+                return agent.getIntraDayTimeSeries(localUser, user, resourceType, date);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting calls; calls already submitted still complete, but are no longer retried.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        synchronized (this) {
+            if (null != retryTimer) {
+                retryTimer.shutdown();
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getRetryTimer() {
+        if (null == retryTimer) {
+            retryTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        }
+        return retryTimer;
+    }
+
+    /**
+     * Runs overflowing calls on the submitting thread like {@link ThreadPoolExecutor.CallerRunsPolicy}, but rejects
+     * them once the executor is shut down, so their futures fail instead of never completing.
+     */
+    private static class CallerRunsUnlessShutdownPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor is shut down.");
+            }
+            r.run();
+        }
+    }
+
+    /**
+     * One attempt of a call. Runs with in-place retries disabled and, if the policy allows another attempt, schedules
+     * it on the retry timer.
+     */
+    private class Attempt<T> implements Runnable {
+        private final FitbitApiFuture<T> future;
+        private final Callable<T> call;
+        private final RetryPolicy retryPolicy;
+        private final int attempt;
+        private final long start;
+
+        Attempt(FitbitApiFuture<T> future, Callable<T> call, RetryPolicy retryPolicy, int attempt, long start) {
+            this.future = future;
+            this.call = call;
+            this.retryPolicy = retryPolicy;
+            this.attempt = attempt;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            if (null != HANDING_OFF.get()) {
+                // the pool is saturated and would run the retry on the timer thread
+                throw new RejectedExecutionException("No worker free for the retry.");
+            }
+            if (future.isDone()) {
+                return;
+            }
+            // the thread may be the submitter's when the pool is saturated
+            boolean deferred = HttpClient.isRetriesDeferred();
+            HttpClient.setRetriesDeferred(true);
+            try {
+                future.complete(call.call());
+            } catch (FitbitAPIException e) {
+                retryOrFail(e);
+            } catch (Throwable e) {
+                future.fail(e);
+            } finally {
+                HttpClient.setRetriesDeferred(deferred);
+            }
+        }
+
+        private void retryOrFail(FitbitAPIException failure) {
+            long delay = retryPolicy.getRetryDelayMillis(attempt, failure, System.currentTimeMillis() - start);
+            if (delay < 0) {
+                future.fail(failure);
+                return;
+            }
+            new Handoff<T>(new Attempt<T>(future, call, retryPolicy, attempt + 1, start), failure).schedule(delay);
+        }
+    }
+
+    /**
+     * Hands a due retry from the timer thread back to the pool. The timer thread never runs the attempt itself: if the
+     * pool would run it on the submitting thread, the hand-off is tried again a little later, for as long as the retry
+     * policy allows another attempt.
+     */
+    private class Handoff<T> implements Runnable {
+        private final Attempt<T> next;
+        private final FitbitAPIException lastFailure;
+
+        Handoff(Attempt<T> next, FitbitAPIException lastFailure) {
+            this.next = next;
+            this.lastFailure = lastFailure;
+        }
+
+        void schedule(long delay) {
+            if (executor.isShutdown()) {
+                next.future.fail(lastFailure);
+                return;
+            }
+            try {
+                getRetryTimer().schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                next.future.fail(lastFailure);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (executor.isShutdown()) {
+                next.future.fail(lastFailure);
+                return;
+            }
+            HANDING_OFF.set(Boolean.TRUE);
+            try {
+                executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                long elapsed = System.currentTimeMillis() - next.start;
+                if (executor.isShutdown() || next.retryPolicy.getRetryDelayMillis(next.attempt - 1, lastFailure, elapsed) < 0) {
+                    next.future.fail(lastFailure);
+                } else {
+                    schedule(HANDOFF_RETRY_DELAY_MILLIS);
+                }
+            } finally {
+                HANDING_OFF.remove();
+            }
+        }
+    }
+}
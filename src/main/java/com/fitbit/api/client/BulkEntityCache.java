@@ -0,0 +1,22 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.model.APIResourceCredentials;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Entity cache that removes the entries of several users with fewer calls than one {@link #remove} per entry, e.g.
+ * one backed by a remote store. The entries of a batch of update notifications are evicted through it when the
+ * entity cache implements it.
+ */
+public interface BulkEntityCache extends FitbitAPIEntityCache {
+
+    /**
+     * Removes entries of several users at once.
+     *
+     * @param keysByCredentials keys of the entries to remove, by credentials of the user they belong to
+     * @return number of entries removed
+     */
+    int removeAll(Map<APIResourceCredentials, ? extends Collection<?>> keysByCredentials);
+}
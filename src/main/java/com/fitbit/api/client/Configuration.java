@@ -62,9 +62,22 @@ public class Configuration {
         defaultProperty.setProperty("fitbitAPIClient.http.readTimeout", "120000");
         defaultProperty.setProperty("fitbitAPIClient.http.retryCount", "3");
         defaultProperty.setProperty("fitbitAPIClient.http.retryIntervalSecs", "10");
+        defaultProperty.setProperty("fitbitAPIClient.http.retryBaseDelayMillis", "500");
+        defaultProperty.setProperty("fitbitAPIClient.http.retryDeadlineSecs", "60");
+        defaultProperty.setProperty("fitbitAPIClient.http.transport", "urlconnection");
+        defaultProperty.setProperty("fitbitAPIClient.http.pool.maxTotal", "20");
+        defaultProperty.setProperty("fitbitAPIClient.http.pool.maxPerHost", "10");
+        defaultProperty.setProperty("fitbitAPIClient.http.pool.idleTimeoutSecs", "30");
         //defaultProperty.setProperty("fitbitAPIClient.oauth.consumerKey","");
         //defaultProperty.setProperty("fitbitAPIClient.oauth.consumerSecret","");
         defaultProperty.setProperty("fitbitAPIClient.async.numThreads", "1");
+        defaultProperty.setProperty("fitbitAPIClient.async.queueSize", "1000");
+        defaultProperty.setProperty("fitbitAPIClient.rateLimit.burst", "10");
+        defaultProperty.setProperty("fitbitAPIClient.rateLimit.lowPriorityReservePercent", "10");
+        defaultProperty.setProperty("fitbitAPIClient.rateLimit.maxWaitSecs", "120");
+        defaultProperty.setProperty("fitbitAPIClient.entityCache.maxEntries", "10000");
+        defaultProperty.setProperty("fitbitAPIClient.entityCache.ttlSecs", "3600");
+        defaultProperty.setProperty("fitbitAPIClient.entityCache.concurrencyLevel", "16");
         defaultProperty.setProperty("fitbitAPIClient.clientVersion", Version.getVersion());
         try {
             // Android platform should have dalvik.system.VMRuntime in the classpath.
@@ -206,6 +219,54 @@ public class Configuration {
         return getIntProperty("fitbitAPIClient.http.retryIntervalSecs", retryIntervalSecs);
     }
 
+    public static int getRetryBaseDelayMillis() {
+        return getIntProperty("fitbitAPIClient.http.retryBaseDelayMillis");
+    }
+
+    public static int getRetryDeadlineSecs() {
+        return getIntProperty("fitbitAPIClient.http.retryDeadlineSecs");
+    }
+
+    public static String getTransport() {
+        return getProperty("fitbitAPIClient.http.transport");
+    }
+
+    public static int getPoolMaxTotalConnections() {
+        return getIntProperty("fitbitAPIClient.http.pool.maxTotal");
+    }
+
+    public static int getPoolMaxConnectionsPerHost() {
+        return getIntProperty("fitbitAPIClient.http.pool.maxPerHost");
+    }
+
+    public static int getPoolIdleTimeoutSecs() {
+        return getIntProperty("fitbitAPIClient.http.pool.idleTimeoutSecs");
+    }
+
+    public static int getRateLimitBurst() {
+        return getIntProperty("fitbitAPIClient.rateLimit.burst");
+    }
+
+    public static int getRateLimitLowPriorityReservePercent() {
+        return getIntProperty("fitbitAPIClient.rateLimit.lowPriorityReservePercent");
+    }
+
+    public static int getRateLimitMaxWaitSecs() {
+        return getIntProperty("fitbitAPIClient.rateLimit.maxWaitSecs");
+    }
+
+    public static int getEntityCacheMaxEntries() {
+        return getIntProperty("fitbitAPIClient.entityCache.maxEntries");
+    }
+
+    public static int getEntityCacheTtlSecs() {
+        return getIntProperty("fitbitAPIClient.entityCache.ttlSecs");
+    }
+
+    public static int getEntityCacheConcurrencyLevel() {
+        return getIntProperty("fitbitAPIClient.entityCache.concurrencyLevel");
+    }
+
     public static String getUser() {
         return getProperty("fitbitAPIClient.user");
     }
@@ -330,6 +391,10 @@ public class Configuration {
         return getIntProperty("fitbitAPIClient.async.numThreads");
     }
 
+    public static int getAsyncQueueSize() {
+        return getIntProperty("fitbitAPIClient.async.queueSize");
+    }
+
     public static boolean getDebug() {
         return getBoolean("fitbitAPIClient.debug");
 
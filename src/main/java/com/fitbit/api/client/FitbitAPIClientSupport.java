@@ -30,6 +30,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.fitbit.api.client.http.HttpClient;
+import com.fitbit.api.client.http.HttpTransport;
+import com.fitbit.api.client.http.RetryPolicy;
 
 /**
  * @author Yusuke Yamamoto - yusuke at mac.com
@@ -227,6 +229,15 @@ class FitbitAPIClientSupport {
         return false;
     }
 
+    /**
+     * Sets the transport requests are sent over. System property -DfitbitAPIClient.http.transport selects the default.
+     *
+     * @param transport shared transport, e.g. a {@link com.fitbit.api.client.http.PooledHttpTransport}
+     */
+    public void setHttpTransport(HttpTransport transport) {
+        http.setTransport(transport);
+    }
+
     public void setRetryCount(int retryCount) {
         http.setRetryCount(retryCount);
     }
@@ -234,4 +245,15 @@ class FitbitAPIClientSupport {
     public void setRetryIntervalSecs(int retryIntervalSecs) {
         http.setRetryIntervalSecs(retryIntervalSecs);
     }
+
+    /**
+     * @param retryPolicy decides which failed requests are tried again and when; null for the default backoff
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        http.setRetryPolicy(retryPolicy);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return http.getRetryPolicy();
+    }
 }
\ No newline at end of file
@@ -26,12 +26,13 @@ import com.fitbit.api.model.*;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
 import org.joda.time.LocalTime;
-import org.joda.time.format.DateTimeFormat;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -46,12 +47,23 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     private static final long serialVersionUID = -1486360080128882436L;
     protected static final String SUBSCRIBER_ID_HEADER_NAME = "X-Fitbit-Subscriber-Id";
 
+    /**
+     * Credentials of the call currently executing on this thread. Kept off the shared {@link HttpClient} so concurrent
+     * calls for different users never see each other's tokens. Bound right before a request and removed once it is
+     * sent, so nothing is left on pooled threads.
+     */
+    private transient ThreadLocal<FitbitApiRequestContext> requestContext = new ThreadLocal<FitbitApiRequestContext>();
+
     private SimpleDateFormat format = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.ENGLISH);
     private String apiBaseUrl = DEFAULT_API_BASE_URL;
+    /* built once, it starts every request URL and cache key */
+    private String apiBaseSecuredUrl = "https://" + DEFAULT_API_BASE_URL;
     private APIVersion apiVersion = APIVersion.BETA_1;
 
     private FitbitApiCredentialsCache credentialsCache;
 
+    private transient RateLimitScheduler rateLimitScheduler;
+
 
     /**
      * Default constructor. Creates FitbitApiClientAgent with default API hosts and credentials cache.
@@ -72,6 +84,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public FitbitApiClientAgent(String apiBaseUrl, String webBaseUrl, FitbitApiCredentialsCache credentialsCache) {
         this("https://" + apiBaseUrl + "/oauth/request_token", webBaseUrl + "/oauth/authorize", "https://" + apiBaseUrl + "/oauth/access_token");
         this.apiBaseUrl = apiBaseUrl;
+        this.apiBaseSecuredUrl = "https://" + apiBaseUrl;
         if (null == credentialsCache) {
             this.credentialsCache = DEFAULT_CREDENTIALS_CACHE;
         } else {
@@ -104,7 +117,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      * @return the base API URL
      */
     public String getApiBaseUrl() {
-        return "https://" + apiBaseUrl;
+        return apiBaseSecuredUrl;
     }
 
     /**
@@ -113,7 +126,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      * @return the secured base API URL
      */
     public String getApiBaseSecuredUrl() {
-        return "https://" + apiBaseUrl;
+        return apiBaseSecuredUrl;
     }
 
     /**
@@ -539,7 +552,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("steps", steps));
         params.add(new PostParameter("durationMillis", durationMillis));
         params.add(new PostParameter("distance", distance));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
 
         return logActivity(localUser, params);
@@ -576,7 +589,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("steps", steps));
         params.add(new PostParameter("durationMillis", durationMillis));
         params.add(new PostParameter("distance", distance));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
         params.add(new PostParameter("distanceUnit", distanceUnit));
 
@@ -616,7 +629,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("steps", steps));
         params.add(new PostParameter("durationMillis", durationMillis));
         params.add(new PostParameter("distance", distance));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
         params.add(new PostParameter("manualCalories", manualCalories));
         params.add(new PostParameter("distanceUnit", distanceUnit));
@@ -648,7 +661,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         List<PostParameter> params = new ArrayList<PostParameter>(5);
         params.add(new PostParameter("activityName", activityName));
         params.add(new PostParameter("durationMillis", durationMillis));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
         params.add(new PostParameter("manualCalories", manualCalories));
 
@@ -682,7 +695,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("activityName", activityName));
         params.add(new PostParameter("durationMillis", durationMillis));
         params.add(new PostParameter("distance", distance));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
         params.add(new PostParameter("manualCalories", manualCalories));
 
@@ -718,7 +731,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("activityName", activityName));
         params.add(new PostParameter("durationMillis", durationMillis));
         params.add(new PostParameter("distance", distance));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("startTime", FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime)));
         params.add(new PostParameter("manualCalories", manualCalories));
         params.add(new PostParameter("distanceUnit", distanceUnit));
@@ -774,7 +787,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/activities/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/activities/" + activityLogId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting activity log entry: " + e, e);
         }
@@ -858,7 +871,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: POST /1/user/-/activities/favorite/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/activities/favorite/" + activityId, APIFormat.JSON);
         try {
-            httpPost(url, null, true);
+            httpPostAndRelease(url, null, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error adding favorite activity: " + e, e);
         }
@@ -878,7 +891,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/activities/favorite/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/activities/favorite/" + activityId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting favorite activity: " + e, e);
         }
@@ -1108,7 +1121,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("mealTypeId", mealTypeId));
         params.add(new PostParameter("unitId", String.valueOf(unitId)));
         params.add(new PostParameter("amount", amount));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         return logFood(localUser, params);
     }
@@ -1143,7 +1156,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         params.add(new PostParameter("mealTypeId", mealTypeId));
         params.add(new PostParameter("unitId", String.valueOf(unitId)));
         params.add(new PostParameter("amount", amount));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         return logFood(localUser, params);
     }
@@ -1194,7 +1207,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/food/log/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/foods/log/" + foodLogId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting food log entry: " + e, e);
         }
@@ -1214,7 +1227,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: POST /1/user/-/food/log/favorite/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/foods/log/favorite/" + foodId, APIFormat.JSON);
         try {
-            httpPost(url, null, true);
+            httpPostAndRelease(url, null, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error adding favorite food: " + e, e);
         }
@@ -1234,7 +1247,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/food/log/favorite/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/foods/log/favorite/" + foodId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting favorite food: " + e, e);
         }
@@ -1712,7 +1725,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         if(body.getCalf() > 0) {
             params.add(new PostParameter("calf", body.getCalf()));
         }
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         return logBody(localUser, params);
     }
@@ -1746,7 +1759,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public void logWeight(LocalUserDetail localUser, float weight, LocalDate date) throws FitbitAPIException {
         List<PostParameter> params = new ArrayList<PostParameter>(2);
         params.add(new PostParameter("weight", weight));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         logBody(localUser, params);
     }
@@ -1767,7 +1780,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public WaterLog logWater(LocalUserDetail localUser, float amount, VolumeUnits volumeUnit, LocalDate date) throws FitbitAPIException {
         List<PostParameter> params = new ArrayList<PostParameter>(2);
         params.add(new PostParameter("amount", amount));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         if (volumeUnit != null) {
             params.add(new PostParameter("unit", volumeUnit.getText()));
         }
@@ -1821,7 +1834,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public Water getLoggedWater(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/foods/log/water/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/foods/log/water/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/foods/log/water/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -1846,7 +1859,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/foods/log/water/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/foods/log/water/" + logWaterId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting water: " + e, e);
         }
@@ -1872,7 +1885,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         List<PostParameter> params = new ArrayList<PostParameter>(4);
         params.add(new PostParameter("systolic", systolic));
         params.add(new PostParameter("diastolic", diastolic));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         if (time != null) {
             params.add(new PostParameter("time", time));
@@ -1927,7 +1940,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public Bp getLoggedBp(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/bp/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/bp/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/bp/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -1952,7 +1965,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/bp/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/bp/" + logId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting water: " + e, e);
         }
@@ -1974,7 +1987,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      */
     public Glucose logGlucose(LocalUserDetail localUser, String tracker, Float glucose, Float hba1c, LocalDate date, String time) throws FitbitAPIException {
         List<PostParameter> params = new ArrayList<PostParameter>(5);
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         if(tracker != null) {
             params.add(new PostParameter("tracker", tracker));
         }
@@ -2036,7 +2049,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public Glucose getLoggedGlucose(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/glucose/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/glucose/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/glucose/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -2064,7 +2077,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         List<PostParameter> params = new ArrayList<PostParameter>(4);
         params.add(new PostParameter("tracker", tracker));
         params.add(new PostParameter("heartRate", heartRate));
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
 
         if (time != null) {
             params.add(new PostParameter("time", time));
@@ -2117,7 +2130,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public Heart getLoggedHeartRate(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/heart/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/heart/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/heart/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -2141,7 +2154,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // Example: DELETE /1/user/-/heart/123.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/heart/" + logId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting heart rate: " + e, e);
         }
@@ -2233,7 +2246,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // POST /1/user/-/friends/invitations.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/friends/invitations", APIFormat.JSON);
 
-        httpPost(url, params.toArray(new PostParameter[params.size()]), true);
+        httpPostAndRelease(url, params.toArray(new PostParameter[params.size()]), true);
     }
 
     /**
@@ -2254,7 +2267,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // POST /1/user/-/friends/invitations.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/friends/invitations", APIFormat.JSON);
 
-        httpPost(url, params.toArray(new PostParameter[params.size()]), true);
+        httpPostAndRelease(url, params.toArray(new PostParameter[params.size()]), true);
     }
 
     /**
@@ -2275,7 +2288,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // POST /1/user/-/friends/invitations/228KP9.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/friends/invitations/" + fitbitUser.getId(), APIFormat.JSON);
 
-        httpPost(url, params.toArray(new PostParameter[params.size()]), true);
+        httpPostAndRelease(url, params.toArray(new PostParameter[params.size()]), true);
     }
 
     /**
@@ -2296,7 +2309,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // POST /1/user/-/friends/invitations/228KP9.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/friends/invitations/" + fitbitUser.getId(), APIFormat.JSON);
 
-        httpPost(url, params.toArray(new PostParameter[params.size()]), true);
+        httpPostAndRelease(url, params.toArray(new PostParameter[params.size()]), true);
     }
 
 
@@ -2369,7 +2382,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         // POST /1/user/-/sleep/345275.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/-/sleep/" + sleepLogId, APIFormat.JSON);
 
-        httpDelete(url, true);
+        httpDeleteAndRelease(url, true);
     }
 
     /**
@@ -2400,6 +2413,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      * @see <a href="http://wiki.fitbit.com/display/API/API-Get-Friends">Fitbit API: API-Get-Friends</a>
      */
     public List<UserInfo> getFriends(FitbitUser owner) throws FitbitAPIException {
+        setRequestContext(null);
         // GET /1/user/XXXX/friends.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + owner.getId() + "/friends", APIFormat.JSON);
         return getFriends(url);
@@ -2479,7 +2493,11 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      */
     public ApiRateLimitStatus getClientRateLimitStatus() throws FitbitAPIException {
         clearAccessToken();
-        return getRateLimitStatus(ApiQuotaType.CLIENT);
+        ApiRateLimitStatus status = fetchRateLimitStatus(ApiQuotaType.CLIENT);
+        if (null != rateLimitScheduler) {
+            rateLimitScheduler.updateClientStatus(status);
+        }
+        return status;
     }
 
     /**
@@ -2493,10 +2511,28 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      */
     public ApiRateLimitStatus getClientAndViewerRateLimitStatus(LocalUserDetail localUser) throws FitbitAPIException {
         setAccessToken(localUser);
-        return getRateLimitStatus(ApiQuotaType.CLIENT_AND_VIEWER);
+        ApiRateLimitStatus status = fetchRateLimitStatus(ApiQuotaType.CLIENT_AND_VIEWER);
+        if (null != rateLimitScheduler) {
+            rateLimitScheduler.updateViewerStatus(localUser.getUserId(), status);
+        }
+        return status;
     }
 
+    /**
+     * Get Rate Limiting Quota left, signed with the token set with {@link #setOAuthAccessToken(AccessToken)}
+     *
+     * @param quotaType quota to retrieve
+     *
+     * @return quota
+     *
+     * @throws FitbitAPIException Fitbit API Exception
+     */
     public ApiRateLimitStatus getRateLimitStatus(ApiQuotaType quotaType) throws FitbitAPIException {
+        setRequestContext(null);
+        return fetchRateLimitStatus(quotaType);
+    }
+
+    private ApiRateLimitStatus fetchRateLimitStatus(ApiQuotaType quotaType) throws FitbitAPIException {
         // Example: GET /1/account/clientAndViewerRateLimitStatus.json OR /1/account/clientRateLimitStatus.json
         String quoteTypeToken;
         switch (quotaType) {
@@ -2652,7 +2688,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
                 );
         setSubscriberId(subscriberId);
 
-        httpDelete(url, true);
+        httpDeleteAndRelease(url, true);
     }
 
     public List<ApiSubscription> getSubscriptions(LocalUserDetail localUser) throws FitbitAPIException {
@@ -2794,6 +2830,52 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         }
     }
 
+    /**
+     * Get time series in the specified range for a given resource of a user as primitive columns. The values are
+     * decoded once from the response stream, see {@link TimeSeries}.
+     *
+     * @param localUser authorized user
+     * @param user user to fetch data from
+     * @param resourceType type of a resource
+     * @param startDate Start date of a time range
+     * @param endDate End date of a time range
+     *
+     * @throws com.fitbit.api.FitbitAPIException Fitbit API Exception
+     * @see <a href="http://wiki.fitbit.com/display/API/API-Get-Time-Series">Fitbit API: API-Get-Time-Series</a>
+     */
+    public TimeSeries getTimeSeriesColumns(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate startDate, LocalDate endDate) throws FitbitAPIException {
+        return getTimeSeriesColumns(localUser, user, resourceType, startDate.toString(), endDate.toString());
+    }
+
+    /**
+     * Get time series of a given period for a given resource of a user as primitive columns.
+     *
+     * @param localUser authorized user
+     * @param user user to fetch data from
+     * @param resourceType type of a resource
+     * @param startDate End date of a time range
+     * @param period Depth of a time range
+     *
+     * @throws com.fitbit.api.FitbitAPIException Fitbit API Exception
+     * @see <a href="http://wiki.fitbit.com/display/API/API-Get-Time-Series">Fitbit API: API-Get-Time-Series</a>
+     */
+    public TimeSeries getTimeSeriesColumns(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate startDate, TimePeriod period) throws FitbitAPIException {
+        return getTimeSeriesColumns(localUser, user, resourceType, startDate.toString(), period.getShortForm());
+    }
+
+    public TimeSeries getTimeSeriesColumns(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, String startDate, String periodOrEndDate) throws FitbitAPIException {
+        if (localUser != null) {
+            setAccessToken(localUser);
+        } else {
+            clearAccessToken();
+        }
+
+        String url = APIUtil.constructTimeSeriesUrl(getApiBaseUrl(), getApiVersion(), user, resourceType, startDate, periodOrEndDate, APIFormat.JSON);
+        Response res = httpGet(url, true);
+        throwExceptionIfError(res);
+        return res.parseJSON(new TimeSeriesParser(resourceType));
+    }
+
     public IntradaySummary getIntraDayTimeSeries(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate date, LocalTime startTime, LocalTime endTime) throws FitbitAPIException {
         return getIntraDayTimeSeries(localUser, user, resourceType, date.toString(), FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(startTime), FitbitApiService.LOCAL_TIME_HOURS_MINUTES_FORMATTER.print(endTime));
     }
@@ -2821,11 +2903,8 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
-        try {
-            return new IntradaySummary(res.asJSONObject(), resourceType);
-        } catch (JSONException e) {
-            throw new FitbitAPIException("Error parsing json response to IntradaySummary : ", e);
-        }
+        // decodes the samples straight into the columns of the dataset
+        return res.parseJSON(new IntradaySummaryParser(resourceType));
     }
 
     /* ********************************************************************* */
@@ -2833,13 +2912,38 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     protected void setAccessToken(LocalUserDetail localUser) {
         // Get the access token for the user:
         APIResourceCredentials resourceCredentials = credentialsCache.getResourceCredentials(localUser);
-        // Set the access token in the client:
-        setOAuthAccessToken(resourceCredentials.getAccessToken(), resourceCredentials.getAccessTokenSecret(), resourceCredentials.getLocalUserId());
+        // Bind it to this call only, the shared client keeps no user token:
+        setRequestContext(FitbitApiRequestContext.forCredentials(localUser, resourceCredentials));
     }
 
     protected void clearAccessToken() {
-        // Set the access token in the client to null:
-        setOAuthAccessToken(null);
+        // Sign the following calls on this thread with the consumer credentials only:
+        setRequestContext(FitbitApiRequestContext.UNAUTHORIZED);
+    }
+
+    /**
+     * Binds credentials for the next request issued by the current thread. The request removes them once sent.
+     *
+     * @param context per-call credentials, null to fall back to the token set with {@link #setOAuthAccessToken(AccessToken)}
+     */
+    protected void setRequestContext(FitbitApiRequestContext context) {
+        if (null == context) {
+            requestContext.remove();
+        } else {
+            requestContext.set(context);
+        }
+    }
+
+    /**
+     * @return credentials bound to the current thread, or null if none
+     */
+    protected FitbitApiRequestContext getRequestContext() {
+        return requestContext.get();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        requestContext = new ThreadLocal<FitbitApiRequestContext>();
     }
 
     /**
@@ -2903,22 +3007,149 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      *
      * @throws FitbitAPIException when Fitbit service or network is unavailable
      */
-    protected Response httpGet(String url, PostParameter[] params, boolean authenticate) throws FitbitAPIException {
-        return http.get(appendParamsToUrl(url, params), authenticate);
+    protected Response httpGet(final String url, final PostParameter[] params, final boolean authenticate) throws FitbitAPIException {
+        return execute(new HttpCall() {
+            public Response execute(FitbitApiRequestContext context) throws FitbitAPIException {
+                if (null == context) {
+                    return http.get(appendParamsToUrl(url, params), authenticate);
+                }
+                return http.get(appendParamsToUrl(url, params), context.getAccessToken(), authenticate);
+            }
+        });
     }
 
-    protected Response httpPost(String url, PostParameter[] params, boolean authenticate) throws FitbitAPIException {
-        return http.post(url, params, authenticate);
+    protected Response httpPost(final String url, final PostParameter[] params, final boolean authenticate) throws FitbitAPIException {
+        return execute(new HttpCall() {
+            public Response execute(FitbitApiRequestContext context) throws FitbitAPIException {
+                if (null == context) {
+                    return http.post(url, params, authenticate);
+                }
+                return http.post(url, params, context.getAccessToken(), authenticate);
+            }
+        });
     }
 
     protected Response httpDelete(String url, boolean authenticate) throws FitbitAPIException {
         return httpDelete(url, null, authenticate);
     }
 
-    protected Response httpDelete(String url, PostParameter[] params, boolean authenticate) throws FitbitAPIException {
+    protected Response httpDelete(final String url, final PostParameter[] params, final boolean authenticate) throws FitbitAPIException {
         // We use Sun's HttpURLConnection, which does not like request entities
         // submitted on HTTP DELETE
-        return http.delete(appendParamsToUrl(url, params), authenticate);
+        return execute(new HttpCall() {
+            public Response execute(FitbitApiRequestContext context) throws FitbitAPIException {
+                if (null == context) {
+                    return http.delete(appendParamsToUrl(url, params), authenticate);
+                }
+                return http.delete(appendParamsToUrl(url, params), context.getAccessToken(), authenticate);
+            }
+        });
+    }
+
+    /**
+     * Issues a request in the context of the current thread. With a rate limit scheduler set, failed attempts are
+     * retried here instead of inside {@link HttpClient}, so that every attempt waits for the scheduler and counts
+     * against the quota.
+     */
+    private Response execute(HttpCall call) throws FitbitAPIException {
+        FitbitApiRequestContext context = getRequestContext();
+        try {
+            if (null == rateLimitScheduler || HttpClient.isRetriesDeferred()) {
+                return attempt(call, context);
+            }
+            RetryPolicy policy = http.getRetryPolicy();
+            long start = System.currentTimeMillis();
+            HttpClient.setRetriesDeferred(true);
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        return attempt(call, context);
+                    } catch (FitbitAPIException e) {
+                        long delay = policy.getRetryDelayMillis(attempt, e, System.currentTimeMillis() - start);
+                        if (delay < 0) {
+                            throw e;
+                        }
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                HttpClient.setRetriesDeferred(false);
+            }
+        } finally {
+            setRequestContext(null);
+        }
+    }
+
+    private Response attempt(HttpCall call, FitbitApiRequestContext context) throws FitbitAPIException {
+        String viewerId = acquireRateLimit(context);
+        try {
+            return recordRateLimit(viewerId, call.execute(context));
+        } catch (FitbitAPIException e) {
+            throw recordRateLimitFailure(viewerId, e);
+        }
+    }
+
+    private interface HttpCall {
+        Response execute(FitbitApiRequestContext context) throws FitbitAPIException;
+    }
+
+    /**
+     * Issues an HTTP POST request whose response body is not needed, releasing the connection right away.
+     */
+    protected void httpPostAndRelease(String url, PostParameter[] params, boolean authenticate) throws FitbitAPIException {
+        httpPost(url, params, authenticate).release();
+    }
+
+    /**
+     * Issues an HTTP DELETE request whose response body is not needed, releasing the connection right away.
+     */
+    protected void httpDeleteAndRelease(String url, boolean authenticate) throws FitbitAPIException {
+        httpDelete(url, authenticate).release();
+    }
+
+    /**
+     * Waits for the rate limit scheduler, if one is set, to let the call through.
+     *
+     * @return local id of the user whose quota the call counts against, null for the client quota only
+     */
+    private String acquireRateLimit(FitbitApiRequestContext context) throws FitbitAPIException {
+        String viewerId = null == context || null == context.getLocalUser() ? null : context.getLocalUser().getUserId();
+        if (null != rateLimitScheduler) {
+            rateLimitScheduler.acquire(viewerId);
+        }
+        return viewerId;
+    }
+
+    private Response recordRateLimit(String viewerId, Response res) {
+        if (null != rateLimitScheduler && null != res) {
+            rateLimitScheduler.recordResponse(viewerId, res);
+        }
+        return res;
+    }
+
+    private FitbitAPIException recordRateLimitFailure(String viewerId, FitbitAPIException e) {
+        if (null != rateLimitScheduler) {
+            rateLimitScheduler.recordFailure(viewerId, e);
+        }
+        return e;
+    }
+
+    /**
+     * Paces all calls of this agent to stay within the API rate limits.
+     *
+     * @param rateLimitScheduler scheduler, shared by all agents using the same consumer key; null to disable pacing
+     */
+    public void setRateLimitScheduler(RateLimitScheduler rateLimitScheduler) {
+        this.rateLimitScheduler = rateLimitScheduler;
+    }
+
+    public RateLimitScheduler getRateLimitScheduler() {
+        return rateLimitScheduler;
     }
 
     protected static String appendParamsToUrl(String url, PostParameter[] params) {
@@ -2988,7 +3219,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      */
     public WeightLog logWeight(LocalUserDetail localUser, double weight, LocalDate date, String time) throws FitbitAPIException {
         List<PostParameter> params = new ArrayList<PostParameter>(4);
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("weight", weight));
 
         if (time != null) {
@@ -3026,7 +3257,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public List<WeightLog> getLoggedWeight(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/weight/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/weight/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/weight/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3053,7 +3284,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/weight/date/2010-02-25/2010-02-28.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/weight/date/" +
-                DateTimeFormat.forPattern("yyyy-MM-dd").print(startDate) + "/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(endDate), APIFormat.JSON);
+                FitbitApiService.LOCAL_DATE_FORMATTER.print(startDate) + "/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(endDate), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3080,7 +3311,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/weight/date/2010-02-25/30d.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/weight/date/" +
-                DateTimeFormat.forPattern("yyyy-MM-dd").print(endDate) + "/" + period.getShortForm(), APIFormat.JSON);
+                FitbitApiService.LOCAL_DATE_FORMATTER.print(endDate) + "/" + period.getShortForm(), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3129,7 +3360,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(),
                 "/user/-/body/log/weight/" + logId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting weight: " + e, e);
         }
@@ -3164,7 +3395,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
      */
     public FatLog logFat(LocalUserDetail localUser, double fat, LocalDate date, String time) throws FitbitAPIException {
         List<PostParameter> params = new ArrayList<PostParameter>(4);
-        params.add(new PostParameter("date", DateTimeFormat.forPattern("yyyy-MM-dd").print(date)));
+        params.add(new PostParameter("date", FitbitApiService.LOCAL_DATE_FORMATTER.print(date)));
         params.add(new PostParameter("fat", fat));
 
         if (time != null) {
@@ -3202,7 +3433,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
     public List<FatLog> getLoggedFat(LocalUserDetail localUser, FitbitUser fitbitUser, LocalDate date) throws FitbitAPIException {
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/fat/date/2010-02-25.json
-        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/fat/date/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(date), APIFormat.JSON);
+        String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/fat/date/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(date), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3229,7 +3460,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/fat/date/2010-02-25/2010-02-28.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/fat/date/" +
-                DateTimeFormat.forPattern("yyyy-MM-dd").print(startDate) + "/" + DateTimeFormat.forPattern("yyyy-MM-dd").print(endDate), APIFormat.JSON);
+                FitbitApiService.LOCAL_DATE_FORMATTER.print(startDate) + "/" + FitbitApiService.LOCAL_DATE_FORMATTER.print(endDate), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3256,7 +3487,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         setAccessToken(localUser);
         // Example: GET /1/user/228TQ4/body/log/fat/date/2010-02-25/30d.json
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(), "/user/" + fitbitUser.getId() + "/body/log/fat/date/" +
-                DateTimeFormat.forPattern("yyyy-MM-dd").print(endDate) + "/" + period.getShortForm(), APIFormat.JSON);
+                FitbitApiService.LOCAL_DATE_FORMATTER.print(endDate) + "/" + period.getShortForm(), APIFormat.JSON);
 
         Response res = httpGet(url, true);
         throwExceptionIfError(res);
@@ -3305,7 +3536,7 @@ public class FitbitApiClientAgent extends FitbitAPIClientSupport implements Seri
         String url = APIUtil.contextualizeUrl(getApiBaseUrl(), getApiVersion(),
                 "/user/-/body/log/fat/" + logId, APIFormat.JSON);
         try {
-            httpDelete(url, true);
+            httpDeleteAndRelease(url, true);
         } catch (Exception e) {
             throw new FitbitAPIException("Error deleting fat: " + e, e);
         }
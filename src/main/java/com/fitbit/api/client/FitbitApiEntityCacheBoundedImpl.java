@@ -0,0 +1,359 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.model.APIResourceCredentials;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded entity cache for production use. Entries are spread over independently locked segments, each evicting its
+ * least recently used entries once it holds more than its share of the entry or weight limit. Every entry expires
+ * after a time to live, the default one or one given on {@link #put(APIResourceCredentials, Object, Object, long)}.
+ * <p/>
+ * Entries are kept per local user id of the credentials, so credentials loaded again from storage still find them.
+ * <p/>
+ * The limits come from -DfitbitAPIClient.entityCache.maxEntries, -DfitbitAPIClient.entityCache.ttlSecs and
+ * -DfitbitAPIClient.entityCache.concurrencyLevel unless given to the constructor.
+ */
+public class FitbitApiEntityCacheBoundedImpl implements FitbitAPIEntityCache {
+
+    private static final Log log = LogFactory.getLog(FitbitApiEntityCacheBoundedImpl.class);
+
+    /**
+     * Weight of an entry relative to the weight limit, e.g. an estimate of its size.
+     */
+    public interface Weigher {
+        int weigh(Object key, Object value);
+    }
+
+    private static final Weigher SINGLETON_WEIGHER = new Weigher() {
+        @Override
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    };
+
+    private final Segment[] segments;
+    private final long defaultTtlMillis;
+    private final Weigher weigher;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+
+    public FitbitApiEntityCacheBoundedImpl() {
+        this(Configuration.getEntityCacheMaxEntries(), Configuration.getEntityCacheTtlSecs() * 1000L, Configuration.getEntityCacheConcurrencyLevel());
+    }
+
+    /**
+     * @param maxEntries number of entries kept at most
+     * @param defaultTtlMillis time to live of entries put without one, 0 for no expiry
+     * @param concurrencyLevel expected number of threads using the cache at the same time
+     */
+    public FitbitApiEntityCacheBoundedImpl(int maxEntries, long defaultTtlMillis, int concurrencyLevel) {
+        this(maxEntries, defaultTtlMillis, concurrencyLevel, SINGLETON_WEIGHER);
+    }
+
+    /**
+     * @param maxWeight total weight kept at most
+     * @param defaultTtlMillis time to live of entries put without one, 0 for no expiry
+     * @param concurrencyLevel expected number of threads using the cache at the same time
+     * @param weigher weight of each entry
+     */
+    public FitbitApiEntityCacheBoundedImpl(long maxWeight, long defaultTtlMillis, int concurrencyLevel, Weigher weigher) {
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount < 1 << 16) {
+            segmentCount <<= 1;
+        }
+        segments = new Segment[segmentCount];
+        long segmentWeight = Math.max(1, (Math.max(1, maxWeight) + segmentCount - 1) / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentWeight);
+        }
+        this.defaultTtlMillis = Math.max(0, defaultTtlMillis);
+        this.weigher = weigher;
+    }
+
+    @Override
+    public Object get(APIResourceCredentials credentials, Object key) {
+        CacheKey cacheKey = new CacheKey(credentials, key);
+        Object result = segmentFor(cacheKey).get(cacheKey, System.currentTimeMillis());
+        if (null == result) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public Object put(APIResourceCredentials credentials, Object key, Object value) {
+        return put(credentials, key, value, defaultTtlMillis);
+    }
+
+    /**
+     * @param ttlMillis time to live of the entry, 0 for no expiry
+     * @return the value previously cached under the key
+     */
+    public Object put(APIResourceCredentials credentials, Object key, Object value, long ttlMillis) {
+        if (null == value) {
+            return remove(credentials, key);
+        }
+        CacheKey cacheKey = new CacheKey(credentials, key);
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : Long.MAX_VALUE;
+        return segmentFor(cacheKey).put(cacheKey, value, Math.max(0, weigher.weigh(key, value)), expiresAt, now);
+    }
+
+    @Override
+    public Object remove(APIResourceCredentials credentials, Object key) {
+        CacheKey cacheKey = new CacheKey(credentials, key);
+        return segmentFor(cacheKey).remove(cacheKey);
+    }
+
+    /**
+     * Drops all entries of a user, e.g. when the credentials are expired.
+     */
+    public void removeAll(APIResourceCredentials credentials) {
+        Object owner = CacheKey.ownerOf(credentials);
+        for (Segment segment : segments) {
+            segment.removeOwner(owner);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return number of entries, including expired ones not yet dropped
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of entries dropped to stay within the limits
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return number of entries dropped because their time to live had passed
+     */
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    private Segment segmentFor(CacheKey cacheKey) {
+        int h = cacheKey.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return "FitbitApiEntityCacheBoundedImpl{" +
+                "size=" + size() +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", evictions=" + evictionCount +
+                ", expirations=" + expirationCount +
+                '}';
+    }
+
+    private static class Entry {
+        final Object value;
+        final int weight;
+        final long expiresAt;
+
+        Entry(Object value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Part of the cache with its own lock and recency order.
+     */
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+        private final long maxWeight;
+        private long weight;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        Object get(CacheKey cacheKey, long now) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(cacheKey);
+                if (null == entry) {
+                    return null;
+                }
+                if (entry.expiresAt <= now) {
+                    entries.remove(cacheKey);
+                    weight -= entry.weight;
+                    expirationCount.incrementAndGet();
+                    return null;
+                }
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Object put(CacheKey cacheKey, Object value, int entryWeight, long expiresAt, long now) {
+            lock.lock();
+            try {
+                Entry previous = entries.put(cacheKey, new Entry(value, entryWeight, expiresAt));
+                weight += entryWeight;
+                if (null != previous) {
+                    weight -= previous.weight;
+                }
+                evict(now);
+                return null == previous || previous.expiresAt <= now ? null : previous.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Object remove(CacheKey cacheKey) {
+            lock.lock();
+            try {
+                Entry previous = entries.remove(cacheKey);
+                if (null == previous) {
+                    return null;
+                }
+                weight -= previous.weight;
+                return previous.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeOwner(Object owner) {
+            lock.lock();
+            try {
+                for (Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<CacheKey, Entry> entry = it.next();
+                    if (entry.getKey().owner.equals(owner)) {
+                        weight -= entry.getValue().weight;
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+                weight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Drops least recently used entries until the segment is within its weight, expired ones first as they are
+         * met.
+         */
+        private void evict(long now) {
+            if (weight <= maxWeight) {
+                return;
+            }
+            for (Iterator<Entry> it = entries.values().iterator(); weight > maxWeight && it.hasNext(); ) {
+                Entry entry = it.next();
+                it.remove();
+                weight -= entry.weight;
+                if (entry.expiresAt <= now) {
+                    expirationCount.incrementAndGet();
+                } else {
+                    evictionCount.incrementAndGet();
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted entries down to weight " + weight + " of " + maxWeight);
+            }
+        }
+    }
+
+    private static class CacheKey {
+        final Object owner;
+        final Object key;
+        final int hash;
+
+        CacheKey(APIResourceCredentials credentials, Object key) {
+            owner = ownerOf(credentials);
+            this.key = key;
+            hash = 31 * owner.hashCode() + (null == key ? 0 : key.hashCode());
+        }
+
+        static Object ownerOf(APIResourceCredentials credentials) {
+            if (null == credentials) {
+                return "";
+            }
+            return null == credentials.getLocalUserId() ? credentials : credentials.getLocalUserId();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && owner.equals(other.owner) && (null == key ? null == other.key : key.equals(other.key));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
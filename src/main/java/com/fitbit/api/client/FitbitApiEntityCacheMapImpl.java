@@ -9,41 +9,54 @@ import org.apache.commons.logging.LogFactory;
 
 import com.fitbit.api.model.APIResourceCredentials;
 
+/**
+ * Unbounded cache for examples and tests; see {@link FitbitApiEntityCacheBoundedImpl} for production use.
+ * Entries are kept by local user id, as callers may hand in a different credentials object for the same user.
+ */
 public class FitbitApiEntityCacheMapImpl implements FitbitAPIEntityCache {
 
 	private static final Log log = LogFactory.getLog(FitbitApiEntityCacheMapImpl.class);
 	
-	private Map<APIResourceCredentials, Map<Object,Object>> cache =
-		Collections.synchronizedMap(new HashMap<APIResourceCredentials, Map<Object,Object>>());
+	private Map<String, Map<Object,Object>> cache =
+		Collections.synchronizedMap(new HashMap<String, Map<Object,Object>>());
 
 	protected Map<Object,Object> getCredentialsMap(APIResourceCredentials credentials) {
-		Map<Object,Object> result = cache.get(credentials);
-		if (null==result) {
-			result = Collections.synchronizedMap(new HashMap<Object, Object>());
-			cache.put(credentials, result);
+		String localUserId = null == credentials ? null : credentials.getLocalUserId();
+		synchronized (cache) {
+			Map<Object,Object> result = cache.get(localUserId);
+			if (null==result) {
+				result = Collections.synchronizedMap(new HashMap<Object, Object>());
+				cache.put(localUserId, result);
+			}
+			return result;
 		}
-		return result;
 	}
 	
 	@Override
 	public Object get(APIResourceCredentials credentials, Object key) {
 		
 		Object result = getCredentialsMap(credentials).get(key);
-		log.info("Cache get(" + credentials + ": " + key + ") => " + result);
+		if (log.isDebugEnabled()) {
+			log.debug("Cache get(" + credentials + ": " + key + ") => " + result);
+		}
 		return result;
 	}
 
 	@Override
 	public Object put(APIResourceCredentials credentials, Object key, Object value) {
 		Object result = getCredentialsMap(credentials).put(key, value);
-		log.info("Cache put(" + credentials + ": " + key + ", " + value + ") => " + result);
+		if (log.isDebugEnabled()) {
+			log.debug("Cache put(" + credentials + ": " + key + ", " + value + ") => " + result);
+		}
 		return result;
 	}
 
 	@Override
 	public Object remove(APIResourceCredentials credentials, Object key) {
 		Object result = getCredentialsMap(credentials).remove(key);
-		log.info("Cache remove(" + credentials + ": " + key + ") => " + result);
+		if (log.isDebugEnabled()) {
+			log.debug("Cache remove(" + credentials + ": " + key + ") => " + result);
+		}
 		return result;
 	}
 
@@ -0,0 +1,104 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.FitbitAPIException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Pending result of an asynchronous Fitbit API call. Besides blocking with {@link #get()}, callers can register
+ * {@link FitbitApiListener}s to chain further work without holding a thread.
+ *
+ * @param <T> result type of the call
+ */
+public class FitbitApiFuture<T> extends FutureTask<T> {
+
+    private final List<FitbitApiListener<? super T>> listeners = new ArrayList<FitbitApiListener<? super T>>(2);
+    private boolean notified;
+
+    public FitbitApiFuture(Callable<T> call) {
+        super(call);
+    }
+
+    /**
+     * Registers a completion callback. If the call has already completed the callback runs immediately.
+     *
+     * @param listener completion callback
+     * @return this future
+     */
+    public FitbitApiFuture<T> addListener(FitbitApiListener<? super T> listener) {
+        synchronized (listeners) {
+            if (!notified) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Waits for the call and unwraps its failure.
+     *
+     * @return the call result
+     * @throws FitbitAPIException the exception thrown by the call, or a wrapper for any other failure
+     */
+    public T getResult() throws FitbitAPIException {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FitbitAPIException("Interrupted while waiting for API call: " + e, e);
+        } catch (CancellationException e) {
+            throw new FitbitAPIException("API call was cancelled: " + e, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FitbitAPIException) {
+                throw (FitbitAPIException) cause;
+            }
+            throw new FitbitAPIException("API call failed: " + cause, e);
+        }
+    }
+
+    /**
+     * Completes the future with the result of a call run outside of {@link #run()}, e.g. a retried one.
+     */
+    void complete(T result) {
+        set(result);
+    }
+
+    void fail(Throwable failure) {
+        setException(failure);
+    }
+
+    @Override
+    protected void done() {
+        List<FitbitApiListener<? super T>> toNotify;
+        synchronized (listeners) {
+            notified = true;
+            toNotify = new ArrayList<FitbitApiListener<? super T>>(listeners);
+            listeners.clear();
+        }
+        for (FitbitApiListener<? super T> listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(FitbitApiListener<? super T> listener) {
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            listener.onFailure(e.getCause());
+            return;
+        } catch (Throwable e) {
+            listener.onFailure(e);
+            return;
+        }
+        listener.onSuccess(result);
+    }
+}
@@ -0,0 +1,17 @@
+package com.fitbit.api.client;
+
+/**
+ * Completion callback for calls issued through {@link AsyncFitbitApiClientAgent}.
+ * Invoked on the thread that completed the call, or on the registering thread if the call had already completed.
+ *
+ * @param <T> result type of the call
+ */
+public interface FitbitApiListener<T> {
+
+    void onSuccess(T result);
+
+    /**
+     * @param cause the exception thrown by the call, usually a {@link com.fitbit.api.FitbitAPIException}
+     */
+    void onFailure(Throwable cause);
+}
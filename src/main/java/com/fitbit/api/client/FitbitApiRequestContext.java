@@ -0,0 +1,52 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.client.http.AccessToken;
+import com.fitbit.api.model.APIResourceCredentials;
+
+/**
+ * Immutable per-call credentials. The agent binds one of these to the calling thread before issuing a request and
+ * hands its access token straight to the {@link com.fitbit.api.client.http.HttpClient}, so the shared client never
+ * holds a user token and one agent can serve many users concurrently.
+ */
+public final class FitbitApiRequestContext {
+
+    /**
+     * Context for calls signed with the consumer credentials only (no user token).
+     */
+    public static final FitbitApiRequestContext UNAUTHORIZED = new FitbitApiRequestContext(null, null);
+
+    private final LocalUserDetail localUser;
+    private final AccessToken accessToken;
+
+    public FitbitApiRequestContext(LocalUserDetail localUser, AccessToken accessToken) {
+        this.localUser = localUser;
+        this.accessToken = accessToken;
+    }
+
+    public static FitbitApiRequestContext forCredentials(LocalUserDetail localUser, APIResourceCredentials credentials) {
+        return new FitbitApiRequestContext(
+                localUser,
+                new AccessToken(credentials.getAccessToken(), credentials.getAccessTokenSecret(), credentials.getLocalUserId())
+        );
+    }
+
+    public LocalUserDetail getLocalUser() {
+        return localUser;
+    }
+
+    public AccessToken getAccessToken() {
+        return accessToken;
+    }
+
+    public boolean isUserAuthorized() {
+        return null != accessToken;
+    }
+
+    @Override
+    public String toString() {
+        return "FitbitApiRequestContext{" +
+                "localUser=" + (null == localUser ? null : localUser.getUserId()) +
+                ", authorized=" + isUserAuthorized() +
+                '}';
+    }
+}
@@ -0,0 +1,150 @@
+package com.fitbit.api.client;
+
+/**
+ * Token bucket for one Fitbit API quota (client or client+viewer).
+ * <p/>
+ * The bucket knows how many hits are left until the quota resets and refills at the rate that spreads them evenly over
+ * the rest of the window, holding at most {@code burst} tokens. An unseeded bucket does not throttle.
+ * Not thread safe; guarded by the owning {@link RateLimitScheduler}.
+ */
+class RateLimitBucket {
+    private static final long WINDOW_MILLIS = 60L * 60L * 1000L;
+    private static final long MIN_REFILL_PERIOD_MILLIS = 1000L;
+
+    private final int burst;
+    /** hourly limit, -1 while unknown */
+    private int limit = -1;
+    private int remaining;
+    private long resetAtMillis;
+    private double tokens;
+    private long lastRefillMillis;
+    private long lastUsedMillis;
+
+    RateLimitBucket(int burst, long nowMillis) {
+        this.burst = Math.max(1, burst);
+        tokens = this.burst;
+        lastRefillMillis = nowMillis;
+        lastUsedMillis = nowMillis;
+    }
+
+    /**
+     * Replaces the known quota state, e.g. from a rate limit status call or response headers.
+     */
+    void update(int remaining, int limit, long resetAtMillis, long nowMillis) {
+        refill(nowMillis);
+        this.limit = Math.max(0, limit);
+        this.remaining = Math.max(0, remaining);
+        this.resetAtMillis = resetAtMillis;
+    }
+
+    /**
+     * Blocks the bucket until the given time, after the server answered with 429.
+     */
+    void exhaust(long resetAtMillis, long nowMillis) {
+        refill(nowMillis);
+        if (limit < 0) {
+            limit = 0;
+        }
+        remaining = 0;
+        tokens = 0;
+        this.resetAtMillis = Math.max(this.resetAtMillis, resetAtMillis);
+    }
+
+    /**
+     * @param reservePercent share of the hourly limit that must be left over after the call
+     * @return milliseconds until a call may be made, 0 if it may be made now
+     */
+    long delay(long nowMillis, int reservePercent) {
+        roll(nowMillis);
+        if (limit < 0) {
+            return 0;
+        }
+        if (remaining <= (long) limit * reservePercent / 100) {
+            return Math.max(1, resetAtMillis - nowMillis);
+        }
+        refill(nowMillis);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate(nowMillis)));
+    }
+
+    /**
+     * Takes a token for a call that is about to be made.
+     */
+    void take(long nowMillis) {
+        roll(nowMillis);
+        if (limit >= 0) {
+            refill(nowMillis);
+            tokens = Math.max(0, tokens - 1);
+            remaining = Math.max(0, remaining - 1);
+        }
+    }
+
+    private void roll(long nowMillis) {
+        if (limit < 0 || nowMillis < resetAtMillis) {
+            return;
+        }
+        if (limit == 0) {
+            // only ever seen a 429, size of the new window is unknown
+            limit = -1;
+            tokens = burst;
+        } else {
+            remaining = limit;
+            resetAtMillis += ((nowMillis - resetAtMillis) / WINDOW_MILLIS + 1) * WINDOW_MILLIS;
+        }
+        lastRefillMillis = nowMillis;
+    }
+
+    private void refill(long nowMillis) {
+        if (limit >= 0 && nowMillis > lastRefillMillis) {
+            tokens = Math.min(burst, tokens + (nowMillis - lastRefillMillis) * rate(nowMillis));
+        }
+        lastRefillMillis = nowMillis;
+    }
+
+    /**
+     * @return tokens per millisecond
+     */
+    private double rate(long nowMillis) {
+        return (double) remaining / Math.max(MIN_REFILL_PERIOD_MILLIS, resetAtMillis - nowMillis);
+    }
+
+    void touch(long nowMillis) {
+        lastUsedMillis = Math.max(lastUsedMillis, nowMillis);
+    }
+
+    /**
+     * @return true if the bucket was not used for the given time and holds nothing back, so dropping it and starting
+     * over unseeded loses no state that matters
+     */
+    boolean isIdle(long nowMillis, long idleMillis) {
+        return nowMillis - lastUsedMillis >= idleMillis && nowMillis >= resetAtMillis;
+    }
+
+    public boolean isSeeded() {
+        return limit >= 0;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public long getResetAtMillis() {
+        return resetAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitBucket{" +
+                "limit=" + limit +
+                ", remaining=" + remaining +
+                ", resetAtMillis=" + resetAtMillis +
+                ", tokens=" + tokens +
+                '}';
+    }
+}
@@ -0,0 +1,356 @@
+package com.fitbit.api.client;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.http.Response;
+import com.fitbit.api.model.ApiRateLimitStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces API calls so they stay within the client quota and the client+viewer quota of each user, instead of running
+ * into 429 responses.
+ * <p/>
+ * Each quota is a {@link RateLimitBucket}, seeded from {@link FitbitApiClientAgent#getClientRateLimitStatus()},
+ * {@link FitbitApiClientAgent#getClientAndViewerRateLimitStatus(LocalUserDetail)} and the Fitbit-Rate-Limit-* response
+ * headers. Calls waiting for the client quota are served by priority, then in arrival order. {@link Priority#LOW} calls
+ * (e.g. background prefetching) leave a share of each quota untouched for interactive ones. A call that would have to
+ * wait longer than the maximum wait fails right away with status 429.
+ * <p/>
+ * The quota of a user who made no call for an hour and is not held back is forgotten, so the scheduler does not grow
+ * with the user base; it is seeded again by the next response.
+ */
+public class RateLimitScheduler {
+    private static final Log log = LogFactory.getLog(RateLimitScheduler.class);
+
+    public static final String LIMIT_HEADER = "Fitbit-Rate-Limit-Limit";
+    public static final String REMAINING_HEADER = "Fitbit-Rate-Limit-Remaining";
+    public static final String RESET_HEADER = "Fitbit-Rate-Limit-Reset";
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final long VIEWER_IDLE_MILLIS = 60L * 60L * 1000L;
+    private static final long EVICTION_PERIOD_MILLIS = 60L * 1000L;
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private static final ThreadLocal<Priority> PRIORITY = new ThreadLocal<Priority>();
+
+    private final int burst;
+    private final int lowPriorityReservePercent;
+    private final long maxWaitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+    private final RateLimitBucket clientBucket;
+    private final Map<String, RateLimitBucket> viewerBuckets = new HashMap<String, RateLimitBucket>();
+    private long sequence;
+    private long lastEvictionMillis = System.currentTimeMillis();
+
+    private final AtomicLong grantedCount = new AtomicLong();
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    public RateLimitScheduler() {
+        this(Configuration.getRateLimitBurst(), Configuration.getRateLimitLowPriorityReservePercent(), Configuration.getRateLimitMaxWaitSecs() * 1000L);
+    }
+
+    /**
+     * @param burst calls that may be made back to back before pacing sets in
+     * @param lowPriorityReservePercent share of a quota that low priority calls leave untouched
+     * @param maxWaitMillis longest a call may be held back before failing
+     */
+    public RateLimitScheduler(int burst, int lowPriorityReservePercent, long maxWaitMillis) {
+        this.burst = Math.max(1, burst);
+        this.lowPriorityReservePercent = Math.max(0, Math.min(100, lowPriorityReservePercent));
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        clientBucket = new RateLimitBucket(this.burst, System.currentTimeMillis());
+    }
+
+    /**
+     * Sets the priority of the calls subsequently issued by the current thread.
+     *
+     * @param priority call priority, null for {@link Priority#NORMAL}
+     */
+    public static void setPriority(Priority priority) {
+        if (null == priority) {
+            PRIORITY.remove();
+        } else {
+            PRIORITY.set(priority);
+        }
+    }
+
+    public static Priority getPriority() {
+        Priority priority = PRIORITY.get();
+        return null == priority ? Priority.NORMAL : priority;
+    }
+
+    /**
+     * Waits until a call may be made and takes a token from each quota it counts against.
+     *
+     * @param viewerId local id of the user the call is made for, null for calls made with the consumer credentials only
+     * @throws FitbitAPIException with status 429 if the call would have to wait longer than the maximum wait
+     */
+    public void acquire(String viewerId) throws FitbitAPIException {
+        Priority priority = getPriority();
+        int reservePercent = priority == Priority.LOW ? lowPriorityReservePercent : 0;
+        long start = System.currentTimeMillis();
+        long deadline = start + maxWaitMillis;
+        boolean delayed = false;
+
+        lock.lock();
+        try {
+            RateLimitBucket viewerBucket = null == viewerId ? null : getViewerBucket(viewerId, start);
+            Ticket ticket = null;
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long delay = null == viewerBucket ? 0 : viewerBucket.delay(now, reservePercent);
+                    if (delay > 0) {
+                        // held back by this user's quota only, do not hold up other users' calls
+                        if (null != ticket) {
+                            waiting.remove(ticket);
+                            ticket = null;
+                            changed.signalAll();
+                        }
+                    } else {
+                        if (null == ticket) {
+                            ticket = new Ticket(priority, sequence++);
+                            waiting.add(ticket);
+                        }
+                        if (waiting.peek() == ticket) {
+                            delay = clientBucket.delay(now, reservePercent);
+                            if (delay == 0) {
+                                clientBucket.take(now);
+                                if (null != viewerBucket) {
+                                    viewerBucket.take(now);
+                                }
+                                grantedCount.incrementAndGet();
+                                if (delayed) {
+                                    delayedCount.incrementAndGet();
+                                }
+                                return;
+                            }
+                        } else {
+                            // wait for the calls ahead of this one
+                            delay = Math.max(1, deadline - now);
+                        }
+                    }
+
+                    if (now + delay > deadline) {
+                        rejectedCount.incrementAndGet();
+                        throw new FitbitAPIException("Rate limit would be exceeded, call for " + (null == viewerId ? "client" : "user " + viewerId) + " needs to wait " + delay + " ms", TOO_MANY_REQUESTS);
+                    }
+                    delayed = true;
+                    changed.await(Math.max(1, delay), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FitbitAPIException("Interrupted while waiting for rate limit", e);
+            } finally {
+                if (null != ticket) {
+                    waiting.remove(ticket);
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the quota of the call from the rate limit headers of its response, if present.
+     *
+     * @param viewerId local id of the user the call was made for, null for the client quota
+     * @param res response of the call
+     */
+    public void recordResponse(String viewerId, Response res) {
+        String limit = res.getResponseHeader(LIMIT_HEADER);
+        String remaining = res.getResponseHeader(REMAINING_HEADER);
+        String reset = res.getResponseHeader(RESET_HEADER);
+        if (null == limit || null == remaining || null == reset) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            update(viewerId, Integer.parseInt(remaining.trim()), Integer.parseInt(limit.trim()), now + Long.parseLong(reset.trim()) * 1000L, now);
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse rate limit headers: " + limit + ", " + remaining + ", " + reset);
+        }
+    }
+
+    /**
+     * Blocks the quota of the call after it was refused with 429.
+     *
+     * @param viewerId local id of the user the call was made for, null for the client quota
+     * @param e the failure of the call
+     */
+    public void recordFailure(String viewerId, FitbitAPIException e) {
+        if (e.getStatusCode() != TOO_MANY_REQUESTS) {
+            return;
+        }
+        throttledCount.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long retryAfterMillis = e.getRetryAfterSecs() >= 0 ? e.getRetryAfterSecs() * 1000L : 60L * 1000L;
+        lock.lock();
+        try {
+            RateLimitBucket bucket = null == viewerId ? clientBucket : getViewerBucket(viewerId, now);
+            bucket.exhaust(now + retryAfterMillis, now);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        log.info("Rate limited" + (null == viewerId ? "" : " for user " + viewerId) + ", holding calls back for " + retryAfterMillis + " ms");
+    }
+
+    public void updateClientStatus(ApiRateLimitStatus status) {
+        long now = System.currentTimeMillis();
+        update(null, status.getRemainingHits(), status.getHourlyLimit(), status.getResetTime().getMillis(), now);
+    }
+
+    public void updateViewerStatus(String viewerId, ApiRateLimitStatus status) {
+        long now = System.currentTimeMillis();
+        update(viewerId, status.getRemainingHits(), status.getHourlyLimit(), status.getResetTime().getMillis(), now);
+    }
+
+    private void update(String viewerId, int remaining, int limit, long resetAtMillis, long now) {
+        lock.lock();
+        try {
+            RateLimitBucket bucket = null == viewerId ? clientBucket : getViewerBucket(viewerId, now);
+            bucket.update(remaining, limit, resetAtMillis, now);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RateLimitBucket getViewerBucket(String viewerId, long now) {
+        evictIdleViewerBucketsIfDue(now);
+        RateLimitBucket bucket = viewerBuckets.get(viewerId);
+        if (null == bucket) {
+            bucket = new RateLimitBucket(burst, now);
+            viewerBuckets.put(viewerId, bucket);
+        } else {
+            bucket.touch(now);
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the quotas of users who have been idle, at most once per eviction period. Called with the lock held.
+     */
+    private void evictIdleViewerBucketsIfDue(long now) {
+        if (now - lastEvictionMillis < EVICTION_PERIOD_MILLIS) {
+            return;
+        }
+        lastEvictionMillis = now;
+        for (Iterator<RateLimitBucket> it = viewerBuckets.values().iterator(); it.hasNext(); ) {
+            if (it.next().isIdle(now, VIEWER_IDLE_MILLIS)) {
+                it.remove();
+            }
+        }
+    }
+
+    public int getViewerCount() {
+        lock.lock();
+        try {
+            return viewerBuckets.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return hits left in the client quota, -1 if not known yet
+     */
+    public int getClientRemainingHits() {
+        lock.lock();
+        try {
+            return clientBucket.isSeeded() ? clientBucket.getRemaining() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return hits left in the client+viewer quota of the user, -1 if not known yet
+     */
+    public int getViewerRemainingHits(String viewerId) {
+        lock.lock();
+        try {
+            RateLimitBucket bucket = viewerBuckets.get(viewerId);
+            return null != bucket && bucket.isSeeded() ? bucket.getRemaining() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getGrantedCount() {
+        return grantedCount.get();
+    }
+
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitScheduler{" +
+                "clientRemainingHits=" + getClientRemainingHits() +
+                ", granted=" + grantedCount +
+                ", delayed=" + delayedCount +
+                ", rejected=" + rejectedCount +
+                ", throttled=" + throttledCount +
+                '}';
+    }
+
+    private static class Ticket implements Comparable<Ticket> {
+        private final Priority priority;
+        private final long sequence;
+
+        Ticket(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int result = priority.compareTo(other.priority);
+            if (result != 0) {
+                return result;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.fitbit.api.client.http;
+
+import com.fitbit.api.FitbitAPIException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Retries I/O errors, 429 and 5xx responses with exponentially growing, jittered pauses.
+ * <p/>
+ * The n-th pause is a random value between half and all of {@code baseDelay * 2^(n-1)}, capped at the maximum delay,
+ * so that clients failing together do not retry in lockstep. A Retry-After header replaces the computed pause.
+ * No retry is scheduled that would end after the deadline.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int INTERNAL_SERVER_ERROR = 500;
+    private static final int NOT_IMPLEMENTED = 501;
+
+    private static final Random random = new Random();
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxRetries attempts made after the first one
+     * @param baseDelayMillis pause before the first retry
+     * @param maxDelayMillis longest pause between two attempts
+     * @param deadlineMillis time after the first attempt by which the last attempt has to start, 0 for none
+     */
+    public ExponentialBackoffRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.deadlineMillis = Math.max(0, deadlineMillis);
+    }
+
+    @Override
+    public long getRetryDelayMillis(int attempt, FitbitAPIException failure, long elapsedMillis) {
+        if (attempt > maxRetries || !isRetryable(failure)) {
+            return -1;
+        }
+        long delay;
+        if (failure.getRetryAfterSecs() >= 0) {
+            delay = failure.getRetryAfterSecs() * 1000L;
+        } else {
+            long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+            delay = ceiling / 2 + (long) (random.nextDouble() * (ceiling - ceiling / 2));
+        }
+        if (deadlineMillis > 0 && elapsedMillis + delay > deadlineMillis) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * @return true for I/O errors, 429 and 5xx responses other than 501
+     */
+    protected boolean isRetryable(FitbitAPIException failure) {
+        int statusCode = failure.getStatusCode();
+        if (statusCode < 0) {
+            return failure.getCause() instanceof IOException;
+        }
+        return statusCode == TOO_MANY_REQUESTS || (statusCode >= INTERNAL_SERVER_ERROR && statusCode != NOT_IMPLEMENTED);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffRetryPolicy{" +
+                "maxRetries=" + maxRetries +
+                ", baseDelayMillis=" + baseDelayMillis +
+                ", maxDelayMillis=" + maxDelayMillis +
+                ", deadlineMillis=" + deadlineMillis +
+                '}';
+    }
+}
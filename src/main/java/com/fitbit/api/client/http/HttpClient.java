@@ -32,14 +32,13 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.net.Proxy.Type;
 import java.security.AccessControlException;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 /**
  * A utility class to handle HTTP request/response.
@@ -89,6 +88,15 @@ public class HttpClient implements Serializable {
     private String authenticationURL = Configuration.getScheme() + "fitbit.com/oauth/authenticate";
     private String accessTokenURL = Configuration.getScheme() + "fitbit.com/oauth/access_token";
     private OAuthToken oauthToken;
+    private transient HttpTransport transport;
+    private transient RetryPolicy retryPolicy;
+    private transient volatile RetryPolicy defaultRetryPolicy;
+    private static final String POOLED_TRANSPORT = "pooled";
+
+    /**
+     * Set on threads whose caller reschedules failed requests itself, see {@link #setRetriesDeferred(boolean)}.
+     */
+    private static final ThreadLocal<Boolean> RETRIES_DEFERRED = new ThreadLocal<Boolean>();
 
     static {
         try {
@@ -157,8 +165,9 @@ public class HttpClient implements Serializable {
      * @throws FitbitAPIException
      */
     public TempCredentials getOAuthRequestToken() throws FitbitAPIException {
-        oauthToken = new TempCredentials(httpRequest(HttpMethod.POST, requestTokenURL, PostParameter.EMPTY_ARRAY, true), this);
-        return (TempCredentials) oauthToken;
+        TempCredentials tempCredentials = new TempCredentials(httpRequest(HttpMethod.POST, requestTokenURL, PostParameter.EMPTY_ARRAY, null, true), this);
+        oauthToken = tempCredentials;
+        return tempCredentials;
     }
 
     /**
@@ -167,10 +176,11 @@ public class HttpClient implements Serializable {
      * @throws FitbitAPIException
      */
     public TempCredentials getOauthRequestToken(String callback_url) throws FitbitAPIException {
-        oauthToken = new TempCredentials(httpRequest(HttpMethod.POST, requestTokenURL,
+        TempCredentials tempCredentials = new TempCredentials(httpRequest(HttpMethod.POST, requestTokenURL,
                 new PostParameter[]{new PostParameter("oauth_callback", callback_url)}
-                , true), this);
-        return (TempCredentials) oauthToken;
+                , null, true), this);
+        oauthToken = tempCredentials;
+        return tempCredentials;
     }
 
     /**
@@ -180,13 +190,14 @@ public class HttpClient implements Serializable {
      * @throws
      */
     public AccessToken getOAuthAccessToken(TempCredentials token) throws FitbitAPIException {
+        AccessToken accessToken;
         try {
-            oauthToken = token;
-            oauthToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL, PostParameter.EMPTY_ARRAY, true));
+            accessToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL, PostParameter.EMPTY_ARRAY, token, true));
         } catch (FitbitAPIException te) {
             throw new FitbitAPIException("The user has not given access to the account.", te, te.getStatusCode());
         }
-        return (AccessToken) oauthToken;
+        oauthToken = accessToken;
+        return accessToken;
     }
 
     /**
@@ -196,13 +207,14 @@ public class HttpClient implements Serializable {
      * @throws FitbitAPIException
      */
     public AccessToken getOAuthAccessToken(TempCredentials token, String pin) throws FitbitAPIException {
+        AccessToken accessToken;
         try {
-            oauthToken = token;
-            oauthToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL, new PostParameter[]{new PostParameter("oauth_verifier", pin)}, true));
+            accessToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL, new PostParameter[]{new PostParameter("oauth_verifier", pin)}, token, true));
         } catch (FitbitAPIException te) {
             throw new FitbitAPIException("The user has not given access to the account.", te, te.getStatusCode());
         }
-        return (AccessToken) oauthToken;
+        oauthToken = accessToken;
+        return accessToken;
     }
 
     /**
@@ -214,15 +226,17 @@ public class HttpClient implements Serializable {
      * @throws FitbitAPIException
      */
     public AccessToken getOAuthAccessToken(String token, String tokenSecret, String oauth_verifier) throws FitbitAPIException {
+        AccessToken accessToken;
         try {
-            oauthToken = new OAuthToken(token, tokenSecret) {
+            OAuthToken tempToken = new OAuthToken(token, tokenSecret) {
             };
-            oauthToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL,
-                    new PostParameter[]{new PostParameter("oauth_verifier", oauth_verifier)}, true));
+            accessToken = new AccessToken(httpRequest(HttpMethod.POST, accessTokenURL,
+                    new PostParameter[]{new PostParameter("oauth_verifier", oauth_verifier)}, tempToken, true));
         } catch (FitbitAPIException te) {
             throw new FitbitAPIException("The user has not given access to the account.", te, te.getStatusCode());
         }
-        return (AccessToken) oauthToken;
+        oauthToken = accessToken;
+        return accessToken;
     }
 
     /**
@@ -349,6 +363,7 @@ public class HttpClient implements Serializable {
     public void setRetryCount(int retryCount) {
         if (retryCount >= 0) {
             this.retryCount = Configuration.getRetryCount(retryCount);
+            defaultRetryPolicy = null;
         } else {
             throw new IllegalArgumentException("RetryCount cannot be negative.");
         }
@@ -361,15 +376,65 @@ public class HttpClient implements Serializable {
         return getRequestHeader("User-Agent");
     }
 
+    /**
+     * Sets the longest pause between two attempts of the default retry policy. System property
+     * -DfitbitAPIClient.http.retryIntervalSecs overrides this attribute.
+     * @param retryIntervalSecs upper bound of the exponential backoff
+     */
     public void setRetryIntervalSecs(int retryIntervalSecs) {
         if (retryIntervalSecs >= 0) {
             retryIntervalMillis = Configuration.getRetryIntervalSecs(retryIntervalSecs) * 1000;
+            defaultRetryPolicy = null;
         } else {
             throw new IllegalArgumentException(
                     "RetryInterval cannot be negative.");
         }
     }
 
+    /**
+     * Replaces the default retry policy, an {@link ExponentialBackoffRetryPolicy} built from the retry count, the retry
+     * interval and -DfitbitAPIClient.http.retryBaseDelayMillis / -DfitbitAPIClient.http.retryDeadlineSecs.
+     * @param retryPolicy policy, null to restore the default one
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        if (null != retryPolicy) {
+            return retryPolicy;
+        }
+        RetryPolicy result = defaultRetryPolicy;
+        if (null == result) {
+            // stateless, built again only after the retry count or interval changed
+            result = new ExponentialBackoffRetryPolicy(
+                    retryCount,
+                    Configuration.getRetryBaseDelayMillis(),
+                    retryIntervalMillis,
+                    Configuration.getRetryDeadlineSecs() * 1000L
+            );
+            defaultRetryPolicy = result;
+        }
+        return result;
+    }
+
+    /**
+     * Makes requests issued by the current thread fail on the first error instead of pausing the thread to retry them.
+     * Used by callers that schedule retries on a timer.
+     * @param deferred true to fail fast, false to retry in place
+     */
+    public static void setRetriesDeferred(boolean deferred) {
+        if (deferred) {
+            RETRIES_DEFERRED.set(Boolean.TRUE);
+        } else {
+            RETRIES_DEFERRED.remove();
+        }
+    }
+
+    public static boolean isRetriesDeferred() {
+        return null != RETRIES_DEFERRED.get();
+    }
+
     public Response post(String url, PostParameter[] postParameters,
                          boolean authenticated) throws FitbitAPIException {
         return httpRequest(HttpMethod.POST, url, postParameters, authenticated);
@@ -403,88 +468,90 @@ public class HttpClient implements Serializable {
         return get(url, false);
     }
 
+    /**
+     * Issues a GET signed with the given token instead of the client-wide one.
+     * Safe to call concurrently for different users.
+     *
+     * @param url the request url
+     * @param token per-call access token, null to sign with the consumer credentials only
+     * @param authenticated if true, the request will be signed
+     * @return the response
+     * @throws FitbitAPIException
+     */
+    public Response get(String url, AccessToken token, boolean authenticated) throws FitbitAPIException {
+        return httpRequest(HttpMethod.GET, url, null, token, authenticated);
+    }
+
+    public Response post(String url, PostParameter[] postParameters, AccessToken token,
+                         boolean authenticated) throws FitbitAPIException {
+        return httpRequest(HttpMethod.POST, url, postParameters, token, authenticated);
+    }
+
+    public Response delete(String url, AccessToken token, boolean authenticated) throws FitbitAPIException {
+        return httpRequest(HttpMethod.DELETE, url, null, token, authenticated);
+    }
+
     protected Response httpRequest(HttpMethod method, String url, PostParameter[] postParams,
                                  boolean authenticated) throws FitbitAPIException {
+        return httpRequest(method, url, postParams, oauthToken, authenticated);
+    }
+
+    protected Response httpRequest(HttpMethod method, String url, PostParameter[] postParams,
+                                 OAuthToken token, boolean authenticated) throws FitbitAPIException {
     	if (log.isDebugEnabled()) {
     		log.debug("HTTP " + method + " " + url);
     	}
     	
-        int retriedCount;
-        int retry = retryCount + 1;
-        Response res = null;
-        for (retriedCount = 0; retriedCount < retry; retriedCount++) {
-            int responseCode = -1;
+        RetryPolicy policy = getRetryPolicy();
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            FitbitAPIException failure;
             try {
-                HttpURLConnection con;
-                OutputStream osw = null;
-                try {
-                    con = getConnection(url);
-                    con.setDoInput(true);
-                    setHeaders(method, url, postParams, con, authenticated);
-                    con.setRequestMethod(method.name());
-                    if (null != postParams) {
-                        con.setRequestProperty("Content-Type",
-                                "application/x-www-form-urlencoded");
-                        con.setDoOutput(true);
-                        String postParam = encodeParameters(postParams);
-                        log.debug("HTTP Post Params: " + postParam);
-                        byte[] bytes = postParam.getBytes("UTF-8");
-
-                        con.setRequestProperty("Content-Length",
-                                Integer.toString(bytes.length));
-                        osw = con.getOutputStream();
-                        osw.write(bytes);
-                        osw.flush();
-                        osw.close();
-                    }
-                    res = new Response(con);
-                    responseCode = res.getStatusCode();
-                    if (log.isDebugEnabled()){
-                        log.debug("HTTP Response Headers: ");
-                        Map<String, List<String>> responseHeaders = con.getHeaderFields();
-                        for (String key : responseHeaders.keySet()) {
-                            List<String> values = responseHeaders.get(key);
-                            for (String value : values) {
-                                if (null != key) {
-                                    log.debug("Header: '" + key + "' => '" + value + "'");
-                                } else{
-                                	log.debug("Header value: '" + value + "'");
-                                }
-                            }
-                        }
-                    }
-                    
-                    if (responseCode >= 200 && responseCode < 300) {
-                    	break;
-                    } else {
-                        if (responseCode < INTERNAL_SERVER_ERROR || retriedCount == retryCount) {
-                            throw new FitbitAPIException(getCause(responseCode), res);
-                        }
-                        // will retry if the status code is INTERNAL_SERVER_ERROR
-                    }
-                } finally {
-                    try {
-                        osw.close();
-                    } catch (Exception ignore) {
-                    }
+                Response res = getTransport().execute(prepareRequest(method, url, postParams, token, authenticated));
+                int responseCode = res.getStatusCode();
+                if (responseCode >= 200 && responseCode < 300) {
+                    return res;
                 }
+                // reads the body, which releases the connection
+                failure = new FitbitAPIException(getCause(responseCode), res);
             } catch (IOException ioe) {
                 // connection timeout or read timeout
-                if (retriedCount == retryCount) {
-                    throw new FitbitAPIException(ioe.getMessage(), ioe, responseCode);
-                }
+                failure = new FitbitAPIException(ioe.getMessage(), ioe, -1);
             }
+
+            long delay = isRetriesDeferred() ? -1 : policy.getRetryDelayMillis(attempt, failure, System.currentTimeMillis() - start);
+            if (delay < 0) {
+                throw failure;
+            }
+            log.debug("Sleeping " + delay + " millisecs for retry " + attempt + " after: " + failure.getMessage());
             try {
-            	if (log.isDebugEnabled() && null!=res) {
-                    res.asString();
-                }
-                log.debug("Sleeping " + retryIntervalMillis + " millisecs for next retry.");
-                Thread.sleep(retryIntervalMillis);
-            } catch (InterruptedException ignore) {
-                //nothing to do
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
             }
         }
-        return res;
+    }
+
+    /**
+     * Signs and encodes a request for the transport.
+     */
+    private HttpRequest prepareRequest(HttpMethod method, String url, PostParameter[] postParams,
+                                       OAuthToken token, boolean authenticated) throws UnsupportedEncodingException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        setHeaders(method, url, postParams, headers, token, authenticated);
+        byte[] body = null;
+        if (null != postParams) {
+            headers.put("Content-Type", "application/x-www-form-urlencoded");
+            String postParam = encodeParameters(postParams);
+            log.debug("HTTP Post Params: " + postParam);
+            body = postParam.getBytes("UTF-8");
+            headers.put("Content-Length", Integer.toString(body.length));
+        }
+        return new HttpRequest(method.name(), url, headers, body,
+                isJDK14orEarlier ? 0 : connectionTimeout,
+                isJDK14orEarlier ? 0 : readTimeout,
+                getProxy());
     }
 
     public static String encodeParameters(PostParameter[] postParams) {
@@ -506,10 +573,11 @@ public class HttpClient implements Serializable {
     /**
      * sets HTTP headers
      *
-     * @param connection    HttpURLConnection
+     * @param headers       request headers to fill in
+     * @param token         token to sign the request with, may be null
      * @param authenticated boolean
      */
-    private void setHeaders(HttpMethod method, String url, PostParameter[] params, HttpURLConnection connection, boolean authenticated) {
+    private void setHeaders(HttpMethod method, String url, PostParameter[] params, Map<String, String> headers, OAuthToken token, boolean authenticated) {
     	if (log.isDebugEnabled()) {
     		log.debug("Request: HTTP " + method.toString() + ' ' + url);
     	}
@@ -520,7 +588,7 @@ public class HttpClient implements Serializable {
             String authorization;
             if (null != oauth) {
                 // use OAuth
-                authorization = oauth.generateAuthorizationHeader(method.toString(), url, params, oauthToken);
+                authorization = oauth.generateAuthorizationHeader(method.toString(), url, params, token);
             } else if (null != basic) {
                 // use Basic Auth
                 authorization = basic;
@@ -528,11 +596,11 @@ public class HttpClient implements Serializable {
                 throw new IllegalStateException(
                         "Neither user ID/password combination nor OAuth consumer key/secret combination supplied");
             }
-            connection.addRequestProperty("Authorization", authorization);
+            headers.put("Authorization", authorization);
             log.debug("Authorization: " + authorization);
         }
         for (String key : requestHeaders.keySet()) {
-            connection.addRequestProperty(key, requestHeaders.get(key));
+            headers.put(key, requestHeaders.get(key));
             log.debug("Request Header: '" + key + "' => '" + requestHeaders.get(key) + "'");
         }
     }
@@ -549,8 +617,10 @@ public class HttpClient implements Serializable {
         requestHeaders.remove(name);
     }
 
-    private HttpURLConnection getConnection(String url) throws IOException {
-        HttpURLConnection con;
+    /**
+     * @return the configured HTTP proxy, null for direct connections
+     */
+    private Proxy getProxy() {
         if (proxyHost != null && !proxyHost.equals("")) {
             if (proxyAuthUser != null && !proxyAuthUser.equals("")) {
                 log.debug("Proxy AuthUser: " + proxyAuthUser);
@@ -570,20 +640,61 @@ public class HttpClient implements Serializable {
                     }
                 });
             }
-            final Proxy proxy = new Proxy(Type.HTTP, InetSocketAddress
+            return new Proxy(Type.HTTP, InetSocketAddress
                     .createUnresolved(proxyHost, proxyPort));
-            log.debug("Opening proxied connection (" + proxyHost + ':' + proxyPort + ')');
-            con = (HttpURLConnection) new URL(url).openConnection(proxy);
-        } else {
-            con = (HttpURLConnection) new URL(url).openConnection();
         }
-        if (connectionTimeout > 0 && !isJDK14orEarlier) {
-            con.setConnectTimeout(connectionTimeout);
+        return null;
+    }
+
+    /**
+     * Sets the transport used by this client. Transports are thread safe and meant to be shared between clients.
+     *
+     * @param transport transport, null to go back to the configured default
+     */
+    public void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the transport used by this client
+     */
+    public HttpTransport getTransport() {
+        HttpTransport result = transport;
+        if (null == result) {
+            result = getDefaultTransport();
         }
-        if (readTimeout > 0 && !isJDK14orEarlier) {
-            con.setReadTimeout(readTimeout);
+        return result;
+    }
+
+    /**
+     * Returns the JVM wide transport selected by -DfitbitAPIClient.http.transport ("urlconnection", the default, or "pooled").
+     *
+     * @return shared default transport
+     */
+    public static HttpTransport getDefaultTransport() {
+        return DefaultTransportHolder.TRANSPORT;
+    }
+
+    /**
+     * Creates the default transport on first use, without locking on later ones.
+     */
+    private static class DefaultTransportHolder {
+        static final HttpTransport TRANSPORT = createDefaultTransport();
+
+        private static HttpTransport createDefaultTransport() {
+            HttpTransport transport;
+            if (POOLED_TRANSPORT.equals(Configuration.getTransport())) {
+                transport = new PooledHttpTransport(
+                        Configuration.getPoolMaxTotalConnections(),
+                        Configuration.getPoolMaxConnectionsPerHost(),
+                        Configuration.getPoolIdleTimeoutSecs() * 1000L
+                );
+            } else {
+                transport = new URLConnectionTransport();
+            }
+            log.info("Using HTTP transport " + transport);
+            return transport;
         }
-        return con;
     }
 
     @Override
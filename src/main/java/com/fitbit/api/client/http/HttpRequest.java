@@ -0,0 +1,79 @@
+package com.fitbit.api.client.http;
+
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A fully prepared (signed, encoded) HTTP request handed to a {@link HttpTransport}.
+ */
+public class HttpRequest {
+
+    private final String method;
+    private final String url;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final Proxy proxy;
+
+    public HttpRequest(String method, String url, Map<String, String> headers, byte[] body,
+                       int connectionTimeout, int readTimeout, Proxy proxy) {
+        this.method = method;
+        this.url = url;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+        this.body = body;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.proxy = proxy;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return encoded request entity, null if the request has none
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return connect timeout in milliseconds, 0 or less for the transport default
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * @return read timeout in milliseconds, 0 or less for the transport default
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @return HTTP proxy to go through, null for a direct connection
+     */
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRequest{" +
+                "method='" + method + '\'' +
+                ", url='" + url + '\'' +
+                '}';
+    }
+}
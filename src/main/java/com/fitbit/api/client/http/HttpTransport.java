@@ -0,0 +1,28 @@
+package com.fitbit.api.client.http;
+
+import java.io.IOException;
+
+/**
+ * Sends prepared requests over the wire on behalf of {@link HttpClient}.
+ * Implementations must be thread safe; a single instance is normally shared by every client in the JVM.
+ *
+ * @see URLConnectionTransport
+ * @see PooledHttpTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * Executes the request and returns the response with its body still unread.
+     * The connection is released once the body has been consumed or {@link Response#disconnect()} is called.
+     *
+     * @param request request to send
+     * @return the response, whatever its status code
+     * @throws IOException on connection or read failures
+     */
+    Response execute(HttpRequest request) throws IOException;
+
+    /**
+     * Closes any connections held by this transport.
+     */
+    void shutdown();
+}
@@ -0,0 +1,19 @@
+package com.fitbit.api.client.http;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Builds a value by pulling tokens from a response body, see {@link Response#parseJSON(JSONStreamParser)}.
+ *
+ * @param <T> type of the parsed value
+ */
+public interface JSONStreamParser<T> {
+
+    /**
+     * @param tokener tokener positioned at the start of the body
+     * @return the parsed value
+     * @throws JSONException if the body is not what the parser expects
+     */
+    T parse(JSONTokener tokener) throws JSONException;
+}
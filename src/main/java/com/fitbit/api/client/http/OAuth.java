@@ -34,14 +34,15 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -53,9 +54,15 @@ public class OAuth implements Serializable {
 
     private static final String HMAC_SHA1 = "HmacSHA1";
     private static final PostParameter OAUTH_SIGNATURE_METHOD = new PostParameter("oauth_signature_method", "HMAC-SHA1");
+    private static final PostParameter OAUTH_VERSION = new PostParameter("oauth_version", "1.0");
+    private static final String UTF_8 = "UTF-8";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int TYPICAL_BASE_STRING_LENGTH = 256;
+    private static final int MAC_CACHE_SIZE = 64;
     static final long serialVersionUID = -4368426677157998618L;
     private String consumerKey = "";
     private String consumerSecret;
+    private transient String encodedConsumerSecret;
     private static final PostParameter[] EMPTY_POST_PARAMETER_ARRAY = new PostParameter[0];
 
     public OAuth(String consumerKey, String consumerSecret) {
@@ -67,29 +74,51 @@ public class OAuth implements Serializable {
         if (null == params) {
             params = EMPTY_POST_PARAMETER_ARRAY;
         }
-        List<PostParameter> oauthHeaderParams = new ArrayList<PostParameter>(5);
-        oauthHeaderParams.add(new PostParameter("oauth_consumer_key", consumerKey));
-        oauthHeaderParams.add(OAUTH_SIGNATURE_METHOD);
-        oauthHeaderParams.add(new PostParameter("oauth_timestamp", timestamp));
-        oauthHeaderParams.add(new PostParameter("oauth_nonce", nonce));
-        oauthHeaderParams.add(new PostParameter("oauth_version", "1.0"));
+        PostParameter[] oauthHeaderParams = new PostParameter[null == otoken ? 6 : 7];
+        int headerCount = 0;
+        oauthHeaderParams[headerCount++] = new PostParameter("oauth_consumer_key", consumerKey);
+        oauthHeaderParams[headerCount++] = OAUTH_SIGNATURE_METHOD;
+        oauthHeaderParams[headerCount++] = new PostParameter("oauth_timestamp", timestamp);
+        oauthHeaderParams[headerCount++] = new PostParameter("oauth_nonce", nonce);
+        oauthHeaderParams[headerCount++] = OAUTH_VERSION;
         if (null != otoken) {
-            oauthHeaderParams.add(new PostParameter("oauth_token", otoken.getToken()));
+            oauthHeaderParams[headerCount++] = new PostParameter("oauth_token", otoken.getToken());
         }
-        List<PostParameter> signatureBaseParams = new ArrayList<PostParameter>(oauthHeaderParams.size() + params.length);
-        signatureBaseParams.addAll(oauthHeaderParams);
-        signatureBaseParams.addAll(toParamList(params));
-        parseGetParameters(url, signatureBaseParams);
-        StringBuffer base = new StringBuffer(method).append('&')
-                .append(encode(constructRequestURL(url))).append('&');
-        base.append(encode(normalizeRequestParameters(signatureBaseParams)));
+        List<PostParameter> getParams = parseGetParameters(url);
+        PostParameter[] signatureBaseParams = new PostParameter[headerCount + params.length + getParams.size()];
+        System.arraycopy(oauthHeaderParams, 0, signatureBaseParams, 0, headerCount);
+        System.arraycopy(params, 0, signatureBaseParams, headerCount, params.length);
+        for (int i = 0; i < getParams.size(); i++) {
+            signatureBaseParams[headerCount + params.length + i] = getParams.get(i);
+        }
+        Arrays.sort(signatureBaseParams);
+
+        // the normalized parameters are encoded once more as part of the base string
+        StringBuilder normalized = new StringBuilder(TYPICAL_BASE_STRING_LENGTH);
+        appendParameters(normalized, signatureBaseParams, signatureBaseParams.length, "&", false);
+        StringBuilder base = new StringBuilder(TYPICAL_BASE_STRING_LENGTH * 2).append(method).append('&');
+        appendEncoded(base, constructRequestURL(url));
+        base.append('&');
+        appendEncoded(base, normalized);
         String oauthBaseString = base.toString();
         log("OAuth base string:", oauthBaseString);
         String signature = generateSignature(oauthBaseString, otoken);
         log("OAuth signature:", signature);
 
-        oauthHeaderParams.add(new PostParameter("oauth_signature", signature));
-        return "OAuth " + encodeParameters(oauthHeaderParams, ",", true);
+        oauthHeaderParams[headerCount++] = new PostParameter("oauth_signature", signature);
+        StringBuilder header = new StringBuilder(TYPICAL_BASE_STRING_LENGTH).append("OAuth ");
+        appendParameters(header, oauthHeaderParams, headerCount, ",", true);
+        return header.toString();
+    }
+
+    private static List<PostParameter> parseGetParameters(String url) {
+        int queryStart = url.indexOf("?");
+        if (-1 == queryStart) {
+            return Collections.emptyList();
+        }
+        List<PostParameter> signatureBaseParams = new ArrayList<PostParameter>();
+        parseGetParameters(url, signatureBaseParams);
+        return signatureBaseParams;
     }
 
     private static void parseGetParameters(String url, List<PostParameter> signatureBaseParams) {
@@ -117,7 +146,30 @@ public class OAuth implements Serializable {
 
     }
 
-    private static Random RAND = new Random();
+    /**
+     * One generator per thread, so that concurrent requests do not contend for the seed of a shared one.
+     */
+    private static final ThreadLocal<Random> RAND = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * Initialized HMAC-SHA1 instances of the current thread by signing key, least recently used dropped first.
+     */
+    private static final ThreadLocal<Map<String, Mac>> MACS = new ThreadLocal<Map<String, Mac>>() {
+        @Override
+        protected Map<String, Mac> initialValue() {
+            return new LinkedHashMap<String, Mac>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Mac> eldest) {
+                    return size() > MAC_CACHE_SIZE;
+                }
+            };
+        }
+    };
 
     /**
      * @return
@@ -125,7 +177,7 @@ public class OAuth implements Serializable {
      */
     /*package*/ String generateAuthorizationHeader(String method, String url, PostParameter[] params, OAuthToken token) {
         long timestamp = System.currentTimeMillis() / 1000;
-        long nonce = timestamp + RAND.nextInt();
+        long nonce = timestamp + RAND.get().nextInt();
         return generateAuthorizationHeader(method, url, params, String.valueOf(nonce), String.valueOf(timestamp), token);
     }
 
@@ -138,27 +190,33 @@ public class OAuth implements Serializable {
      * @see <a href="http://oauth.net/core/1.0/#rfc.section.9.2.1">OAuth Core - 9.2.1.  Generating Signature</a>
      */
     public String generateSignature(String data, OAuthToken token) {
+        String signingKey;
+        if (null == token) {
+            signingKey = getEncodedConsumerSecret() + '&';
+        } else {
+            signingKey = token.getSigningKey();
+            if (null == signingKey) {
+                signingKey = getEncodedConsumerSecret() + '&' + encode(token.getTokenSecret());
+                token.setSigningKey(signingKey);
+            }
+        }
         byte[] byteHMAC = null;
         try {
-            Mac mac = Mac.getInstance(HMAC_SHA1);
-            SecretKeySpec spec;
-            if (null == token) {
-                String oauthSignature = encode(consumerSecret) + '&';
-                spec = new SecretKeySpec(oauthSignature.getBytes(), HMAC_SHA1);
-            } else {
-                if (null == token.getSecretKeySpec()) {
-                    String oauthSignature = encode(consumerSecret) + '&' + encode(token.getTokenSecret());
-                    spec = new SecretKeySpec(oauthSignature.getBytes(), HMAC_SHA1);
-                    token.setSecretKeySpec(spec);
-                }
-                spec = token.getSecretKeySpec();
+            Map<String, Mac> macs = MACS.get();
+            Mac mac = macs.get(signingKey);
+            if (null == mac) {
+                mac = Mac.getInstance(HMAC_SHA1);
+                mac.init(new SecretKeySpec(signingKey.getBytes(UTF_8), HMAC_SHA1));
+                macs.put(signingKey, mac);
             }
-            mac.init(spec);
-            byteHMAC = mac.doFinal(data.getBytes());
+            // doFinal resets the instance for the next signature with the same key
+            byteHMAC = mac.doFinal(data.getBytes(UTF_8));
         } catch (InvalidKeyException e) {
             e.printStackTrace();
         } catch (NoSuchAlgorithmException ignore) {
             // should never happen
+        } catch (UnsupportedEncodingException ignore) {
+            // should never happen
         }
         return new BASE64Encoder().encode(byteHMAC);
     }
@@ -218,27 +276,32 @@ public class OAuth implements Serializable {
     }
 
     public static String encodeParameters(List<PostParameter> postParams, String splitter, boolean quot) {
-        StringBuffer buf = new StringBuffer();
-        for (PostParameter param : postParams) {
-            if (buf.length() != 0) {
+        StringBuilder buf = new StringBuilder();
+        appendParameters(buf, postParams.toArray(new PostParameter[postParams.size()]), postParams.size(), splitter, quot);
+        return buf.toString();
+    }
+
+    private static void appendParameters(StringBuilder buf, PostParameter[] postParams, int count, String splitter, boolean quot) {
+        for (int i = 0; i < count; i++) {
+            PostParameter param = postParams[i];
+            if (i > 0) {
                 if (quot) {
                     buf.append('\"');
                 }
                 buf.append(splitter);
             }
-            buf.append(encode(param.name)).append('=');
+            appendEncoded(buf, param.name);
+            buf.append('=');
             if (quot) {
                 buf.append('\"');
             }
-            buf.append(
-                    encode(param.value));
+            appendEncoded(buf, param.value);
         }
-        if (buf.length() != 0) {
+        if (count > 0) {
             if (quot) {
                 buf.append('\"');
             }
         }
-        return buf.toString();
     }
 
     /**
@@ -249,28 +312,50 @@ public class OAuth implements Serializable {
      * @see <a href="http://tools.ietf.org/html/rfc3986#section-2.1">RFC 3986 - Uniform Resource Identifier (URI): Generic Syntax - 2.1. Percent-Encoding</a>
      */
     public static String encode(String value) {
-        String encoded = null;
-        try {
-            encoded = URLEncoder.encode(value, "UTF-8");
-        } catch (UnsupportedEncodingException ignore) {
-        }
-        StringBuffer buf = new StringBuffer(encoded.length());
-        char focus;
-        for (int i = 0; i < encoded.length(); i++) {
-            focus = encoded.charAt(i);
-            if (focus == '*') {
-                buf.append("%2A");
-            } else if (focus == '+') {
-                buf.append("%20");
-            } else if (focus == '%' && i + 1 < encoded.length()
-                    && encoded.charAt(i + 1) == '7' && encoded.charAt(i + 2) == 'E') {
-                buf.append('~');
-                i += 2;
+        StringBuilder buf = new StringBuilder(value.length() + 16);
+        appendEncoded(buf, value);
+        return buf.toString();
+    }
+
+    /**
+     * Percent-encodes the UTF-8 bytes of all but the unreserved characters of RFC 3986, as {@link #encode(String)}.
+     */
+    private static void appendEncoded(StringBuilder buf, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (isUnreserved(c)) {
+                    buf.append(c);
+                } else {
+                    appendEscaped(buf, c);
+                }
+            } else if (c < 0x800) {
+                appendEscaped(buf, 0xC0 | (c >> 6));
+                appendEscaped(buf, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendEscaped(buf, 0xF0 | (codePoint >> 18));
+                appendEscaped(buf, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEscaped(buf, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(buf, 0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, replaced like URLEncoder does
+                appendEscaped(buf, '?');
             } else {
-                buf.append(focus);
+                appendEscaped(buf, 0xE0 | (c >> 12));
+                appendEscaped(buf, 0x80 | ((c >> 6) & 0x3F));
+                appendEscaped(buf, 0x80 | (c & 0x3F));
             }
         }
-        return buf.toString();
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    private static void appendEscaped(StringBuilder buf, int b) {
+        buf.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
     }
 
     /**
@@ -317,6 +402,16 @@ public class OAuth implements Serializable {
 
     public void setConsumerSecret(String consumerSecret) {
         this.consumerSecret = null != consumerSecret ? consumerSecret : "";
+        encodedConsumerSecret = null;
+    }
+
+    private String getEncodedConsumerSecret() {
+        String encoded = encodedConsumerSecret;
+        if (null == encoded) {
+            encoded = encode(consumerSecret);
+            encodedConsumerSecret = encoded;
+        }
+        return encoded;
     }
 
     private static void log(String message) {
@@ -28,7 +28,6 @@ package com.fitbit.api.client.http;
 
 import com.fitbit.api.FitbitAPIException;
 
-import javax.crypto.spec.SecretKeySpec;
 import java.io.Serializable;
 
 abstract class OAuthToken implements Serializable {
@@ -36,7 +35,7 @@ abstract class OAuthToken implements Serializable {
 	private String token;
     private String tokenSecret;
 
-    private transient SecretKeySpec secretKeySpec;
+    private transient String signingKey;
     String[] responseStr;
 
     public OAuthToken(String token, String tokenSecret) {
@@ -61,12 +60,12 @@ abstract class OAuthToken implements Serializable {
         return tokenSecret;
     }
 
-    /*package*/ void setSecretKeySpec(SecretKeySpec secretKeySpec) {
-        this.secretKeySpec = secretKeySpec;
+    /*package*/ void setSigningKey(String signingKey) {
+        this.signingKey = signingKey;
     }
 
-    /*package*/ SecretKeySpec getSecretKeySpec() {
-        return secretKeySpec;
+    /*package*/ String getSigningKey() {
+        return signingKey;
     }
 
     public String getParameter(String parameter) {
@@ -87,8 +86,6 @@ abstract class OAuthToken implements Serializable {
 
         OAuthToken that = (OAuthToken) o;
 
-        if (secretKeySpec != null ? !secretKeySpec.equals(that.secretKeySpec) : that.secretKeySpec != null)
-            return false;
         if (!token.equals(that.token)) return false;
         if (!tokenSecret.equals(that.tokenSecret)) return false;
 
@@ -99,7 +96,6 @@ abstract class OAuthToken implements Serializable {
     public int hashCode() {
         int result = token.hashCode();
         result = 31 * result + tokenSecret.hashCode();
-        result = 31 * result + (secretKeySpec != null ? secretKeySpec.hashCode() : 0);
         return result;
     }
 
@@ -108,7 +104,6 @@ abstract class OAuthToken implements Serializable {
         return "OAuthToken{" +
                 "token='" + token + '\'' +
                 ", tokenSecret='" + tokenSecret + '\'' +
-                ", secretKeySpec=" + secretKeySpec +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+package com.fitbit.api.client.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive transport backed by a thread safe pool of persistent connections (Apache HttpClient).
+ * <p/>
+ * Connections are limited in total and per host. Idle connections are evicted opportunistically from the request path,
+ * so no background thread is needed (App Engine frontends do not allow them).
+ * Proxy authentication is not supported by this transport; use {@link URLConnectionTransport} behind an authenticating proxy.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final Log log = LogFactory.getLog(PooledHttpTransport.class);
+
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 10000;
+
+    private final ThreadSafeClientConnManager connectionManager;
+    private final DefaultHttpClient client;
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMillis;
+
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong evictionRuns = new AtomicLong();
+
+    /**
+     * @param maxTotalConnections upper bound of open connections
+     * @param maxConnectionsPerHost upper bound of open connections to a single host
+     * @param idleTimeoutMillis connections unused for longer than this are closed
+     */
+    public PooledHttpTransport(int maxTotalConnections, int maxConnectionsPerHost, long idleTimeoutMillis) {
+        this(maxTotalConnections, maxConnectionsPerHost, idleTimeoutMillis, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxTotalConnections upper bound of open connections
+     * @param maxConnectionsPerHost upper bound of open connections to a single host
+     * @param idleTimeoutMillis connections unused for longer than this are closed
+     * @param acquireTimeoutMillis longest wait for a free pooled connection, so a leaked response fails later requests
+     * instead of blocking them forever
+     */
+    public PooledHttpTransport(int maxTotalConnections, int maxConnectionsPerHost, long idleTimeoutMillis, long acquireTimeoutMillis) {
+        if (maxTotalConnections < 1 || maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Connection limits must be positive.");
+        }
+        if (acquireTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Connection acquire timeout must be positive.");
+        }
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setTimeout(params, acquireTimeoutMillis);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        client = new DefaultHttpClient(connectionManager, params);
+        // HttpClient has its own retry policy
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+    }
+
+    @Override
+    public Response execute(HttpRequest request) throws IOException {
+        evictIdleConnectionsIfDue();
+        requestCount.incrementAndGet();
+
+        HttpRequestBase method = createMethod(request);
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            // the entity sets its own length
+            if (!"Content-Length".equalsIgnoreCase(header.getKey())) {
+                method.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        HttpParams params = method.getParams();
+        if (request.getConnectionTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(params, request.getConnectionTimeout());
+        }
+        if (request.getReadTimeout() > 0) {
+            HttpConnectionParams.setSoTimeout(params, request.getReadTimeout());
+        }
+        if (null != request.getProxy() && request.getProxy().address() instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) request.getProxy().address();
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(address.getHostName(), address.getPort()));
+        }
+
+        try {
+            return new PooledResponse(method, client.execute(method));
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            method.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            failureCount.incrementAndGet();
+            method.abort();
+            throw e;
+        }
+    }
+
+    protected HttpRequestBase createMethod(HttpRequest request) {
+        URI uri = URI.create(request.getUrl());
+        String name = request.getMethod();
+        if ("GET".equals(name)) {
+            return new HttpGet(uri);
+        } else if ("DELETE".equals(name)) {
+            return new HttpDelete(uri);
+        }
+        HttpEntityEnclosingRequestBase method;
+        if ("POST".equals(name)) {
+            method = new HttpPost(uri);
+        } else if ("PUT".equals(name)) {
+            method = new HttpPut(uri);
+        } else {
+            throw new IllegalArgumentException("Unsupported HTTP method: " + name);
+        }
+        if (null != request.getBody()) {
+            method.setEntity(new ByteArrayEntity(request.getBody()));
+        }
+        return method;
+    }
+
+    /**
+     * Closes expired connections and those idle for longer than the idle timeout, at most twice per timeout period.
+     */
+    public void evictIdleConnectionsIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastEviction.get();
+        if (now - last >= idleTimeoutMillis / 2 && lastEviction.compareAndSet(last, now)) {
+            evictIdleConnections();
+        }
+    }
+
+    public void evictIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        evictionRuns.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Evicted idle connections, " + getConnectionsInPool() + " left in pool");
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    /* ****************************** metrics ****************************** */
+
+    /**
+     * @return connections currently open, leased or idle
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * @param host target host, e.g. api.fitbit.com
+     * @param secure whether the connections use https
+     * @return connections currently open to the given host
+     */
+    public int getConnectionsInPool(String host, boolean secure) {
+        return connectionManager.getConnectionsInPool(new HttpRoute(new HttpHost(host, secure ? 443 : 80, secure ? "https" : "http"), null, secure));
+    }
+
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getEvictionRuns() {
+        return evictionRuns.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledHttpTransport{" +
+                "connectionsInPool=" + getConnectionsInPool() +
+                ", maxTotalConnections=" + maxTotalConnections +
+                ", maxConnectionsPerHost=" + maxConnectionsPerHost +
+                ", requestCount=" + requestCount +
+                ", failureCount=" + failureCount +
+                ", evictionRuns=" + evictionRuns +
+                '}';
+    }
+
+    /**
+     * Response whose connection goes back to the pool as soon as its body stream is closed or fully read.
+     */
+    private static class PooledResponse extends Response {
+        private final HttpRequestBase method;
+        private final HttpResponse response;
+
+        PooledResponse(HttpRequestBase method, HttpResponse response) throws IOException {
+            super(response.getStatusLine().getStatusCode(), content(response), contentEncoding(response));
+            this.method = method;
+            this.response = response;
+        }
+
+        private static InputStream content(HttpResponse response) throws IOException {
+            HttpEntity entity = response.getEntity();
+            return null == entity ? null : entity.getContent();
+        }
+
+        private static String contentEncoding(HttpResponse response) {
+            HttpEntity entity = response.getEntity();
+            if (null == entity || null == entity.getContentEncoding()) {
+                return null;
+            }
+            return entity.getContentEncoding().getValue();
+        }
+
+        @Override
+        public String getResponseHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return null == header ? null : header.getValue();
+        }
+
+        @Override
+        public void disconnect() {
+            try {
+                HttpEntity entity = response.getEntity();
+                if (null != entity) {
+                    // releases the connection back to the pool
+                    entity.consumeContent();
+                }
+            } catch (IOException e) {
+                method.abort();
+            }
+        }
+    }
+}
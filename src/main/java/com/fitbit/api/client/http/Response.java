@@ -34,6 +34,7 @@ import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -41,11 +42,16 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.util.regex.Matcher;
@@ -74,9 +80,25 @@ public class Response {
                 }
             };
 
+    private static final JSONStreamParser<JSONObject> JSON_OBJECT_PARSER = new JSONStreamParser<JSONObject>() {
+        @Override
+        public JSONObject parse(JSONTokener tokener) throws JSONException {
+            return new JSONObject(tokener);
+        }
+    };
+
+    private static final JSONStreamParser<JSONArray> JSON_ARRAY_PARSER = new JSONStreamParser<JSONArray>() {
+        @Override
+        public JSONArray parse(JSONTokener tokener) throws JSONException {
+            return new JSONArray(tokener);
+        }
+    };
+
     protected int statusCode;
     private Document responseAsDocument;
     private String responseAsString;
+    /** value parsed straight from the stream, kept to answer a later asString() */
+    private Object responseAsJSON;
     protected InputStream is;
     private HttpURLConnection con;
     private boolean streamConsumed;
@@ -95,6 +117,23 @@ public class Response {
         }
     }
 
+    /**
+     * Used by {@link HttpTransport} implementations that are not backed by an HttpURLConnection.
+     * Such subclasses should override {@link #getResponseHeader(String)} and {@link #disconnect()}.
+     *
+     * @param statusCode HTTP status code
+     * @param is response body, may be null
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @throws IOException
+     */
+    protected Response(int statusCode, InputStream is, String contentEncoding) throws IOException {
+        this.statusCode = statusCode;
+        this.is = is;
+        if (null != is && "gzip".equals(contentEncoding)) {
+            this.is = new GZIPInputStream(is);
+        }
+    }
+
     // for test purposes
     /*package*/
 
@@ -128,12 +167,23 @@ public class Response {
 
     /**
      * Returns the response body as string.<br>
-     * Disconnects the internal HttpURLConnection silently.
+     * Closes the response stream, which hands the underlying connection back for keep-alive reuse.
      *
-     * @return response body
+     * @return response body, null if there is none or a failed parse has already consumed it
      * @throws FitbitAPIException
      */
     public String asString() throws FitbitAPIException {
+        if (null == responseAsString && streamConsumed) {
+            // the body was parsed without buffering it, render the parsed value instead
+            if (null != responseAsJSON) {
+                responseAsString = responseAsJSON.toString();
+            } else if (null != responseAsDocument) {
+                responseAsString = documentToString(responseAsDocument);
+            } else {
+                // a stream parse failed part way, the body is gone
+                return null;
+            }
+        }
         if (null == responseAsString) {
             BufferedReader br;
             try {
@@ -153,7 +203,6 @@ public class Response {
                 }
                 log.debug("Response string: " + responseAsString);
                 stream.close();
-                disconnect();
                 streamConsumed = true;
             } catch (NullPointerException npe) {
                 // don't remember in which case npe can be thrown
@@ -167,7 +216,7 @@ public class Response {
 
     /**
      * Returns the response body as org.w3c.dom.Document.<br>
-     * Disconnects the internal HttpURLConnection silently.
+     * Parses straight from the response stream unless the body has already been read.
      *
      * @return response body as org.w3c.dom.Document
      * @throws FitbitAPIException
@@ -175,9 +224,21 @@ public class Response {
     public Document asDocument() throws FitbitAPIException {
         if (null == responseAsDocument) {
             try {
-                // it should be faster to read the inputstream directly.
-                // but makes it difficult to troubleshoot
-                responseAsDocument = builders.get().parse(new ByteArrayInputStream(asString().getBytes("UTF-8")));
+                if (isStreamParsingPossible()) {
+                    InputStream stream = asStream();
+                    streamConsumed = true;
+                    try {
+                        responseAsDocument = builders.get().parse(stream);
+                    } finally {
+                        stream.close();
+                    }
+                } else {
+                    String body = asString();
+                    if (null == body) {
+                        throw new FitbitAPIException("Response has no body.");
+                    }
+                    responseAsDocument = builders.get().parse(new ByteArrayInputStream(body.getBytes("UTF-8")));
+                }
             } catch (SAXException saxe) {
                 throw new FitbitAPIException("The response body was not well-formed:\n" + responseAsString, saxe);
             } catch (IOException ioe) {
@@ -189,31 +250,86 @@ public class Response {
 
     /**
      * Returns the response body as org.json.JSONObject.<br>
-     * Disconnects the internal HttpURLConnection silently.
+     * Parses straight from the response stream unless the body has already been read; later calls return the same
+     * object.
      *
      * @return response body as org.json.JSONObject
      * @throws FitbitAPIException
      */
     public JSONObject asJSONObject() throws FitbitAPIException {
-        try {
-            return new JSONObject(asString());
-        } catch (JSONException jsone) {
-            throw new FitbitAPIException(jsone.getMessage() + ':' + responseAsString, jsone);
+        if (responseAsJSON instanceof JSONObject) {
+            return (JSONObject) responseAsJSON;
         }
+        return parseJSON(JSON_OBJECT_PARSER);
     }
 
     /**
      * Returns the response body as org.json.JSONArray.<br>
-     * Disconnects the internal HttpURLConnection silently.
+     * Parses straight from the response stream unless the body has already been read; later calls return the same
+     * array.
      *
      * @return response body as org.json.JSONArray
      * @throws FitbitAPIException
      */
     public JSONArray asJSONArray() throws FitbitAPIException {
+        if (responseAsJSON instanceof JSONArray) {
+            return (JSONArray) responseAsJSON;
+        }
+        return parseJSON(JSON_ARRAY_PARSER);
+    }
+
+    /**
+     * Feeds the response body to a pull parser.<br>
+     * The (decompressed) stream goes straight into the tokenizer, so the body is never held as a String. With debug
+     * logging, on Dalvik, or once the body has been read, the parser is fed from the buffered body instead.
+     * Closes the response stream, which hands the underlying connection back for keep-alive reuse.
+     *
+     * @param parser builds the result from the tokens
+     * @return value returned by the parser
+     * @throws FitbitAPIException if the body can not be read or is not what the parser expects
+     */
+    public <T> T parseJSON(JSONStreamParser<T> parser) throws FitbitAPIException {
+        if (!isStreamParsingPossible()) {
+            String body = asString();
+            if (null == body) {
+                throw new FitbitAPIException("Response has no body.");
+            }
+            try {
+                return parser.parse(new JSONTokener(body));
+            } catch (JSONException jsone) {
+                throw new FitbitAPIException(jsone.getMessage() + ':' + body, jsone);
+            }
+        }
+
+        InputStream stream = asStream();
+        streamConsumed = true;
         try {
-            return new JSONArray(asString());
+            T result = parser.parse(new JSONTokener(asReader()));
+            responseAsJSON = result;
+            return result;
         } catch (JSONException jsone) {
-            throw new FitbitAPIException(jsone.getMessage() + ':' + responseAsString, jsone);
+            throw new FitbitAPIException(jsone.getMessage(), jsone);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException ignore) {
+                // the value has been parsed
+            }
+        }
+    }
+
+    private boolean isStreamParsingPossible() {
+        return !streamConsumed && null == responseAsString && null != is
+                && !log.isDebugEnabled() && !Configuration.isDalvik();
+    }
+
+    private static String documentToString(Document document) throws FitbitAPIException {
+        try {
+            StringWriter writer = new StringWriter();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new FitbitAPIException("Unable to render response document: " + e, e);
         }
     }
 
@@ -226,7 +342,29 @@ public class Response {
     }
 
     public void disconnect() {
-        con.disconnect();
+        if (null != con) {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Reads what is left of an unread body and closes the stream, which hands the underlying connection back for
+     * reuse. Disconnects instead if the body can not be read. Meant for callers that only need the status code.
+     */
+    public void release() {
+        if (streamConsumed || null != responseAsString || null == is) {
+            return;
+        }
+        streamConsumed = true;
+        try {
+            byte[] buf = new byte[1024];
+            while (is.read(buf) >= 0) {
+                // discard
+            }
+            is.close();
+        } catch (IOException ioe) {
+            disconnect();
+        }
     }
 
     private static Pattern escaped = Pattern.compile("&#([0-9]{3,5});");
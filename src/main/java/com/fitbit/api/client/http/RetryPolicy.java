@@ -0,0 +1,17 @@
+package com.fitbit.api.client.http;
+
+import com.fitbit.api.FitbitAPIException;
+
+/**
+ * Decides whether and when a failed request is tried again.
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param attempt number of attempts made so far, starting at 1
+     * @param failure failure of the last attempt; I/O errors have an {@link java.io.IOException} cause and status -1
+     * @param elapsedMillis time since the first attempt was started
+     * @return milliseconds to wait before the next attempt, negative to give up and throw the failure
+     */
+    long getRetryDelayMillis(int attempt, FitbitAPIException failure, long elapsedMillis);
+}
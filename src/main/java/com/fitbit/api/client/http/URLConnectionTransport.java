@@ -0,0 +1,78 @@
+package com.fitbit.api.client.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default transport built on {@link HttpURLConnection}. Connection reuse is left to the JDK keep-alive cache, which
+ * recycles a socket once its response stream has been read to the end and closed.
+ */
+public class URLConnectionTransport implements HttpTransport {
+
+    private static final Log log = LogFactory.getLog(URLConnectionTransport.class);
+
+    @Override
+    public Response execute(HttpRequest request) throws IOException {
+        HttpURLConnection con = openConnection(request);
+        con.setDoInput(true);
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            con.addRequestProperty(header.getKey(), header.getValue());
+        }
+        con.setRequestMethod(request.getMethod());
+        if (null != request.getBody()) {
+            con.setDoOutput(true);
+            OutputStream osw = con.getOutputStream();
+            try {
+                osw.write(request.getBody());
+                osw.flush();
+            } finally {
+                osw.close();
+            }
+        }
+        Response res = new Response(con);
+        if (log.isDebugEnabled()) {
+            log.debug("HTTP Response Headers: ");
+            Map<String, List<String>> responseHeaders = con.getHeaderFields();
+            for (String key : responseHeaders.keySet()) {
+                List<String> values = responseHeaders.get(key);
+                for (String value : values) {
+                    if (null != key) {
+                        log.debug("Header: '" + key + "' => '" + value + "'");
+                    } else {
+                        log.debug("Header value: '" + value + "'");
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    protected HttpURLConnection openConnection(HttpRequest request) throws IOException {
+        HttpURLConnection con;
+        if (null != request.getProxy()) {
+            log.debug("Opening proxied connection (" + request.getProxy().address() + ')');
+            con = (HttpURLConnection) new URL(request.getUrl()).openConnection(request.getProxy());
+        } else {
+            con = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        }
+        if (request.getConnectionTimeout() > 0) {
+            con.setConnectTimeout(request.getConnectionTimeout());
+        }
+        if (request.getReadTimeout() > 0) {
+            con.setReadTimeout(request.getReadTimeout());
+        }
+        return con;
+    }
+
+    @Override
+    public void shutdown() {
+        // nothing to do, sockets are owned by the JDK keep-alive cache
+    }
+}
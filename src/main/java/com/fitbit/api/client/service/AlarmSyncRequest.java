@@ -0,0 +1,37 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.model.Alarm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The complete set of alarms a user's tracker should end up with.
+ * Alarms with an id update that alarm on the device, alarms without one (id 0) are matched by their settings.
+ */
+public class AlarmSyncRequest {
+
+    private final LocalUserDetail user;
+    private final String deviceId;
+    private final List<Alarm> desiredAlarms;
+
+    public AlarmSyncRequest(LocalUserDetail user, String deviceId, List<Alarm> desiredAlarms) {
+        this.user = user;
+        this.deviceId = deviceId;
+        this.desiredAlarms = Collections.unmodifiableList(new ArrayList<Alarm>(desiredAlarms));
+    }
+
+    public LocalUserDetail getUser() {
+        return user;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public List<Alarm> getDesiredAlarms() {
+        return desiredAlarms;
+    }
+}
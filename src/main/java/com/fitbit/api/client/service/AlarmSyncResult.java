@@ -0,0 +1,90 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.model.Alarm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of synchronising one {@link AlarmSyncRequest}. On failure the lists hold the calls that did succeed before
+ * the error.
+ */
+public class AlarmSyncResult {
+
+    private final AlarmSyncRequest request;
+    private final List<Alarm> added = new ArrayList<Alarm>();
+    private final List<Alarm> updated = new ArrayList<Alarm>();
+    private final List<Alarm> deleted = new ArrayList<Alarm>();
+    private int unchanged;
+    private FitbitAPIException error;
+
+    public AlarmSyncResult(AlarmSyncRequest request) {
+        this.request = request;
+    }
+
+    public AlarmSyncRequest getRequest() {
+        return request;
+    }
+
+    public LocalUserDetail getUser() {
+        return request.getUser();
+    }
+
+    public String getDeviceId() {
+        return request.getDeviceId();
+    }
+
+    public List<Alarm> getAdded() {
+        return added;
+    }
+
+    public List<Alarm> getUpdated() {
+        return updated;
+    }
+
+    public List<Alarm> getDeleted() {
+        return deleted;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    void setUnchanged(int unchanged) {
+        this.unchanged = unchanged;
+    }
+
+    public FitbitAPIException getError() {
+        return error;
+    }
+
+    void setError(FitbitAPIException error) {
+        this.error = error;
+    }
+
+    public boolean isSuccessful() {
+        return null == error;
+    }
+
+    /**
+     * @return number of write calls issued against the API
+     */
+    public int getCallCount() {
+        return added.size() + updated.size() + deleted.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AlarmSyncResult{" +
+                "user=" + getUser().getUserId() +
+                ", deviceId='" + getDeviceId() + '\'' +
+                ", added=" + added.size() +
+                ", updated=" + updated.size() +
+                ", deleted=" + deleted.size() +
+                ", unchanged=" + unchanged +
+                ", error=" + error +
+                '}';
+    }
+}
@@ -0,0 +1,189 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.AsyncFitbitApiClientAgent;
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.FitbitApiFuture;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.http.HttpClient;
+import com.fitbit.api.model.Alarm;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Brings the alarms of many trackers in line with a desired state using as few API calls as possible.
+ * <p/>
+ * For each device the current alarms are fetched once and diffed against the desired ones; only the resulting
+ * delete, update and add calls are issued, in that order so that a full tracker never runs out of alarm slots.
+ * Different users are synchronised concurrently; the devices of one user are handled one after another so that
+ * their calls never interleave.
+ */
+public class AlarmSyncService {
+    protected static final Log log = LogFactory.getLog(AlarmSyncService.class);
+
+    private final AsyncFitbitApiClientAgent asyncClient;
+
+    public AlarmSyncService(AsyncFitbitApiClientAgent asyncClient) {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Synchronises all given requests and waits for them to finish. A failing device does not stop the others; its
+     * error is reported in its result.
+     *
+     * @param requests desired alarm sets, at most one per user and device
+     * @return one result per request, in request order
+     * @throws FitbitAPIException if the calling thread is interrupted while waiting
+     */
+    public List<AlarmSyncResult> sync(List<AlarmSyncRequest> requests) throws FitbitAPIException {
+        Map<String, List<AlarmSyncRequest>> requestsByUser = new LinkedHashMap<String, List<AlarmSyncRequest>>();
+        for (AlarmSyncRequest request : requests) {
+            String userId = request.getUser().getUserId();
+            List<AlarmSyncRequest> userRequests = requestsByUser.get(userId);
+            if (null == userRequests) {
+                userRequests = new ArrayList<AlarmSyncRequest>();
+                requestsByUser.put(userId, userRequests);
+            }
+            userRequests.add(request);
+        }
+
+        List<FitbitApiFuture<List<AlarmSyncResult>>> futures = new ArrayList<FitbitApiFuture<List<AlarmSyncResult>>>(requestsByUser.size());
+        for (final List<AlarmSyncRequest> userRequests : requestsByUser.values()) {
+            futures.add(asyncClient.submit(new Callable<List<AlarmSyncResult>>() {
+                @Override
+                public List<AlarmSyncResult> call() {
+                    // each step depends on the previous one, so retry single calls in place
+                    boolean deferred = HttpClient.isRetriesDeferred();
+                    HttpClient.setRetriesDeferred(false);
+                    try {
+                        List<AlarmSyncResult> results = new ArrayList<AlarmSyncResult>(userRequests.size());
+                        for (AlarmSyncRequest request : userRequests) {
+                            results.add(syncDevice(request));
+                        }
+                        return results;
+                    } finally {
+                        HttpClient.setRetriesDeferred(deferred);
+                    }
+                }
+            }));
+        }
+
+        Map<AlarmSyncRequest, AlarmSyncResult> resultsByRequest = new LinkedHashMap<AlarmSyncRequest, AlarmSyncResult>();
+        for (FitbitApiFuture<List<AlarmSyncResult>> future : futures) {
+            for (AlarmSyncResult result : future.getResult()) {
+                resultsByRequest.put(result.getRequest(), result);
+            }
+        }
+        List<AlarmSyncResult> results = new ArrayList<AlarmSyncResult>(requests.size());
+        for (AlarmSyncRequest request : requests) {
+            results.add(resultsByRequest.get(request));
+        }
+        return results;
+    }
+
+    /**
+     * Synchronises a single device on the calling thread.
+     *
+     * @param request desired alarm set
+     * @return what was changed, and the error if the device could not be fully synchronised
+     */
+    public AlarmSyncResult syncDevice(AlarmSyncRequest request) {
+        AlarmSyncResult result = new AlarmSyncResult(request);
+        FitbitApiClientAgent client = asyncClient.getAgent();
+        LocalUserDetail user = request.getUser();
+        String deviceId = request.getDeviceId();
+        try {
+            List<Alarm> current = new ArrayList<Alarm>();
+            for (Alarm alarm : client.getAlarms(user, deviceId)) {
+                if (!alarm.isDeleted()) {
+                    current.add(alarm);
+                }
+            }
+
+            AlarmDiff diff = diff(current, request.getDesiredAlarms());
+            result.setUnchanged(diff.unchanged);
+
+            for (Alarm alarm : diff.toDelete) {
+                client.deleteAlarm(user, alarm, deviceId);
+                result.getDeleted().add(alarm);
+            }
+            for (Alarm alarm : diff.toUpdate) {
+                result.getUpdated().add(client.updateAlarm(user, alarm, deviceId));
+            }
+            for (Alarm alarm : diff.toAdd) {
+                result.getAdded().add(client.addAlarm(user, alarm, deviceId));
+            }
+        } catch (FitbitAPIException e) {
+            log.warn("Unable to synchronise alarms of device " + deviceId + " for user " + user.getUserId() + ": " + e);
+            result.setError(e);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the minimal set of calls that turns the current alarms into the desired ones. Alarms that are no longer
+     * wanted are reused for new settings before anything is deleted or added.
+     */
+    static AlarmDiff diff(List<Alarm> current, List<Alarm> desired) {
+        AlarmDiff diff = new AlarmDiff();
+        Map<Integer, Alarm> unmatchedCurrent = new LinkedHashMap<Integer, Alarm>();
+        for (Alarm alarm : current) {
+            unmatchedCurrent.put(alarm.getId(), alarm);
+        }
+        List<Alarm> unmatchedDesired = new ArrayList<Alarm>();
+
+        // desired alarms that reference an existing alarm
+        for (Alarm alarm : desired) {
+            Alarm existing = alarm.getId() > 0 ? unmatchedCurrent.remove(alarm.getId()) : null;
+            if (null == existing) {
+                unmatchedDesired.add(alarm);
+            } else if (alarm.hasSameSettings(existing)) {
+                diff.unchanged++;
+            } else {
+                diff.toUpdate.add(alarm);
+            }
+        }
+
+        // desired alarms that are already set, whatever their id
+        for (Iterator<Alarm> it = unmatchedDesired.iterator(); it.hasNext(); ) {
+            Alarm alarm = it.next();
+            for (Iterator<Alarm> existing = unmatchedCurrent.values().iterator(); existing.hasNext(); ) {
+                if (alarm.hasSameSettings(existing.next())) {
+                    existing.remove();
+                    it.remove();
+                    diff.unchanged++;
+                    break;
+                }
+            }
+        }
+
+        // rewrite obsolete alarms in place, then delete or add what is left over
+        Iterator<Alarm> obsolete = unmatchedCurrent.values().iterator();
+        for (Alarm alarm : unmatchedDesired) {
+            if (obsolete.hasNext()) {
+                Alarm update = new Alarm(alarm);
+                update.setAlarmId(obsolete.next().getId());
+                obsolete.remove();
+                diff.toUpdate.add(update);
+            } else {
+                diff.toAdd.add(alarm);
+            }
+        }
+        diff.toDelete.addAll(unmatchedCurrent.values());
+        return diff;
+    }
+
+    static class AlarmDiff {
+        final List<Alarm> toDelete = new ArrayList<Alarm>();
+        final List<Alarm> toUpdate = new ArrayList<Alarm>();
+        final List<Alarm> toAdd = new ArrayList<Alarm>();
+        int unchanged;
+    }
+}
@@ -0,0 +1,45 @@
+package com.fitbit.api.client.service;
+
+import java.io.Serializable;
+
+/**
+ * Entity stored by {@link FitbitAPIClientService} in its entity cache, together with the time it was fetched so that
+ * stale entries can be refreshed while still being served.
+ */
+public class CachedEntity implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+    private final long fetchedAt;
+
+    public CachedEntity(Object value, long fetchedAt) {
+        this.value = value;
+        this.fetchedAt = fetchedAt;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return time the entity was fetched, in milliseconds since the epoch
+     */
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * @param refreshAfterMillis age after which an entity should be refreshed, 0 for never
+     */
+    public boolean isStale(long refreshAfterMillis, long now) {
+        return refreshAfterMillis > 0 && now - fetchedAt >= refreshAfterMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedEntity{" +
+                "value=" + value +
+                ", fetchedAt=" + fetchedAt +
+                '}';
+    }
+}
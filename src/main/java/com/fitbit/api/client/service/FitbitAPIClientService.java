@@ -3,12 +3,14 @@ package com.fitbit.api.client.service;
 import com.fitbit.api.APIUtil;
 import com.fitbit.api.FitbitAPIException;
 import com.fitbit.api.FitbitAPISecurityException;
+import com.fitbit.api.client.BulkEntityCache;
 import com.fitbit.api.client.FitbitAPIEntityCache;
 import com.fitbit.api.client.FitbitApiClientAgent;
 import com.fitbit.api.client.FitbitApiCredentialsCache;
 import com.fitbit.api.client.FitbitApiSubscriptionStorage;
 import com.fitbit.api.client.LocalSubscriptionDetail;
 import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.RateLimitScheduler;
 import com.fitbit.api.client.http.AccessToken;
 import com.fitbit.api.client.http.TempCredentials;
 import com.fitbit.api.common.model.activities.Activities;
@@ -22,7 +24,20 @@ import org.json.JSONException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
     protected static final Log log = LogFactory.getLog(FitbitAPIClientService.class);
@@ -34,6 +49,14 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
     protected FitbitApiSubscriptionStorage subscriptionStore;
     protected String subscriberSecret;
 
+    protected final ConcurrentMap<String, Flight> fetchesInFlight = new ConcurrentHashMap<String, Flight>();
+    protected final ConcurrentMap<String, Boolean> refreshesPending = new ConcurrentHashMap<String, Boolean>();
+    protected final ConcurrentMap<String, Boolean> prefetchesPending = new ConcurrentHashMap<String, Boolean>();
+    protected volatile long refreshAfterMillis;
+    protected volatile Executor refreshExecutor;
+    protected volatile Executor prefetchExecutor;
+    protected volatile int prefetchMaxAgeDays;
+
     public FitbitAPIClientService(C client, String consumerKey, String consumerSecret,
                                   FitbitApiCredentialsCache credentialsCache, FitbitAPIEntityCache entityCache,
                                   FitbitApiSubscriptionStorage subscriptionStore) {
@@ -106,6 +129,8 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
         resourceCredentials.setAccessToken(accessToken.getToken());
         resourceCredentials.setAccessTokenSecret(accessToken.getTokenSecret());
         resourceCredentials.setResourceId(accessToken.getEncodedUserId());
+        // Save them again for caches that keep a copy, e.g. in the datastore:
+        saveResourceCredentials(user, resourceCredentials);
     }
 
     public Activities getActivities(LocalUserDetail user, LocalDate date) throws FitbitAPIException {
@@ -122,13 +147,176 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
         // Get the resource credentials:
         APIResourceCredentials credentials = credentialsCache.getResourceCredentials(user);
         // First consult the cache:
-        Object result = getFromCache(user, credentials, cacheKey);
+        CachedEntity cached = getCachedEntity(user, credentials, cacheKey);
+        if (null != cached) {
+            // Serve a stale entry right away and refresh it behind the caller's back:
+            if (null != refreshExecutor && cached.isStale(refreshAfterMillis, System.currentTimeMillis())) {
+                refreshInBackground(user, date, type, credentials, cacheKey);
+            }
+            return cached.getValue();
+        }
         // If not in cache, retrieve from the API service and place in cache:
-        if (null == result) {
-            result = client.getCollectionForDate(user, FitbitUser.CURRENT_AUTHORIZED_USER, type, date);
-            putInCache(result, credentials, cacheKey);
+        return fetchCollectionForDate(user, date, type, credentials, cacheKey);
+    }
+
+    /**
+     * Retrieves a collection from the API service and places it in the cache. Concurrent calls for the same user and
+     * cache key share a single request.
+     */
+    protected Object fetchCollectionForDate(LocalUserDetail user, LocalDate date, APICollectionType type,
+                                            APIResourceCredentials credentials, String cacheKey) throws FitbitAPIException {
+        String flightKey = getFlightKey(user, cacheKey);
+        Flight flight = new Flight(user, date, type, credentials, cacheKey);
+        Flight inFlight = fetchesInFlight.putIfAbsent(flightKey, flight);
+        if (null == inFlight) {
+            try {
+                flight.task.run();
+            } finally {
+                fetchesInFlight.remove(flightKey, flight);
+            }
+        } else {
+            log.debug("Joining fetch in flight for " + flightKey);
+            flight = inFlight;
+        }
+
+        try {
+            return flight.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FitbitAPIException("Interrupted while waiting for " + cacheKey + ": " + e, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FitbitAPIException) {
+                throw (FitbitAPIException) e.getCause();
+            }
+            throw new FitbitAPIException("Error retrieving " + cacheKey + ": " + e.getCause(), e);
         }
-        return result;
+    }
+
+    protected void refreshInBackground(LocalUserDetail user, LocalDate date, APICollectionType type,
+                                       APIResourceCredentials credentials, String cacheKey) {
+        fetchInBackground(refreshExecutor, refreshesPending, false, user, date, type, credentials, cacheKey);
+    }
+
+    /**
+     * Fetches a collection into the cache on the given executor with low rate limit priority. Does nothing while a
+     * background fetch of the same collection is pending in the given map.
+     *
+     * @param pending background fetches pending, by flight key
+     * @param pendingUntilStarted true to count a fetch as pending only until it starts, so that it is only coalesced
+     * with requests it still comes after; false to count it until it completes
+     */
+    protected void fetchInBackground(Executor executor, final ConcurrentMap<String, Boolean> pending, final boolean pendingUntilStarted,
+                                     final LocalUserDetail user, final LocalDate date, final APICollectionType type,
+                                     final APIResourceCredentials credentials, final String cacheKey) {
+        final String flightKey = getFlightKey(user, cacheKey);
+        if (null != pending.putIfAbsent(flightKey, Boolean.TRUE)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (pendingUntilStarted) {
+                        pending.remove(flightKey);
+                    }
+                    RateLimitScheduler.Priority priority = RateLimitScheduler.getPriority();
+                    RateLimitScheduler.setPriority(RateLimitScheduler.Priority.LOW);
+                    try {
+                        fetchCollectionForDate(user, date, type, credentials, cacheKey);
+                    } catch (FitbitAPIException e) {
+                        log.warn("Unable to fetch " + flightKey + " in the background: " + e);
+                    } finally {
+                        RateLimitScheduler.setPriority(priority);
+                        if (!pendingUntilStarted) {
+                            pending.remove(flightKey);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(flightKey);
+            log.debug("Background fetch of " + flightKey + " rejected: " + e);
+        }
+    }
+
+    private static String getFlightKey(LocalUserDetail user, String cacheKey) {
+        return user.getUserId() + ' ' + cacheKey;
+    }
+
+    /**
+     * Keeps a fetch started before an eviction from caching what it read: later callers no longer join it and it skips
+     * its cache write. A write already made is removed by the eviction, so call this before evicting the entry.
+     */
+    protected void supersedeFetchInFlight(LocalUserDetail user, String cacheKey) {
+        Flight flight = fetchesInFlight.remove(getFlightKey(user, cacheKey));
+        if (null != flight) {
+            flight.supersede();
+            log.debug("Superseded fetch in flight for " + getFlightKey(user, cacheKey));
+        }
+    }
+
+    /**
+     * Fetch of a collection shared by concurrent callers.
+     */
+    protected class Flight implements Callable<Object> {
+        protected final FutureTask<Object> task = new FutureTask<Object>(this);
+        private final LocalUserDetail user;
+        private final LocalDate date;
+        private final APICollectionType type;
+        private final APIResourceCredentials credentials;
+        private final String cacheKey;
+        private boolean superseded;
+
+        protected Flight(LocalUserDetail user, LocalDate date, APICollectionType type, APIResourceCredentials credentials, String cacheKey) {
+            this.user = user;
+            this.date = date;
+            this.type = type;
+            this.credentials = credentials;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            Object result = client.getCollectionForDate(user, FitbitUser.CURRENT_AUTHORIZED_USER, type, date);
+            // under the lock, so the write either comes before the eviction or not at all
+            synchronized (this) {
+                if (!superseded) {
+                    putInCache(result, credentials, cacheKey);
+                }
+            }
+            return result;
+        }
+
+        synchronized void supersede() {
+            superseded = true;
+        }
+    }
+
+    /**
+     * Serves cached entries older than the given age while they are refreshed on the given executor, instead of
+     * serving them until they are evicted.
+     *
+     * @param refreshAfterMillis age after which an entry is refreshed
+     * @param refreshExecutor executor to refresh on, null to turn refreshing off
+     */
+    public void setStaleWhileRevalidate(long refreshAfterMillis, Executor refreshExecutor) {
+        this.refreshAfterMillis = refreshAfterMillis;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Fetches the collections evicted for update notifications again on the given executor, so that reads after a
+     * device sync find them cached. Only activities and foods of authorized users are fetched, for dates up to the given
+     * number of days back. The fetches have low rate limit priority. Each one starts after its eviction: it neither
+     * joins a fetch started before the eviction nor waits for a pending refresh, and is only coalesced with a prefetch
+     * of the same collection that has not started yet.
+     *
+     * @param prefetchExecutor executor to fetch on, null to turn prefetching off
+     * @param maxAgeDays number of days before today for which collections are still fetched
+     */
+    public void setPrefetchAfterEviction(Executor prefetchExecutor, int maxAgeDays) {
+        this.prefetchMaxAgeDays = maxAgeDays;
+        this.prefetchExecutor = prefetchExecutor;
     }
 
     public String getCacheKey(LocalDate date, APICollectionType type) {
@@ -143,8 +331,18 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
     }
 
     public Object getFromCache(LocalUserDetail user, APIResourceCredentials credentials, String cacheKey) {
+        CachedEntity cached = getCachedEntity(user, credentials, cacheKey);
+        return null == cached ? null : cached.getValue();
+    }
+
+    protected CachedEntity getCachedEntity(LocalUserDetail user, APIResourceCredentials credentials, String cacheKey) {
         if (null != subscriptionStore && null != subscriptionStore.getBySubscriptionId(user.getUserId()) && null != entityCache) {
-            return entityCache.get(credentials, cacheKey);
+            Object cached = entityCache.get(credentials, cacheKey);
+            if (cached instanceof CachedEntity) {
+                return (CachedEntity) cached;
+            }
+            // put there by someone else, of unknown age
+            return null == cached ? null : new CachedEntity(cached, System.currentTimeMillis());
         } else {
             return null;
         }
@@ -152,7 +350,7 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
 
     public void putInCache(Object result, APIResourceCredentials credentials, String cacheKey) {
         if (null != entityCache) {
-            entityCache.put(credentials, cacheKey, result);
+            entityCache.put(credentials, cacheKey, new CachedEntity(result, System.currentTimeMillis()));
         }
     }
 
@@ -209,86 +407,173 @@ public class FitbitAPIClientService<C extends FitbitApiClientAgent> {
     }
 
     public void evictUpdatedResourcesFromCache(String subscriberId, InputStream updateMessageStream, String serverSignature) throws FitbitAPIException {
+        String updateMessage = verifyUpdateMessage(updateMessageStream, serverSignature);
+        evictUpdatedResources(subscriberId, parseUpdateMessage(updateMessage));
+    }
+
+    /**
+     * Reads an update message and checks that it was signed with the subscriber secret.
+     *
+     * @return the message
+     * @throws FitbitAPISecurityException if the signature is missing or does not match
+     */
+    public String verifyUpdateMessage(InputStream updateMessageStream, String serverSignature) throws FitbitAPIException {
+        if (null == serverSignature) {
+            throw new FitbitAPISecurityException("Missing signature.");
+        }
+
+        String updateMessage;
         try {
-            if (null == serverSignature) {
-                throw new FitbitAPISecurityException("Missing signature.");
-            }
+            updateMessage = APIUtil.inputStreamToString(updateMessageStream);
+        } catch (IOException e) {
+            throw new FitbitAPIException("Notification stream is malformed: " + e, e);
+        }
 
-            String updateMessage = APIUtil.inputStreamToString(updateMessageStream);
+        String ourSignature = APIUtil.generateSignature(updateMessage, subscriberSecret);
+        if (null == ourSignature || !ourSignature.equals(serverSignature)) {
+            throw new FitbitAPISecurityException("Signatures do not match, given " + serverSignature);
+        }
+        return updateMessage;
+    }
 
-            String ourSignature = APIUtil.generateSignature(updateMessage, subscriberSecret);
-            if (null == ourSignature || !ourSignature.equals(serverSignature)) {
-                throw new FitbitAPISecurityException("Signatures do not match, given " + serverSignature);
-            }
+    public List<UpdatedResource> parseUpdateMessage(String updateMessage) throws FitbitAPIException {
+        try {
+            return new UpdateNotification(new JSONArray(updateMessage)).getUpdatedResources();
+        } catch (JSONException e) {
+            throw new FitbitAPIException("Unable to parse update message: " + e, e);
+        } catch (IllegalArgumentException e) {
+            throw new FitbitAPIException("Unable to parse update message: " + e, e);
+        }
+    }
 
-            UpdateNotification notification = new UpdateNotification(new JSONArray(updateMessage));
-
-            int i = 0;
-            for (UpdatedResource resource : notification.getUpdatedResources()) {
-                //noinspection UnnecessaryParentheses,ValueOfIncrementOrDecrementUsed
-                log.info("Processing update notification " + (++i) + " for subscription " + resource.getSubscriptionId());
-
-                LocalSubscriptionDetail sub = subscriptionStore.getBySubscriptionId(resource.getSubscriptionId());
-                if (null == sub) {
-                    log.info("Nothing known about subscription " + resource.getSubscriptionId() + ", creating placeholder.");
-
-                    sub = new LocalSubscriptionDetail(
-                            new SubscriptionDetail(
-                                    subscriberId,
-                                    resource.getSubscriptionId(),
-                                    resource.getOwner(),
-                                    resource.getCollectionType()
-                            ),
-                            false
-                    );
-                    subscriptionStore.save(sub);
-                }
+    /**
+     * Evicts the cached entities of updated resources. Subscriptions and credentials are looked up once per
+     * subscription, however many of its resources were updated. Fetches of those resources still in flight are
+     * superseded, so they do not put the data from before the update back.
+     */
+    public void evictUpdatedResources(String subscriberId, Collection<UpdatedResource> resources) {
+        evictUpdatedResources(Collections.singletonMap(subscriberId, resources));
+    }
 
-                sub.setLastUpdateNotificationDate(new Date());
+    /**
+     * Evicts the cached entities of the resources updated for several subscribers, e.g. a batch of update
+     * notifications, with one call to the entity cache for all of them.
+     *
+     * @param resourcesBySubscriber updated resources by id of the subscriber notified of them
+     */
+    public void evictUpdatedResources(Map<String, ? extends Collection<UpdatedResource>> resourcesBySubscriber) {
+        Map<String, APIResourceCredentials> credentialsBySubscription = new HashMap<String, APIResourceCredentials>();
+        Map<APIResourceCredentials, List<Object>> keysByCredentials = new HashMap<APIResourceCredentials, List<Object>>();
+        List<UpdatedResource> updated = new ArrayList<UpdatedResource>();
+        List<String> placeholderKeys = new ArrayList<String>();
+        for (Map.Entry<String, ? extends Collection<UpdatedResource>> entry : resourcesBySubscriber.entrySet()) {
+            String subscriberId = entry.getKey();
+            for (UpdatedResource resource : entry.getValue()) {
+                String subscriptionId = resource.getSubscriptionId();
+                if (!credentialsBySubscription.containsKey(subscriptionId)) {
+                    LocalSubscriptionDetail sub = subscriptionStore.getBySubscriptionId(subscriptionId);
+                    if (null == sub) {
+                        log.info("Nothing known about subscription " + subscriptionId + ", creating placeholder.");
+
+                        sub = new LocalSubscriptionDetail(
+                                new SubscriptionDetail(
+                                        subscriberId,
+                                        subscriptionId,
+                                        resource.getOwner(),
+                                        resource.getCollectionType()
+                                ),
+                                false
+                        );
+                        subscriptionStore.save(sub);
+                    }
 
-                APIResourceCredentials credentials = credentialsCache.getResourceCredentials(new LocalUserDetail(resource.getSubscriptionId()));
+                    sub.setLastUpdateNotificationDate(new Date());
 
-                String cacheKeyWithUserId =
+                    credentialsBySubscription.put(subscriptionId, credentialsCache.getResourceCredentials(new LocalUserDetail(subscriptionId)));
+                }
+                APIResourceCredentials credentials = credentialsBySubscription.get(subscriptionId);
+
+                String cacheKeyWithPlaceholder =
                         APIUtil.constructFullUrl(
                                 client.getApiBaseUrl(),
                                 client.getApiVersion(),
-                                resource.getOwner(),
+                                FitbitUser.CURRENT_AUTHORIZED_USER,
                                 resource.getCollectionType(),
                                 resource.getDate(),
                                 APIFormat.JSON
                         );
+                supersedeFetchInFlight(new LocalUserDetail(subscriptionId), cacheKeyWithPlaceholder);
 
-                Activities entity = (Activities) entityCache.get(credentials, cacheKeyWithUserId);
-                if (null != entity) {
-                    log.info("Evicting entity " + cacheKeyWithUserId);
-                    entityCache.remove(credentials, cacheKeyWithUserId);
-                } else {
-                    log.info("There is no cached version of entity " + cacheKeyWithUserId);
-                }
-
-                String cacheKeyWithPlaceholder =
+                String cacheKeyWithUserId =
                         APIUtil.constructFullUrl(
                                 client.getApiBaseUrl(),
                                 client.getApiVersion(),
-                                FitbitUser.CURRENT_AUTHORIZED_USER,
+                                resource.getOwner(),
                                 resource.getCollectionType(),
                                 resource.getDate(),
                                 APIFormat.JSON
                         );
+                List<Object> keys = keysByCredentials.get(credentials);
+                if (null == keys) {
+                    keys = new ArrayList<Object>();
+                    keysByCredentials.put(credentials, keys);
+                }
+                keys.add(cacheKeyWithUserId);
+                keys.add(cacheKeyWithPlaceholder);
+
+                updated.add(resource);
+                placeholderKeys.add(cacheKeyWithPlaceholder);
+            }
+        }
+        if (updated.isEmpty()) {
+            return;
+        }
+
+        int evicted = evict(keysByCredentials);
+        if (log.isDebugEnabled()) {
+            log.debug("Evicted entities " + keysByCredentials.values());
+        }
 
-                entity = (Activities) entityCache.get(credentials, cacheKeyWithPlaceholder);
-                if (null != entity) {
-                    log.info("Evicting entity " + cacheKeyWithPlaceholder);
-                    entityCache.remove(credentials, cacheKeyWithPlaceholder);
-                } else {
-                    log.info("There is no cached version of entity " + cacheKeyWithPlaceholder);
+        int prefetched = 0;
+        for (int i = 0; i < updated.size(); i++) {
+            UpdatedResource resource = updated.get(i);
+            if (prefetchAfterEviction(resource, credentialsBySubscription.get(resource.getSubscriptionId()), placeholderKeys.get(i))) {
+                prefetched++;
+            }
+        }
+        log.info("Processed " + updated.size() + " updated resources of " + credentialsBySubscription.size() + " subscriptions, evicted "
+                + evicted + " entities, prefetching " + prefetched);
+    }
+
+    private int evict(Map<APIResourceCredentials, List<Object>> keysByCredentials) {
+        if (entityCache instanceof BulkEntityCache) {
+            return ((BulkEntityCache) entityCache).removeAll(keysByCredentials);
+        }
+        int evicted = 0;
+        for (Map.Entry<APIResourceCredentials, List<Object>> entry : keysByCredentials.entrySet()) {
+            for (Object key : entry.getValue()) {
+                if (null != entityCache.remove(entry.getKey(), key)) {
+                    evicted++;
                 }
             }
-        } catch (IOException e) {
-            throw new FitbitAPIException("Notification stream is malformed: " + e, e);
-        } catch (JSONException e) {
-            throw new FitbitAPIException("Unable to parse update message: " + e, e);
         }
+        return evicted;
+    }
+
+    private boolean prefetchAfterEviction(UpdatedResource resource, APIResourceCredentials credentials, String cacheKey) {
+        Executor executor = prefetchExecutor;
+        if (null == executor || null == credentials || !credentials.isAuthorized() || null == resource.getDate()) {
+            return false;
+        }
+        APICollectionType type = resource.getCollectionType();
+        if (type != APICollectionType.activities && type != APICollectionType.foods) {
+            return false;
+        }
+        if (resource.getDate().isBefore(new LocalDate().minusDays(prefetchMaxAgeDays))) {
+            return false;
+        }
+        fetchInBackground(executor, prefetchesPending, true, new LocalUserDetail(resource.getSubscriptionId()), resource.getDate(), type, credentials, cacheKey);
+        return true;
     }
 
 }
@@ -0,0 +1,199 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.APIUtil;
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.FitbitAPIEntityCache;
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.FitbitApiCredentialsCache;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.common.model.timeseries.TimeSeries;
+import com.fitbit.api.common.model.timeseries.TimeSeriesResourceType;
+import com.fitbit.api.common.model.timeseries.TimeSeriesTable;
+import com.fitbit.api.model.APIFormat;
+import com.fitbit.api.model.APIResourceCredentials;
+import com.fitbit.api.model.FitbitUser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.LocalDate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries several time series of one user over the same window of days. The resources are fetched concurrently
+ * through one {@link TimeSeriesRangeFetcher}, so they share its limit of calls in flight and the agent's rate limit
+ * budget, and are returned as one day-aligned {@link TimeSeriesTable}.
+ * <p/>
+ * With an entity cache, the days fetched for a resource are kept per user credentials. A later query only fetches
+ * the part of its window that the cached days do not cover. The most recent days are never cached, since trackers may
+ * still sync data for them.
+ */
+public class TimeSeriesQueryService {
+    protected static final Log log = LogFactory.getLog(TimeSeriesQueryService.class);
+
+    public static final int DEFAULT_RECENT_DAYS = 2;
+
+    private final TimeSeriesRangeFetcher fetcher;
+    private final FitbitApiCredentialsCache credentialsCache;
+    private final FitbitAPIEntityCache entityCache;
+    private volatile int recentDays = DEFAULT_RECENT_DAYS;
+
+    public TimeSeriesQueryService(TimeSeriesRangeFetcher fetcher) {
+        this(fetcher, null, null);
+    }
+
+    /**
+     * @param fetcher fetcher to run the calls with
+     * @param credentialsCache credentials the cached series are stored under, null for no caching
+     * @param entityCache cache for fetched series, null for no caching
+     */
+    public TimeSeriesQueryService(TimeSeriesRangeFetcher fetcher, FitbitApiCredentialsCache credentialsCache, FitbitAPIEntityCache entityCache) {
+        this.fetcher = fetcher;
+        this.credentialsCache = credentialsCache;
+        this.entityCache = entityCache;
+    }
+
+    public int getRecentDays() {
+        return recentDays;
+    }
+
+    /**
+     * @param recentDays number of days up to and including today that are always fetched
+     */
+    public void setRecentDays(int recentDays) {
+        this.recentDays = Math.max(0, recentDays);
+    }
+
+    /**
+     * Fetches the given resources for the same window.
+     *
+     * @param localUser authorized user
+     * @param user user to fetch data from
+     * @param resourceTypes resources to fetch
+     * @param startDate first day, inclusive
+     * @param endDate last day, inclusive
+     * @return values aligned by day
+     * @throws FitbitAPIException if a resource could not be fetched
+     */
+    public TimeSeriesTable query(LocalUserDetail localUser, FitbitUser user, Collection<TimeSeriesResourceType> resourceTypes, LocalDate startDate, LocalDate endDate) throws FitbitAPIException {
+        int startDay = TimeSeries.toEpochDay(startDate);
+        int endDay = TimeSeries.toEpochDay(endDate);
+        APIResourceCredentials credentials = getCredentials(localUser);
+
+        Map<TimeSeriesResourceType, TimeSeries> results = new EnumMap<TimeSeriesResourceType, TimeSeries>(TimeSeriesResourceType.class);
+        Map<TimeSeriesResourceType, CachedTimeSeries> cached = new EnumMap<TimeSeriesResourceType, CachedTimeSeries>(TimeSeriesResourceType.class);
+        List<TimeSeriesRangeFetch> fetches = new ArrayList<TimeSeriesRangeFetch>();
+        for (TimeSeriesResourceType resourceType : new LinkedHashSet<TimeSeriesResourceType>(resourceTypes)) {
+            CachedTimeSeries cachedSeries = getFromCache(credentials, user, resourceType);
+            int fetchStart = startDay;
+            int fetchEnd = endDay;
+            if (null != cachedSeries) {
+                if (cachedSeries.startDay <= startDay && cachedSeries.endDay >= endDay) {
+                    results.put(resourceType, cachedSeries.timeSeries);
+                    continue;
+                } else if (cachedSeries.startDay <= startDay && cachedSeries.endDay >= startDay - 1) {
+                    // the cached days cover the start of the window
+                    fetchStart = cachedSeries.endDay + 1;
+                    cached.put(resourceType, cachedSeries);
+                } else if (cachedSeries.endDay >= endDay && cachedSeries.startDay <= endDay + 1) {
+                    // the cached days cover the end of the window
+                    fetchEnd = cachedSeries.startDay - 1;
+                    cached.put(resourceType, cachedSeries);
+                }
+            }
+            fetches.add(fetcher.prepare(localUser, user, resourceType, TimeSeries.toLocalDate(fetchStart), TimeSeries.toLocalDate(fetchEnd)));
+        }
+
+        if (!fetches.isEmpty()) {
+            List<TimeSeries> fetched = fetcher.resumeAll(fetches);
+            int settledDay = TimeSeries.toEpochDay(new LocalDate()) - recentDays;
+            for (int i = 0; i < fetches.size(); i++) {
+                TimeSeriesRangeFetch fetch = fetches.get(i);
+                TimeSeriesResourceType resourceType = fetch.getResourceType();
+                int fetchStart = TimeSeries.toEpochDay(fetch.getStartDate());
+                int fetchEnd = TimeSeries.toEpochDay(fetch.getEndDate());
+                TimeSeries timeSeries = fetched.get(i);
+
+                CachedTimeSeries cachedSeries = cached.get(resourceType);
+                if (null != cachedSeries) {
+                    if (cachedSeries.startDay < fetchStart) {
+                        timeSeries = TimeSeries.concat(resourceType, Arrays.asList(cachedSeries.timeSeries, timeSeries));
+                        fetchStart = cachedSeries.startDay;
+                    } else {
+                        timeSeries = TimeSeries.concat(resourceType, Arrays.asList(timeSeries, cachedSeries.timeSeries));
+                        fetchEnd = cachedSeries.endDay;
+                    }
+                }
+                results.put(resourceType, timeSeries);
+                putInCache(credentials, user, new CachedTimeSeries(timeSeries, fetchStart, Math.min(fetchEnd, settledDay)));
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Fetched " + fetches.size() + " of " + results.size() + " time series " + startDate + ".." + endDate + " for user " + user.getId());
+            }
+        }
+        return new TimeSeriesTable(startDate, endDate, results);
+    }
+
+    /**
+     * @return key of the cached days of a resource, the resource URL without a date range
+     */
+    public String getCacheKey(FitbitUser user, TimeSeriesResourceType resourceType) {
+        FitbitApiClientAgent agent = fetcher.getAsyncClient().getAgent();
+        return APIUtil.contextualizeUrl(agent.getApiBaseUrl(), agent.getApiVersion(), "/user/" + user.getId() + resourceType.getResourcePath(), APIFormat.JSON);
+    }
+
+    /**
+     * Drops the cached days of a resource, e.g. after an update notification.
+     */
+    public void evict(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType) {
+        APIResourceCredentials credentials = getCredentials(localUser);
+        if (null != credentials) {
+            entityCache.remove(credentials, getCacheKey(user, resourceType));
+        }
+    }
+
+    private APIResourceCredentials getCredentials(LocalUserDetail localUser) {
+        if (null == entityCache || null == credentialsCache || null == localUser) {
+            return null;
+        }
+        return credentialsCache.getResourceCredentials(localUser);
+    }
+
+    private CachedTimeSeries getFromCache(APIResourceCredentials credentials, FitbitUser user, TimeSeriesResourceType resourceType) {
+        if (null == credentials) {
+            return null;
+        }
+        Object value = entityCache.get(credentials, getCacheKey(user, resourceType));
+        return value instanceof CachedTimeSeries ? (CachedTimeSeries) value : null;
+    }
+
+    private void putInCache(APIResourceCredentials credentials, FitbitUser user, CachedTimeSeries cachedSeries) {
+        if (null == credentials || cachedSeries.endDay < cachedSeries.startDay) {
+            return;
+        }
+        entityCache.put(credentials, getCacheKey(user, cachedSeries.timeSeries.getResourceType()), cachedSeries);
+    }
+
+    /**
+     * Days of a resource known to the cache; the series may have no value for some of them.
+     */
+    static class CachedTimeSeries implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final TimeSeries timeSeries;
+        final int startDay;
+        final int endDay;
+
+        CachedTimeSeries(TimeSeries timeSeries, int startDay, int endDay) {
+            this.timeSeries = timeSeries.slice(TimeSeries.toLocalDate(startDay), TimeSeries.toLocalDate(Math.max(startDay, endDay)));
+            this.startDay = startDay;
+            this.endDay = endDay;
+        }
+    }
+}
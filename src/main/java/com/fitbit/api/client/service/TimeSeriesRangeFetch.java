@@ -0,0 +1,152 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.common.model.timeseries.TimeSeries;
+import com.fitbit.api.common.model.timeseries.TimeSeriesResourceType;
+import com.fitbit.api.model.FitbitUser;
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of fetching one long time series range with a {@link TimeSeriesRangeFetcher}. The range is split into
+ * chunks the API accepts in one call; the result of every completed chunk is kept, so after a failure
+ * {@link TimeSeriesRangeFetcher#resume(TimeSeriesRangeFetch)} only fetches the chunks that are still missing.
+ */
+public class TimeSeriesRangeFetch {
+
+    private final LocalUserDetail localUser;
+    private final FitbitUser user;
+    private final TimeSeriesResourceType resourceType;
+    private final int startDay;
+    private final int endDay;
+    private final int chunkDays;
+    private final TimeSeries[] chunks;
+    private FitbitAPIException error;
+
+    TimeSeriesRangeFetch(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate startDate, LocalDate endDate, int chunkDays) {
+        if (endDate.isBefore(startDate)) {
+            throw new IllegalArgumentException("End date " + endDate + " is before start date " + startDate);
+        }
+        if (chunkDays < 1) {
+            throw new IllegalArgumentException("Chunk must span at least one day.");
+        }
+        this.localUser = localUser;
+        this.user = user;
+        this.resourceType = resourceType;
+        this.startDay = TimeSeries.toEpochDay(startDate);
+        this.endDay = TimeSeries.toEpochDay(endDate);
+        this.chunkDays = chunkDays;
+        chunks = new TimeSeries[(endDay - startDay) / chunkDays + 1];
+    }
+
+    public LocalUserDetail getLocalUser() {
+        return localUser;
+    }
+
+    public FitbitUser getUser() {
+        return user;
+    }
+
+    public TimeSeriesResourceType getResourceType() {
+        return resourceType;
+    }
+
+    public LocalDate getStartDate() {
+        return TimeSeries.toLocalDate(startDay);
+    }
+
+    public LocalDate getEndDate() {
+        return TimeSeries.toLocalDate(endDay);
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public LocalDate getChunkStartDate(int chunk) {
+        return TimeSeries.toLocalDate(startDay + chunk * chunkDays);
+    }
+
+    public LocalDate getChunkEndDate(int chunk) {
+        return TimeSeries.toLocalDate(Math.min(endDay, startDay + (chunk + 1) * chunkDays - 1));
+    }
+
+    public synchronized boolean isChunkComplete(int chunk) {
+        return null != chunks[chunk];
+    }
+
+    synchronized void setChunk(int chunk, TimeSeries timeSeries) {
+        chunks[chunk] = timeSeries;
+    }
+
+    public synchronized int getCompletedChunkCount() {
+        int completed = 0;
+        for (TimeSeries chunk : chunks) {
+            if (null != chunk) {
+                completed++;
+            }
+        }
+        return completed;
+    }
+
+    public synchronized boolean isComplete() {
+        return getCompletedChunkCount() == chunks.length;
+    }
+
+    /**
+     * Chunks may complete out of order; this is the end of the leading run of completed ones, which is what a caller
+     * keeping its progress elsewhere can safely continue from.
+     *
+     * @return last day of the leading completed chunks, null if the first chunk is not complete
+     */
+    public synchronized LocalDate getCompletedThrough() {
+        int completed = 0;
+        while (completed < chunks.length && null != chunks[completed]) {
+            completed++;
+        }
+        return completed == 0 ? null : getChunkEndDate(completed - 1);
+    }
+
+    /**
+     * @return failure of the last run, null if it succeeded or has not finished
+     */
+    public synchronized FitbitAPIException getError() {
+        return error;
+    }
+
+    synchronized void setError(FitbitAPIException error) {
+        this.error = error;
+    }
+
+    /**
+     * @return the chunks merged into one series, in date order
+     * @throws IllegalStateException if not all chunks have been fetched
+     */
+    public synchronized TimeSeries getResult() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Fetched " + getCompletedChunkCount() + " of " + chunks.length + " chunks.");
+        }
+        if (chunks.length == 1) {
+            return chunks[0];
+        }
+        List<TimeSeries> parts = new ArrayList<TimeSeries>(chunks.length);
+        for (TimeSeries chunk : chunks) {
+            parts.add(chunk);
+        }
+        return TimeSeries.concat(resourceType, parts);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimeSeriesRangeFetch{" +
+                "resourceType=" + resourceType +
+                ", startDate=" + getStartDate() +
+                ", endDate=" + getEndDate() +
+                ", completedChunks=" + getCompletedChunkCount() +
+                ", chunks=" + chunks.length +
+                '}';
+    }
+}
@@ -0,0 +1,210 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.AsyncFitbitApiClientAgent;
+import com.fitbit.api.client.Configuration;
+import com.fitbit.api.client.FitbitApiFuture;
+import com.fitbit.api.client.FitbitApiListener;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.RateLimitScheduler;
+import com.fitbit.api.common.model.timeseries.TimePeriod;
+import com.fitbit.api.common.model.timeseries.TimeSeries;
+import com.fitbit.api.common.model.timeseries.TimeSeriesResourceType;
+import com.fitbit.api.model.FitbitUser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches time series ranges of any length. A range is split into chunks of at most {@link #MAX_CHUNK_DAYS} days,
+ * the longest range the API serves in one call, which are fetched concurrently and merged into one series in date
+ * order.
+ * <p/>
+ * Calls go through the agent's {@link RateLimitScheduler}, at {@link RateLimitScheduler.Priority#LOW} by default so
+ * that backfills leave room for interactive calls, and at most a fixed number of chunks of one range are in flight at
+ * a time. When a chunk fails no further chunks are started and the fetched ones are kept in the
+ * {@link TimeSeriesRangeFetch}, from which {@link #resume(TimeSeriesRangeFetch)} continues.
+ */
+public class TimeSeriesRangeFetcher {
+    protected static final Log log = LogFactory.getLog(TimeSeriesRangeFetcher.class);
+
+    public static final int MAX_CHUNK_DAYS = TimePeriod.MAX.getDays();
+
+    private final AsyncFitbitApiClientAgent asyncClient;
+    private final int chunkDays;
+    private final int maxConcurrentChunks;
+    private volatile RateLimitScheduler.Priority priority = RateLimitScheduler.Priority.LOW;
+
+    public TimeSeriesRangeFetcher(AsyncFitbitApiClientAgent asyncClient) {
+        this(asyncClient, MAX_CHUNK_DAYS, Configuration.getNumberOfAsyncThreads());
+    }
+
+    /**
+     * @param asyncClient client to run the chunk calls on
+     * @param chunkDays days per call, at most {@link #MAX_CHUNK_DAYS}
+     * @param maxConcurrentChunks chunks of one range fetched at the same time
+     */
+    public TimeSeriesRangeFetcher(AsyncFitbitApiClientAgent asyncClient, int chunkDays, int maxConcurrentChunks) {
+        if (chunkDays < 1 || chunkDays > MAX_CHUNK_DAYS) {
+            throw new IllegalArgumentException("Chunk days must be between 1 and " + MAX_CHUNK_DAYS + ": " + chunkDays);
+        }
+        this.asyncClient = asyncClient;
+        this.chunkDays = chunkDays;
+        this.maxConcurrentChunks = Math.max(1, maxConcurrentChunks);
+    }
+
+    public AsyncFitbitApiClientAgent getAsyncClient() {
+        return asyncClient;
+    }
+
+    public RateLimitScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority rate limit priority of the chunk calls
+     */
+    public void setPriority(RateLimitScheduler.Priority priority) {
+        this.priority = null == priority ? RateLimitScheduler.Priority.NORMAL : priority;
+    }
+
+    /**
+     * Splits a range into chunks without fetching anything.
+     *
+     * @return progress to pass to {@link #resume(TimeSeriesRangeFetch)}
+     */
+    public TimeSeriesRangeFetch prepare(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate startDate, LocalDate endDate) {
+        return new TimeSeriesRangeFetch(localUser, user, resourceType, startDate, endDate, chunkDays);
+    }
+
+    /**
+     * Fetches a range in one go.
+     *
+     * @param startDate first day, inclusive
+     * @param endDate last day, inclusive
+     * @return values of the whole range
+     * @throws FitbitAPIException if a chunk could not be fetched
+     */
+    public TimeSeries fetch(LocalUserDetail localUser, FitbitUser user, TimeSeriesResourceType resourceType, LocalDate startDate, LocalDate endDate) throws FitbitAPIException {
+        return resume(prepare(localUser, user, resourceType, startDate, endDate));
+    }
+
+    /**
+     * Fetches the chunks of a range that are not complete yet and waits for them.
+     *
+     * @param fetch progress from {@link #prepare} or an earlier, failed run
+     * @return values of the whole range
+     * @throws FitbitAPIException with the first chunk failure; the progress keeps every chunk that did complete
+     */
+    public TimeSeries resume(TimeSeriesRangeFetch fetch) throws FitbitAPIException {
+        return resumeAll(Collections.singletonList(fetch)).get(0);
+    }
+
+    /**
+     * Fetches the missing chunks of several ranges, e.g. of different resources, sharing one limit of chunks in
+     * flight, and waits for them.
+     *
+     * @param fetches progress from {@link #prepare} or earlier, failed runs
+     * @return values of the whole ranges, in the order of the fetches
+     * @throws FitbitAPIException with the first chunk failure; each progress keeps every chunk that did complete
+     */
+    public List<TimeSeries> resumeAll(List<TimeSeriesRangeFetch> fetches) throws FitbitAPIException {
+        final Semaphore permits = new Semaphore(maxConcurrentChunks);
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<TimeSeriesRangeFetch> pendingFetches = new ArrayList<TimeSeriesRangeFetch>();
+        List<Integer> pendingChunks = new ArrayList<Integer>();
+        List<FitbitApiFuture<TimeSeries>> futures = new ArrayList<FitbitApiFuture<TimeSeries>>();
+
+        FitbitAPIException error = null;
+        submit:
+        for (TimeSeriesRangeFetch fetch : fetches) {
+            fetch.setError(null);
+            for (int chunk = 0; chunk < fetch.getChunkCount(); chunk++) {
+                if (fetch.isChunkComplete(chunk)) {
+                    continue;
+                }
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = new FitbitAPIException("Interrupted while fetching " + fetch + ": " + e, e);
+                    break submit;
+                }
+                if (failed.get()) {
+                    permits.release();
+                    break submit;
+                }
+                FitbitApiFuture<TimeSeries> future = asyncClient.submit(createChunkCall(fetch, chunk));
+                future.addListener(new FitbitApiListener<TimeSeries>() {
+                    @Override
+                    public void onSuccess(TimeSeries result) {
+                        permits.release();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable cause) {
+                        failed.set(true);
+                        permits.release();
+                    }
+                });
+                pendingFetches.add(fetch);
+                pendingChunks.add(chunk);
+                futures.add(future);
+            }
+        }
+
+        // wait for everything in flight, keeping what completed even if an earlier chunk failed
+        TimeSeriesRangeFetch failedFetch = null;
+        for (int i = 0; i < futures.size(); i++) {
+            TimeSeriesRangeFetch fetch = pendingFetches.get(i);
+            int chunk = pendingChunks.get(i);
+            try {
+                fetch.setChunk(chunk, futures.get(i).getResult());
+            } catch (FitbitAPIException e) {
+                log.warn("Unable to fetch " + fetch.getChunkStartDate(chunk) + ".." + fetch.getChunkEndDate(chunk) + " of " + fetch + ": " + e);
+                fetch.setError(e);
+                if (null == error) {
+                    error = e;
+                    failedFetch = fetch;
+                }
+            }
+        }
+
+        if (null != error) {
+            if (null == failedFetch) {
+                throw error;
+            }
+            throw new FitbitAPIException("Fetched " + failedFetch.getCompletedChunkCount() + " of " + failedFetch.getChunkCount() + " chunks of " + failedFetch.getResourceType() + " " + failedFetch.getStartDate() + ".." + failedFetch.getEndDate() + ": " + error, error, error.getStatusCode());
+        }
+        List<TimeSeries> results = new ArrayList<TimeSeries>(fetches.size());
+        for (TimeSeriesRangeFetch fetch : fetches) {
+            results.add(fetch.getResult());
+        }
+        return results;
+    }
+
+    private Callable<TimeSeries> createChunkCall(final TimeSeriesRangeFetch fetch, int chunk) {
+        final LocalDate chunkStart = fetch.getChunkStartDate(chunk);
+        final LocalDate chunkEnd = fetch.getChunkEndDate(chunk);
+        final RateLimitScheduler.Priority chunkPriority = priority;
+        return new Callable<TimeSeries>() {
+            @Override
+            public TimeSeries call() throws Exception {
+                RateLimitScheduler.Priority previous = RateLimitScheduler.getPriority();
+                RateLimitScheduler.setPriority(chunkPriority);
+                try {
+                    return asyncClient.getAgent().getTimeSeriesColumns(fetch.getLocalUser(), fetch.getUser(), fetch.getResourceType(), chunkStart, chunkEnd);
+                } finally {
+                    RateLimitScheduler.setPriority(previous);
+                }
+            }
+        };
+    }
+}
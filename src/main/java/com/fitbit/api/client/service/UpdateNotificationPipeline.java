@@ -0,0 +1,213 @@
+package com.fitbit.api.client.service;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.model.UpdatedResource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes subscription update notifications off request threads. {@link #accept(String, InputStream, String)} only
+ * reads the message and verifies its signature before queueing it, so the notification can be acknowledged right
+ * away. Workers on the given executor take the queued messages in batches, drop updates repeated within a batch for
+ * the same subscription, owner, collection and date, and evict the cached entities of the rest with one call to
+ * {@link FitbitAPIClientService#evictUpdatedResources(Map)} per batch.
+ * <p/>
+ * When the queue is full, notifications are refused with status 503 so that Fitbit delivers them again later. The
+ * queue is held in memory only: notifications already acknowledged but not yet processed are lost if the instance
+ * goes away, and their entities stay cached until they expire.
+ */
+public class UpdateNotificationPipeline {
+    protected static final Log log = LogFactory.getLog(UpdateNotificationPipeline.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_WORKERS = 2;
+
+    private final FitbitAPIClientService<?> service;
+    private final Executor executor;
+    private final BlockingQueue<QueuedMessage> queue;
+    private final int batchSize;
+    private final int maxWorkers;
+    private final AtomicInteger workers = new AtomicInteger();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong resourceCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    public UpdateNotificationPipeline(FitbitAPIClientService<?> service, Executor executor) {
+        this(service, executor, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_WORKERS);
+    }
+
+    /**
+     * @param service service to verify messages and evict entities with
+     * @param executor executor the workers run on
+     * @param queueCapacity number of messages queued at most
+     * @param batchSize number of messages a worker takes at once
+     * @param maxWorkers number of workers running at the same time at most
+     */
+    public UpdateNotificationPipeline(FitbitAPIClientService<?> service, Executor executor, int queueCapacity, int batchSize, int maxWorkers) {
+        this.service = service;
+        this.executor = executor;
+        queue = new LinkedBlockingQueue<QueuedMessage>(Math.max(1, queueCapacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWorkers = Math.max(1, maxWorkers);
+    }
+
+    /**
+     * Verifies a notification and queues it for processing.
+     *
+     * @throws com.fitbit.api.FitbitAPISecurityException if the signature is missing or does not match
+     * @throws FitbitAPIException with status 503 if the queue is full
+     */
+    public void accept(String subscriberId, InputStream updateMessageStream, String serverSignature) throws FitbitAPIException {
+        String updateMessage = service.verifyUpdateMessage(updateMessageStream, serverSignature);
+        if (!queue.offer(new QueuedMessage(subscriberId, updateMessage))) {
+            throw new FitbitAPIException("Update notification queue is full, " + queue.size() + " messages pending", 503);
+        }
+        acceptedCount.incrementAndGet();
+        startWorkers();
+    }
+
+    /**
+     * @return number of messages waiting for a worker
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * @return number of updated resources processed, not counting duplicates
+     */
+    public long getResourceCount() {
+        return resourceCount.get();
+    }
+
+    /**
+     * @return number of updated resources dropped as repeated within a batch
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * @return number of messages that could not be parsed or processed
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private void startWorkers() {
+        while (!queue.isEmpty()) {
+            int running = workers.get();
+            if (running >= maxWorkers || running * batchSize >= queue.size()) {
+                return;
+            }
+            if (workers.compareAndSet(running, running + 1)) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            work();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    workers.decrementAndGet();
+                    log.warn("Unable to start a notification worker, " + queue.size() + " messages pending: " + e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void work() {
+        List<QueuedMessage> batch = new ArrayList<QueuedMessage>(batchSize);
+        while (true) {
+            batch.clear();
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                workers.decrementAndGet();
+                // a message queued after the drain but before the decrement found this worker still running
+                if (queue.isEmpty()) {
+                    return;
+                }
+                startWorkers();
+                return;
+            }
+            process(batch);
+        }
+    }
+
+    private void process(List<QueuedMessage> batch) {
+        Map<String, Map<String, UpdatedResource>> bySubscriber = new LinkedHashMap<String, Map<String, UpdatedResource>>();
+        for (QueuedMessage message : batch) {
+            List<UpdatedResource> resources;
+            try {
+                resources = service.parseUpdateMessage(message.updateMessage);
+            } catch (FitbitAPIException e) {
+                failureCount.incrementAndGet();
+                log.warn("Dropping update notification: " + e.getMessage());
+                continue;
+            }
+            Map<String, UpdatedResource> unique = bySubscriber.get(message.subscriberId);
+            if (null == unique) {
+                unique = new LinkedHashMap<String, UpdatedResource>();
+                bySubscriber.put(message.subscriberId, unique);
+            }
+            for (UpdatedResource resource : resources) {
+                if (null != unique.put(getUpdateKey(resource), resource)) {
+                    duplicateCount.incrementAndGet();
+                }
+            }
+        }
+
+        Map<String, Collection<UpdatedResource>> resourcesBySubscriber = new LinkedHashMap<String, Collection<UpdatedResource>>();
+        int resources = 0;
+        for (Map.Entry<String, Map<String, UpdatedResource>> entry : bySubscriber.entrySet()) {
+            resourcesBySubscriber.put(entry.getKey(), entry.getValue().values());
+            resources += entry.getValue().size();
+        }
+        if (0 == resources) {
+            return;
+        }
+        try {
+            service.evictUpdatedResources(resourcesBySubscriber);
+            resourceCount.addAndGet(resources);
+        } catch (RuntimeException e) {
+            failureCount.incrementAndGet();
+            log.error("Unable to process " + resources + " updated resources of " + resourcesBySubscriber.size() + " subscribers", e);
+        }
+    }
+
+    private static String getUpdateKey(UpdatedResource resource) {
+        return resource.getSubscriptionId() + '|' + resource.getOwnerType() + '|' + resource.getOwnerId()
+                + '|' + resource.getCollectionType() + '|' + resource.getDate();
+    }
+
+    private static class QueuedMessage {
+        final String subscriberId;
+        final String updateMessage;
+
+        QueuedMessage(String subscriberId, String updateMessage) {
+            this.subscriberId = subscriberId;
+            this.updateMessage = updateMessage;
+        }
+    }
+}
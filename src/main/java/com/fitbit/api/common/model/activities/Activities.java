@@ -3,6 +3,7 @@ package com.fitbit.api.common.model.activities;
 import com.fitbit.api.FitbitAPIException;
 import com.fitbit.api.client.http.Response;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,7 +11,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class Activities {
+public class Activities implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private ActivitiesSummary summary;
     private List<ActivityLog> activities;
@@ -1,5 +1,6 @@
 package com.fitbit.api.common.model.activities;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -7,7 +8,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class ActivitiesSummary {
+public class ActivitiesSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private int caloriesOut;
     private int activityCalories;
     private int marginalCalories;
@@ -3,7 +3,11 @@ package com.fitbit.api.common.model.activities;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class ActivityDistance {
+import java.io.Serializable;
+
+public class ActivityDistance implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String activity;
     private double distance;
 
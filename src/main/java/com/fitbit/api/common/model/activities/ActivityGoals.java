@@ -4,7 +4,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class ActivityGoals {
+import java.io.Serializable;
+
+public class ActivityGoals implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private Integer caloriesOut;
     private Integer steps;
@@ -4,6 +4,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 public class ActivityLog extends LoggedActivityReference {
+    private static final long serialVersionUID = 1L;
+
     long logId;
     String startTime;
     boolean hasStartTime;
@@ -7,10 +7,13 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-public class ActivityReference {
+public class ActivityReference implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     long activityId;
     String name;
     String description;
@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class LoggedActivityReference extends ActivityReference {
+    private static final long serialVersionUID = 1L;
+
     int calories;
     int duration;
     Double distance;
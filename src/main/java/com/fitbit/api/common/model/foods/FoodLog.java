@@ -8,6 +8,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,7 +17,9 @@ import java.util.List;
  * Date: Jul 24, 2010
  * Time: 1:55:43 AM
  */
-public class FoodLog {
+public class FoodLog implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     protected final long logId;
     protected final LoggedFood loggedFood;
     protected final NutritionalValues nutritionalValues;
@@ -6,6 +6,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,7 +15,9 @@ import java.util.List;
  * Date: Sep 11, 2010
  * Time: 11:55:00 AM
  */
-public class FoodUnit {
+public class FoodUnit implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final int id;
     private final String name;
     private final String plural;
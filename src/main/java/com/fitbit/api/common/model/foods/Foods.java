@@ -6,6 +6,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,7 +15,9 @@ import java.util.List;
  * Date: Mar 2, 2010
  * Time: 7:24:32 PM
  */
-public class Foods {
+public class Foods implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private FoodsSummary summary;
     private List<FoodLog> foods;
     private FoodsGoals foodsGoals;
@@ -3,12 +3,15 @@ package com.fitbit.api.common.model.foods;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
+
 /**
  * User: Alex Zh
  * Date: 02.09.11
  * Time: 16:53
  */
-public class FoodsGoals {
+public class FoodsGoals implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private int calories;
 
@@ -10,6 +10,8 @@ import org.json.JSONObject;
  * Time: 7:26:43 PM
  */
 public class FoodsSummary extends NutritionalValues {
+    private static final long serialVersionUID = 1L;
+
     double water;
 
     public FoodsSummary(int calories, double fat, double fiber, double carbs, double sodium, double protein, double water) {
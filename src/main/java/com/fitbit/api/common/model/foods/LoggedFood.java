@@ -6,6 +6,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,7 +15,9 @@ import java.util.List;
  * Date: May 22, 2010
  * Time: 4:27:21 PM
  */
-public class LoggedFood {
+public class LoggedFood implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final long foodId;
     private final String name;
     private final String brand;
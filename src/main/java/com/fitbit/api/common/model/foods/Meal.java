@@ -5,6 +5,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,7 +14,9 @@ import java.util.List;
  * Date: May 25, 2010
  * Time: 10:39:33 PM
  */
-public class Meal {
+public class Meal implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final long id;
     private final String name;
     private final String description;
@@ -3,12 +3,16 @@ package com.fitbit.api.common.model.foods;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Serializable;
+
 /**
  * User: gkutlu
  * Date: Sep 17, 2010
  * Time: 1:41:26 PM
  */
-public class NutritionalValues {
+public class NutritionalValues implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     int calories;
     double fat;
     double fiber;
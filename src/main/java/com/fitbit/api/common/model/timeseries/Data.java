@@ -17,6 +17,11 @@ public class Data {
     String dateTime;
     String value;
 
+    public Data(String dateTime, String value) {
+        this.dateTime = dateTime;
+        this.value = value;
+    }
+
     public Data(JSONObject json) throws JSONException {
         dateTime = json.getString("dateTime");
         value = json.getString("value");
@@ -1,31 +1,197 @@
 package com.fitbit.api.common.model.timeseries;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Intraday samples of one resource for one day, stored column-wise: seconds of day, values and levels in parallel
+ * primitive arrays. Scans over the columns touch no per-sample objects; {@link #getDataset()} builds
+ * {@link IntradayData} objects only when asked for.
+ */
 public class IntradayDataset {
 
-    private int datasetInterval;
+    /**
+     * Level of a sample that has none.
+     */
+    public static final byte NO_LEVEL = -1;
+
+    private final int datasetInterval;
+    private final int size;
+    private final int[] secondsOfDay;
+    private final double[] values;
+    private final byte[] levels;
     private List<IntradayData> dataset;
 
     public IntradayDataset(int datasetInterval, List<IntradayData> dataset) {
         this.datasetInterval = datasetInterval;
+        size = dataset.size();
+        secondsOfDay = new int[size];
+        values = new double[size];
+        levels = new byte[size];
+        for (int i = 0; i < size; i++) {
+            IntradayData data = dataset.get(i);
+            secondsOfDay[i] = parseSecondOfDay(data.getTime());
+            values[i] = data.getValue();
+            levels[i] = null == data.getLevel() ? NO_LEVEL : data.getLevel().byteValue();
+        }
         this.dataset = dataset;
     }
 
     public IntradayDataset(JSONObject json) throws JSONException {
-        this.datasetInterval = json.getInt("datasetInterval");
-        this.dataset = IntradayData.jsonArrayToDataList(json.getJSONArray("dataset"));
+        datasetInterval = json.getInt("datasetInterval");
+        JSONArray array = json.getJSONArray("dataset");
+        size = array.length();
+        secondsOfDay = new int[size];
+        values = new double[size];
+        levels = new byte[size];
+        for (int i = 0; i < size; i++) {
+            JSONObject jsonData = array.getJSONObject(i);
+            try {
+                secondsOfDay[i] = parseSecondOfDay(jsonData.getString("time"));
+            } catch (IllegalArgumentException e) {
+                throw new JSONException(e.getMessage());
+            }
+            values[i] = jsonData.getDouble("value");
+            levels[i] = jsonData.has("level") ? (byte) jsonData.getInt("level") : NO_LEVEL;
+        }
+    }
+
+    /**
+     * Wraps already decoded columns. The arrays are used as they are, not copied.
+     *
+     * @param datasetInterval interval between samples as given by the API
+     * @param size number of samples; the arrays may be longer
+     */
+    public IntradayDataset(int datasetInterval, int size, int[] secondsOfDay, double[] values, byte[] levels) {
+        if (size > secondsOfDay.length || size > values.length || size > levels.length) {
+            throw new IllegalArgumentException("Columns are shorter than " + size + " samples.");
+        }
+        this.datasetInterval = datasetInterval;
+        this.size = size;
+        this.secondsOfDay = secondsOfDay;
+        this.values = values;
+        this.levels = levels;
     }
 
     public int getDatasetInterval() {
         return datasetInterval;
     }
 
-    public List<IntradayData> getDataset() {
+    /**
+     * Builds the samples as objects on first use. Prefer the column accessors for large datasets.
+     *
+     * @return samples in time order
+     */
+    public synchronized List<IntradayData> getDataset() {
+        if (null == dataset) {
+            List<IntradayData> list = new ArrayList<IntradayData>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(new IntradayData(formatSecondOfDay(secondsOfDay[i]), values[i], levels[i] == NO_LEVEL ? null : Integer.valueOf(levels[i])));
+            }
+            dataset = Collections.unmodifiableList(list);
+        }
         return dataset;
     }
 
+    public int size() {
+        return size;
+    }
+
+    public int getSecondOfDay(int index) {
+        checkIndex(index);
+        return secondsOfDay[index];
+    }
+
+    public double getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * @return level of the sample, {@link #NO_LEVEL} if it has none
+     */
+    public byte getLevel(int index) {
+        checkIndex(index);
+        return levels[index];
+    }
+
+    /**
+     * @return seconds of day of the samples; shared with this dataset, valid up to {@link #size()}, do not modify
+     */
+    public int[] getSecondsOfDay() {
+        return secondsOfDay;
+    }
+
+    /**
+     * @return values of the samples; shared with this dataset, valid up to {@link #size()}, do not modify
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return levels of the samples; shared with this dataset, valid up to {@link #size()}, do not modify
+     */
+    public byte[] getLevels() {
+        return levels;
+    }
+
+    public double sum() {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * @param time HH:mm or HH:mm:ss
+     * @return seconds since midnight
+     */
+    static int parseSecondOfDay(String time) {
+        int length = time.length();
+        if (length != 5 && length != 8) {
+            throw new IllegalArgumentException("Invalid intraday time: " + time);
+        }
+        int seconds = digits(time, 0) * 3600 + digits(time, 3) * 60;
+        if (length == 8) {
+            seconds += digits(time, 6);
+        }
+        return seconds;
+    }
+
+    private static int digits(String time, int offset) {
+        char tens = time.charAt(offset);
+        char ones = time.charAt(offset + 1);
+        if (tens < '0' || tens > '9' || ones < '0' || ones > '9') {
+            throw new IllegalArgumentException("Invalid intraday time: " + time);
+        }
+        return (tens - '0') * 10 + (ones - '0');
+    }
+
+    static String formatSecondOfDay(int secondOfDay) {
+        char[] chars = new char[8];
+        twoDigits(chars, 0, secondOfDay / 3600);
+        chars[2] = ':';
+        twoDigits(chars, 3, secondOfDay / 60 % 60);
+        chars[5] = ':';
+        twoDigits(chars, 6, secondOfDay % 60);
+        return new String(chars);
+    }
+
+    private static void twoDigits(char[] chars, int offset, int value) {
+        chars[offset] = (char) ('0' + value / 10);
+        chars[offset + 1] = (char) ('0' + value % 10);
+    }
 }
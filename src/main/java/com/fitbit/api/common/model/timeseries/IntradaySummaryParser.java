@@ -0,0 +1,135 @@
+package com.fitbit.api.common.model.timeseries;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.util.Arrays;
+
+/**
+ * Decodes an intraday time series response token by token into an {@link IntradaySummary}. The samples go straight
+ * into the columns of an {@link IntradayDataset}; no JSONObject, String or boxed number is created per sample.
+ * <p/>
+ * Instances keep scratch buffers and are not thread safe; use one per response.
+ */
+public class IntradaySummaryParser extends TimeSeriesJSONParser<IntradaySummary> {
+
+    private static final int MINUTES_PER_DAY = 1440;
+
+    private static final char[][] SAMPLE_KEYS = {"time".toCharArray(), "value".toCharArray(), "level".toCharArray()};
+    private static final int KEY_TIME = 0;
+    private static final int KEY_VALUE = 1;
+    private static final int KEY_LEVEL = 2;
+
+    private final TimeSeriesResourceType resourceType;
+
+    private int size;
+    private int[] secondsOfDay;
+    private double[] values;
+    private byte[] levels;
+
+    public IntradaySummaryParser(TimeSeriesResourceType resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    @Override
+    public IntradaySummary parse(JSONTokener x) throws JSONException {
+        String timeSeriesJsonName = getJsonName(resourceType);
+        String intradayDataJsonName = timeSeriesJsonName + "-intraday";
+
+        Data summary = null;
+        IntradayDataset intradayDataset = null;
+        expect(x, '{');
+        if (!isEnd(x, '}')) {
+            do {
+                String key = readKey(x);
+                if (timeSeriesJsonName.equals(key)) {
+                    summary = Data.jsonArrayToDataList(new JSONArray(x)).get(0);
+                } else if (intradayDataJsonName.equals(key)) {
+                    intradayDataset = parseDataset(x);
+                } else {
+                    x.nextValue();
+                }
+            } while (nextMember(x, '}'));
+        }
+        if (null == summary) {
+            throw x.syntaxError("Missing " + timeSeriesJsonName);
+        }
+        return new IntradaySummary(summary, intradayDataset);
+    }
+
+    private IntradayDataset parseDataset(JSONTokener x) throws JSONException {
+        int datasetInterval = 0;
+        size = 0;
+        secondsOfDay = new int[MINUTES_PER_DAY];
+        values = new double[MINUTES_PER_DAY];
+        levels = new byte[MINUTES_PER_DAY];
+
+        expect(x, '{');
+        if (!isEnd(x, '}')) {
+            do {
+                String key = readKey(x);
+                if ("dataset".equals(key)) {
+                    parseSamples(x);
+                } else if ("datasetInterval".equals(key)) {
+                    datasetInterval = (int) readNumber(x);
+                } else {
+                    x.nextValue();
+                }
+            } while (nextMember(x, '}'));
+        }
+        return new IntradayDataset(datasetInterval, size,
+                Arrays.copyOf(secondsOfDay, size), Arrays.copyOf(values, size), Arrays.copyOf(levels, size));
+    }
+
+    private void parseSamples(JSONTokener x) throws JSONException {
+        expect(x, '[');
+        if (isEnd(x, ']')) {
+            return;
+        }
+        do {
+            parseSample(x);
+        } while (nextMember(x, ']'));
+    }
+
+    private void parseSample(JSONTokener x) throws JSONException {
+        int secondOfDay = -1;
+        double value = 0;
+        boolean hasValue = false;
+        byte level = IntradayDataset.NO_LEVEL;
+
+        expect(x, '{');
+        if (!isEnd(x, '}')) {
+            do {
+                switch (readKey(x, SAMPLE_KEYS)) {
+                    case KEY_TIME:
+                        secondOfDay = readSecondOfDay(x);
+                        break;
+                    case KEY_VALUE:
+                        value = readNumber(x);
+                        hasValue = true;
+                        break;
+                    case KEY_LEVEL:
+                        level = (byte) readNumber(x);
+                        break;
+                    default:
+                        x.nextValue();
+                }
+            } while (nextMember(x, '}'));
+        }
+        if (secondOfDay < 0 || !hasValue) {
+            throw x.syntaxError("Intraday sample without time or value");
+        }
+
+        if (size == values.length) {
+            int capacity = size * 2;
+            secondsOfDay = Arrays.copyOf(secondsOfDay, capacity);
+            values = Arrays.copyOf(values, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+        }
+        secondsOfDay[size] = secondOfDay;
+        values[size] = value;
+        levels[size] = level;
+        size++;
+    }
+}
@@ -0,0 +1,401 @@
+package com.fitbit.api.common.model.timeseries;
+
+import org.joda.time.LocalDate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Daily values of one resource, stored as parallel primitive arrays: days since 1970-01-01 and long or double values
+ * depending on the {@link TimeSeriesValueType} of the resource. Values are parsed once when the series is built;
+ * slices share the arrays of the series they are taken from, and aggregations run over the arrays without allocating.
+ * <p/>
+ * Days are in ascending order. Missing values are NaN for decimal series and -1 for time of day series; they are
+ * skipped by the aggregations.
+ */
+public class TimeSeries implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Aggregation {
+        SUM,
+        AVERAGE,
+        MIN,
+        MAX
+    }
+
+    private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
+    private final TimeSeriesResourceType resourceType;
+    private final int[] epochDays;
+    private final long[] longValues;
+    private final double[] doubleValues;
+    private final int offset;
+    private final int size;
+
+    /**
+     * Wraps integral columns, which are used as they are, not copied.
+     *
+     * @param size number of values; the arrays may be longer
+     */
+    public TimeSeries(TimeSeriesResourceType resourceType, int[] epochDays, long[] values, int size) {
+        this(resourceType, epochDays, values, null, 0, checkSize(size, epochDays.length, values.length));
+    }
+
+    /**
+     * Wraps decimal columns, which are used as they are, not copied.
+     *
+     * @param size number of values; the arrays may be longer
+     */
+    public TimeSeries(TimeSeriesResourceType resourceType, int[] epochDays, double[] values, int size) {
+        this(resourceType, epochDays, null, values, 0, checkSize(size, epochDays.length, values.length));
+    }
+
+    private TimeSeries(TimeSeriesResourceType resourceType, int[] epochDays, long[] longValues, double[] doubleValues, int offset, int size) {
+        this.resourceType = resourceType;
+        this.epochDays = epochDays;
+        this.longValues = longValues;
+        this.doubleValues = doubleValues;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    private static int checkSize(int size, int daysLength, int valuesLength) {
+        if (size < 0 || size > daysLength || size > valuesLength) {
+            throw new IllegalArgumentException("Columns are shorter than " + size + " values.");
+        }
+        return size;
+    }
+
+    public static TimeSeries empty(TimeSeriesResourceType resourceType) {
+        if (resourceType.getValueType().isIntegral()) {
+            return new TimeSeries(resourceType, new int[0], new long[0], 0);
+        }
+        return new TimeSeries(resourceType, new int[0], new double[0], 0);
+    }
+
+    /**
+     * Parses a list of values as returned by
+     * {@link com.fitbit.api.client.FitbitApiClientAgent#getTimeSeries(com.fitbit.api.client.LocalUserDetail, com.fitbit.api.model.FitbitUser, TimeSeriesResourceType, LocalDate, LocalDate)}.
+     */
+    public static TimeSeries fromDataList(TimeSeriesResourceType resourceType, List<Data> dataList) {
+        int size = dataList.size();
+        int[] epochDays = new int[size];
+        TimeSeriesValueType valueType = resourceType.getValueType();
+        long[] longValues = valueType.isIntegral() ? new long[size] : null;
+        double[] doubleValues = valueType.isIntegral() ? null : new double[size];
+        for (int i = 0; i < size; i++) {
+            Data data = dataList.get(i);
+            epochDays[i] = toEpochDay(LocalDate.parse(data.getDateTime()));
+            String value = data.getValue();
+            if (valueType == TimeSeriesValueType.DECIMAL) {
+                doubleValues[i] = null == value || value.length() == 0 ? Double.NaN : Double.parseDouble(value);
+            } else if (valueType == TimeSeriesValueType.TIME_OF_DAY) {
+                longValues[i] = null == value || value.length() == 0 ? -1 : IntradayDataset.parseSecondOfDay(value) / 60;
+            } else {
+                longValues[i] = null == value || value.length() == 0 ? 0 : Math.round(Double.parseDouble(value));
+            }
+        }
+        return new TimeSeries(resourceType, epochDays, longValues, doubleValues, 0, size);
+    }
+
+    /**
+     * Joins series of one resource that follow each other in time. Days already covered by an earlier part are
+     * skipped, so parts of overlapping ranges join cleanly.
+     *
+     * @param parts series in ascending order of their first day
+     */
+    public static TimeSeries concat(TimeSeriesResourceType resourceType, List<TimeSeries> parts) {
+        int capacity = 0;
+        for (TimeSeries part : parts) {
+            capacity += part.size;
+        }
+        boolean integral = resourceType.getValueType().isIntegral();
+        int[] epochDays = new int[capacity];
+        long[] longValues = integral ? new long[capacity] : null;
+        double[] doubleValues = integral ? null : new double[capacity];
+        int size = 0;
+        for (TimeSeries part : parts) {
+            int from = 0;
+            if (size > 0) {
+                from = part.indexOf(epochDays[size - 1] + 1);
+                if (from < 0) {
+                    from = -from - 1;
+                }
+            }
+            int count = part.size - from;
+            if (count <= 0) {
+                continue;
+            }
+            System.arraycopy(part.epochDays, part.offset + from, epochDays, size, count);
+            if (integral && null != part.longValues) {
+                System.arraycopy(part.longValues, part.offset + from, longValues, size, count);
+            } else if (!integral && null != part.doubleValues) {
+                System.arraycopy(part.doubleValues, part.offset + from, doubleValues, size, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    if (integral) {
+                        longValues[size + i] = part.getLong(from + i);
+                    } else {
+                        doubleValues[size + i] = part.getDouble(from + i);
+                    }
+                }
+            }
+            size += count;
+        }
+        return new TimeSeries(resourceType, epochDays, longValues, doubleValues, 0, size);
+    }
+
+    /**
+     * @return the values as {@link Data} objects, e.g. for code written against the list based API
+     */
+    public List<Data> toDataList() {
+        List<Data> dataList = new ArrayList<Data>(size);
+        for (int i = 0; i < size; i++) {
+            String value;
+            if (resourceType.getValueType() == TimeSeriesValueType.TIME_OF_DAY && null != longValues) {
+                long minutes = longValues[offset + i];
+                value = minutes < 0 ? "" : IntradayDataset.formatSecondOfDay((int) minutes * 60).substring(0, 5);
+            } else if (null != longValues) {
+                value = String.valueOf(longValues[offset + i]);
+            } else {
+                double d = doubleValues[offset + i];
+                value = Double.isNaN(d) ? "" : String.valueOf(d);
+            }
+            dataList.add(new Data(getDate(i).toString(), value));
+        }
+        return dataList;
+    }
+
+    public TimeSeriesResourceType getResourceType() {
+        return resourceType;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if the values are stored as long
+     */
+    public boolean isIntegral() {
+        return null != longValues;
+    }
+
+    public int getEpochDay(int index) {
+        checkIndex(index);
+        return epochDays[offset + index];
+    }
+
+    public LocalDate getDate(int index) {
+        return toLocalDate(getEpochDay(index));
+    }
+
+    public long getLong(int index) {
+        checkIndex(index);
+        return null != longValues ? longValues[offset + index] : (long) doubleValues[offset + index];
+    }
+
+    public double getDouble(int index) {
+        checkIndex(index);
+        if (null != doubleValues) {
+            return doubleValues[offset + index];
+        }
+        long value = longValues[offset + index];
+        return isMissing(value) ? Double.NaN : value;
+    }
+
+    /**
+     * @return index of the day, or (-(insertion point) - 1) if there is no value for it
+     */
+    public int indexOf(int epochDay) {
+        int low = offset;
+        int high = offset + size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int day = epochDays[mid];
+            if (day < epochDay) {
+                low = mid + 1;
+            } else if (day > epochDay) {
+                high = mid - 1;
+            } else {
+                return mid - offset;
+            }
+        }
+        return -(low - offset) - 1;
+    }
+
+    /**
+     * @param fromIndex first index, inclusive
+     * @param toIndex last index, exclusive
+     * @return view of the values in the index range, sharing this series' arrays
+     */
+    public TimeSeries slice(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Slice " + fromIndex + ".." + toIndex + " of " + size);
+        }
+        return new TimeSeries(resourceType, epochDays, longValues, doubleValues, offset + fromIndex, toIndex - fromIndex);
+    }
+
+    /**
+     * @param from first day, inclusive
+     * @param to last day, inclusive
+     * @return view of the values in the date range, sharing this series' arrays
+     */
+    public TimeSeries slice(LocalDate from, LocalDate to) {
+        int fromIndex = indexOf(toEpochDay(from));
+        if (fromIndex < 0) {
+            fromIndex = -fromIndex - 1;
+        }
+        int toIndex = indexOf(toEpochDay(to));
+        toIndex = toIndex < 0 ? -toIndex - 1 : toIndex + 1;
+        return slice(fromIndex, Math.max(fromIndex, toIndex));
+    }
+
+    public double sum() {
+        return aggregate(Aggregation.SUM, offset, offset + size);
+    }
+
+    /**
+     * @return average of the values present, NaN if there are none
+     */
+    public double average() {
+        return aggregate(Aggregation.AVERAGE, offset, offset + size);
+    }
+
+    /**
+     * @return smallest value present, NaN if there are none
+     */
+    public double min() {
+        return aggregate(Aggregation.MIN, offset, offset + size);
+    }
+
+    /**
+     * @return largest value present, NaN if there are none
+     */
+    public double max() {
+        return aggregate(Aggregation.MAX, offset, offset + size);
+    }
+
+    /**
+     * Aggregates the values into buckets of {@code bucketDays} days, the first one starting at the first day of this
+     * series, and writes them into the given arrays. Nothing is allocated.
+     *
+     * @param outEpochDays receives the first day of each bucket
+     * @param outValues receives the aggregated value of each bucket, NaN if the bucket holds no values
+     * @return number of buckets written
+     * @throws IndexOutOfBoundsException if the arrays are too short for all buckets
+     */
+    public int downsample(int bucketDays, Aggregation aggregation, int[] outEpochDays, double[] outValues) {
+        if (bucketDays < 1) {
+            throw new IllegalArgumentException("Bucket must span at least one day.");
+        }
+        int buckets = 0;
+        int start = offset;
+        int end = offset + size;
+        while (start < end) {
+            int bucketStart = epochDays[offset] + (epochDays[start] - epochDays[offset]) / bucketDays * bucketDays;
+            int bucketEnd = start;
+            while (bucketEnd < end && epochDays[bucketEnd] < bucketStart + bucketDays) {
+                bucketEnd++;
+            }
+            outEpochDays[buckets] = bucketStart;
+            outValues[buckets] = aggregate(aggregation, start, bucketEnd);
+            buckets++;
+            start = bucketEnd;
+        }
+        return buckets;
+    }
+
+    /**
+     * Like {@link #downsample(int, Aggregation, int[], double[])}, into a new decimal series.
+     */
+    public TimeSeries downsample(int bucketDays, Aggregation aggregation) {
+        int capacity = isEmpty() ? 0 : (epochDays[offset + size - 1] - epochDays[offset]) / bucketDays + 1;
+        int[] outEpochDays = new int[capacity];
+        double[] outValues = new double[capacity];
+        int buckets = downsample(bucketDays, aggregation, outEpochDays, outValues);
+        return new TimeSeries(resourceType, outEpochDays, outValues, buckets);
+    }
+
+    private double aggregate(Aggregation aggregation, int from, int to) {
+        double result = aggregation == Aggregation.SUM ? 0 : Double.NaN;
+        double sum = 0;
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            double value;
+            if (null != longValues) {
+                long longValue = longValues[i];
+                if (isMissing(longValue)) {
+                    continue;
+                }
+                value = longValue;
+            } else {
+                value = doubleValues[i];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+            }
+            switch (aggregation) {
+                case MIN:
+                    result = count == 0 || value < result ? value : result;
+                    break;
+                case MAX:
+                    result = count == 0 || value > result ? value : result;
+                    break;
+                default:
+                    sum += value;
+            }
+            count++;
+        }
+        if (aggregation == Aggregation.SUM) {
+            return sum;
+        } else if (aggregation == Aggregation.AVERAGE) {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+        return result;
+    }
+
+    private boolean isMissing(long value) {
+        return value < 0 && resourceType.getValueType() == TimeSeriesValueType.TIME_OF_DAY;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 of a proleptic Gregorian date
+     */
+    public static int toEpochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    public static int toEpochDay(LocalDate date) {
+        return toEpochDay(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth());
+    }
+
+    public static LocalDate toLocalDate(int epochDay) {
+        return EPOCH.plusDays(epochDay);
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeries{" +
+                "resourceType=" + resourceType +
+                ", size=" + size +
+                (isEmpty() ? "" : ", from=" + getDate(0) + ", to=" + getDate(size - 1)) +
+                '}';
+    }
+}
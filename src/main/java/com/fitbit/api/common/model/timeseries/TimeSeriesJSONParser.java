@@ -0,0 +1,227 @@
+package com.fitbit.api.common.model.timeseries;
+
+import com.fitbit.api.client.http.JSONStreamParser;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.util.Arrays;
+
+/**
+ * Token level helpers for the time series decoders. Member names of samples are matched and numbers, dates and times
+ * are decoded without creating a String per sample.
+ * <p/>
+ * Instances keep scratch buffers and are not thread safe; use one per response.
+ */
+abstract class TimeSeriesJSONParser<T> implements JSONStreamParser<T> {
+
+    private final char[] keyBuffer = new char[16];
+    private char[] numberBuffer = new char[32];
+
+    /**
+     * @return JSON member name of the series of a resource, e.g. activities-steps
+     */
+    static String getJsonName(TimeSeriesResourceType resourceType) {
+        return resourceType.getResourcePath().substring(1).replace('/', '-');
+    }
+
+    static void expect(JSONTokener x, char expected) throws JSONException {
+        if (x.nextClean() != expected) {
+            throw x.syntaxError("Expected '" + expected + '\'');
+        }
+    }
+
+    static boolean isEnd(JSONTokener x, char close) throws JSONException {
+        if (x.nextClean() == close) {
+            return true;
+        }
+        x.back();
+        return false;
+    }
+
+    /**
+     * @return true if another member follows, false at the closing bracket
+     */
+    static boolean nextMember(JSONTokener x, char close) throws JSONException {
+        char c = x.nextClean();
+        if (c == ',') {
+            return true;
+        } else if (c == close) {
+            return false;
+        }
+        throw x.syntaxError("Expected ',' or '" + close + '\'');
+    }
+
+    static String readKey(JSONTokener x) throws JSONException {
+        expect(x, '"');
+        String key = x.nextString('"');
+        expect(x, ':');
+        return key;
+    }
+
+    /**
+     * Reads a member name and matches it against the given names without creating a String for it.
+     *
+     * @return index of the matching name, -1 if none matches
+     */
+    int readKey(JSONTokener x, char[]... keys) throws JSONException {
+        expect(x, '"');
+        int length = 0;
+        boolean fits = true;
+        for (char c = x.next(); c != '"'; c = x.next()) {
+            if (c == 0 || c == '\n' || c == '\r') {
+                throw x.syntaxError("Unterminated string");
+            }
+            if (c == '\\') {
+                x.next();
+                fits = false;
+            } else if (length < keyBuffer.length) {
+                keyBuffer[length++] = c;
+            } else {
+                fits = false;
+            }
+        }
+        expect(x, ':');
+        if (fits) {
+            for (int i = 0; i < keys.length; i++) {
+                if (matches(keys[i], length)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(char[] key, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != keyBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number, or a number in quotes, without creating a String for plain integers.
+     *
+     * @return the number, NaN for an empty string
+     */
+    double readNumber(JSONTokener x) throws JSONException {
+        char c = x.nextClean();
+        boolean quoted = c == '"';
+        if (quoted) {
+            c = x.next();
+        }
+        int length = 0;
+        boolean integral = true;
+        while ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+            if (length == numberBuffer.length) {
+                numberBuffer = Arrays.copyOf(numberBuffer, length * 2);
+            }
+            numberBuffer[length++] = c;
+            if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+                integral = false;
+            }
+            c = x.next();
+        }
+        if (quoted) {
+            if (c != '"') {
+                throw x.syntaxError("Unterminated number");
+            }
+            if (length == 0) {
+                return Double.NaN;
+            }
+        } else {
+            x.back();
+        }
+        if (length == 0) {
+            throw x.syntaxError("Expected a number");
+        }
+
+        if (integral && length < 19) {
+            boolean negative = numberBuffer[0] == '-';
+            long result = 0;
+            for (int i = negative ? 1 : 0; i < length; i++) {
+                char digit = numberBuffer[i];
+                if (digit < '0' || digit > '9') {
+                    throw x.syntaxError("Invalid number");
+                }
+                result = result * 10 + (digit - '0');
+            }
+            return negative ? -result : result;
+        }
+        try {
+            return Double.parseDouble(new String(numberBuffer, 0, length));
+        } catch (NumberFormatException e) {
+            throw x.syntaxError("Invalid number");
+        }
+    }
+
+    /**
+     * Reads a quoted HH:mm or HH:mm:ss time.
+     *
+     * @return seconds of day, -1 for an empty string
+     */
+    static int readSecondOfDay(JSONTokener x) throws JSONException {
+        expect(x, '"');
+        int seconds = 0;
+        int field = 0;
+        int fields = 1;
+        int length = 0;
+        for (char c = x.next(); c != '"'; c = x.next()) {
+            if (c >= '0' && c <= '9') {
+                field = field * 10 + (c - '0');
+            } else if (c == ':' && fields < 3) {
+                seconds = (seconds + field) * 60;
+                field = 0;
+                fields++;
+            } else {
+                throw x.syntaxError("Invalid time");
+            }
+            length++;
+        }
+        if (length == 0) {
+            return -1;
+        } else if (fields == 2) {
+            // HH:mm
+            return (seconds + field) * 60;
+        } else if (fields == 3) {
+            return seconds + field;
+        }
+        throw x.syntaxError("Invalid time");
+    }
+
+    /**
+     * Reads a quoted yyyy-MM-dd date.
+     *
+     * @return days since 1970-01-01
+     */
+    static int readEpochDay(JSONTokener x) throws JSONException {
+        expect(x, '"');
+        int year = 0;
+        int month = 0;
+        int day = 0;
+        int field = 0;
+        for (char c = x.next(); c != '"'; c = x.next()) {
+            if (c >= '0' && c <= '9') {
+                if (field == 0) {
+                    year = year * 10 + (c - '0');
+                } else if (field == 1) {
+                    month = month * 10 + (c - '0');
+                } else {
+                    day = day * 10 + (c - '0');
+                }
+            } else if (c == '-' && field < 2) {
+                field++;
+            } else {
+                throw x.syntaxError("Invalid date");
+            }
+        }
+        if (field != 2 || month < 1 || month > 12 || day < 1 || day > 31) {
+            throw x.syntaxError("Invalid date");
+        }
+        return TimeSeries.toEpochDay(year, month, day);
+    }
+}
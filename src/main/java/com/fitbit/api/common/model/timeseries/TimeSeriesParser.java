@@ -0,0 +1,129 @@
+package com.fitbit.api.common.model.timeseries;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.util.Arrays;
+
+/**
+ * Decodes a time series response token by token into a {@link TimeSeries}. Dates and values go straight into the
+ * columns; no JSONObject, String or boxed number is created per day.
+ * <p/>
+ * Instances keep scratch buffers and are not thread safe; use one per response.
+ */
+public class TimeSeriesParser extends TimeSeriesJSONParser<TimeSeries> {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static final char[][] DAY_KEYS = {"dateTime".toCharArray(), "value".toCharArray()};
+    private static final int KEY_DATE_TIME = 0;
+    private static final int KEY_VALUE = 1;
+
+    private final TimeSeriesResourceType resourceType;
+    private final TimeSeriesValueType valueType;
+
+    private int size;
+    private int[] epochDays;
+    private long[] longValues;
+    private double[] doubleValues;
+
+    public TimeSeriesParser(TimeSeriesResourceType resourceType) {
+        this.resourceType = resourceType;
+        valueType = resourceType.getValueType();
+    }
+
+    @Override
+    public TimeSeries parse(JSONTokener x) throws JSONException {
+        String timeSeriesJsonName = getJsonName(resourceType);
+
+        TimeSeries timeSeries = null;
+        expect(x, '{');
+        if (!isEnd(x, '}')) {
+            do {
+                String key = readKey(x);
+                if (timeSeriesJsonName.equals(key)) {
+                    timeSeries = parseDays(x);
+                } else {
+                    x.nextValue();
+                }
+            } while (nextMember(x, '}'));
+        }
+        if (null == timeSeries) {
+            throw x.syntaxError("Missing " + timeSeriesJsonName);
+        }
+        return timeSeries;
+    }
+
+    private TimeSeries parseDays(JSONTokener x) throws JSONException {
+        size = 0;
+        epochDays = new int[INITIAL_CAPACITY];
+        if (valueType.isIntegral()) {
+            longValues = new long[INITIAL_CAPACITY];
+        } else {
+            doubleValues = new double[INITIAL_CAPACITY];
+        }
+
+        expect(x, '[');
+        if (!isEnd(x, ']')) {
+            do {
+                parseDay(x);
+            } while (nextMember(x, ']'));
+        }
+        if (valueType.isIntegral()) {
+            return new TimeSeries(resourceType, Arrays.copyOf(epochDays, size), Arrays.copyOf(longValues, size), size);
+        }
+        return new TimeSeries(resourceType, Arrays.copyOf(epochDays, size), Arrays.copyOf(doubleValues, size), size);
+    }
+
+    private void parseDay(JSONTokener x) throws JSONException {
+        int epochDay = 0;
+        boolean hasDate = false;
+        long longValue = valueType == TimeSeriesValueType.TIME_OF_DAY ? -1 : 0;
+        double doubleValue = Double.NaN;
+
+        expect(x, '{');
+        if (!isEnd(x, '}')) {
+            do {
+                switch (readKey(x, DAY_KEYS)) {
+                    case KEY_DATE_TIME:
+                        epochDay = readEpochDay(x);
+                        hasDate = true;
+                        break;
+                    case KEY_VALUE:
+                        if (valueType == TimeSeriesValueType.TIME_OF_DAY) {
+                            int secondOfDay = readSecondOfDay(x);
+                            longValue = secondOfDay < 0 ? -1 : secondOfDay / 60;
+                        } else if (valueType == TimeSeriesValueType.DECIMAL) {
+                            doubleValue = readNumber(x);
+                        } else {
+                            double value = readNumber(x);
+                            longValue = Double.isNaN(value) ? 0 : Math.round(value);
+                        }
+                        break;
+                    default:
+                        x.nextValue();
+                }
+            } while (nextMember(x, '}'));
+        }
+        if (!hasDate) {
+            throw x.syntaxError("Time series value without dateTime");
+        }
+
+        if (size == epochDays.length) {
+            int capacity = size * 2;
+            epochDays = Arrays.copyOf(epochDays, capacity);
+            if (null != longValues) {
+                longValues = Arrays.copyOf(longValues, capacity);
+            } else {
+                doubleValues = Arrays.copyOf(doubleValues, capacity);
+            }
+        }
+        epochDays[size] = epochDay;
+        if (null != longValues) {
+            longValues[size] = longValue;
+        } else {
+            doubleValues[size] = doubleValue;
+        }
+        size++;
+    }
+}
@@ -7,51 +7,57 @@ package com.fitbit.api.common.model.timeseries;
  */
 public enum TimeSeriesResourceType {
     //food
-    CALORIES_IN("/foods/log/caloriesIn"),
-    WATER("/foods/log/water"),
+    CALORIES_IN("/foods/log/caloriesIn", TimeSeriesValueType.COUNT),
+    WATER("/foods/log/water", TimeSeriesValueType.DECIMAL),
     //activity
-    CALORIES_OUT("/activities/calories"),
-    STEPS("/activities/steps"),
-    DISTANCE("/activities/distance"),
-    MINUTES_SEDENTARY("/activities/minutesSedentary"),
-    MINUTES_LIGHTLY_ACTIVE("/activities/minutesLightlyActive"),
-    MINUTES_FAIRLY_ACTIVE("/activities/minutesFairlyActive"),
-    MINUTES_VERY_ACTIVE("/activities/minutesVeryActive"),
-    ACTIVITY_CALORIES("/activities/activityCalories"),
-    FLOORS("/activities/floors"),
-    ELEVATION("/activities/elevation"),
+    CALORIES_OUT("/activities/calories", TimeSeriesValueType.COUNT),
+    STEPS("/activities/steps", TimeSeriesValueType.COUNT),
+    DISTANCE("/activities/distance", TimeSeriesValueType.DECIMAL),
+    MINUTES_SEDENTARY("/activities/minutesSedentary", TimeSeriesValueType.COUNT),
+    MINUTES_LIGHTLY_ACTIVE("/activities/minutesLightlyActive", TimeSeriesValueType.COUNT),
+    MINUTES_FAIRLY_ACTIVE("/activities/minutesFairlyActive", TimeSeriesValueType.COUNT),
+    MINUTES_VERY_ACTIVE("/activities/minutesVeryActive", TimeSeriesValueType.COUNT),
+    ACTIVITY_CALORIES("/activities/activityCalories", TimeSeriesValueType.COUNT),
+    FLOORS("/activities/floors", TimeSeriesValueType.COUNT),
+    ELEVATION("/activities/elevation", TimeSeriesValueType.DECIMAL),
     //tracker activity
-    CALORIES_OUT_TRACKER("/activities/tracker/calories"),
-    STEPS_TRACKER("/activities/tracker/steps"),
-    DISTANCE_TRACKER("/activities/tracker/distance"),
-    ACTIVITY_CALORIES_TRACKER("/activities/tracker/activityCalories"),
-    FLOORS_TRACKER("/activities/tracker/floors"),
-    ELEVATION_TRACKER("/activities/tracker/elevation"),
-    MINUTES_SEDENTARY_TRACKER("/activities/tracker/minutesSedentary"),
-    MINUTES_LIGHTLY_ACTIVE_TRACKER("/activities/tracker/minutesLightlyActive"),
-    MINUTES_FAIRLY_ACTIVE_TRACKER("/activities/tracker/minutesFairlyActive"),
-    MINUTES_VERY_ACTIVE_TRACKER("/activities/tracker/minutesVeryActive"),
+    CALORIES_OUT_TRACKER("/activities/tracker/calories", TimeSeriesValueType.COUNT),
+    STEPS_TRACKER("/activities/tracker/steps", TimeSeriesValueType.COUNT),
+    DISTANCE_TRACKER("/activities/tracker/distance", TimeSeriesValueType.DECIMAL),
+    ACTIVITY_CALORIES_TRACKER("/activities/tracker/activityCalories", TimeSeriesValueType.COUNT),
+    FLOORS_TRACKER("/activities/tracker/floors", TimeSeriesValueType.COUNT),
+    ELEVATION_TRACKER("/activities/tracker/elevation", TimeSeriesValueType.DECIMAL),
+    MINUTES_SEDENTARY_TRACKER("/activities/tracker/minutesSedentary", TimeSeriesValueType.COUNT),
+    MINUTES_LIGHTLY_ACTIVE_TRACKER("/activities/tracker/minutesLightlyActive", TimeSeriesValueType.COUNT),
+    MINUTES_FAIRLY_ACTIVE_TRACKER("/activities/tracker/minutesFairlyActive", TimeSeriesValueType.COUNT),
+    MINUTES_VERY_ACTIVE_TRACKER("/activities/tracker/minutesVeryActive", TimeSeriesValueType.COUNT),
     //sleep
-    MINUTES_ASLEEP("/sleep/minutesAsleep"),
-    MINUTES_AWAKE("/sleep/minutesAwake"),
-    AWAKENINGS_COUNT("/sleep/awakeningsCount"),
-    TIME_IN_BED("/sleep/timeInBed"),
-    MINUTES_TO_FALL_ASLEEP("/sleep/minutesToFallAsleep"),
-    MINUTES_AFTER_WAKEUP("/sleep/minutesAfterWakeup"),
-    TIME_ENTERED_BED("/sleep/startTime"),
-    EFFICIENCY("/sleep/efficiency"),
+    MINUTES_ASLEEP("/sleep/minutesAsleep", TimeSeriesValueType.COUNT),
+    MINUTES_AWAKE("/sleep/minutesAwake", TimeSeriesValueType.COUNT),
+    AWAKENINGS_COUNT("/sleep/awakeningsCount", TimeSeriesValueType.COUNT),
+    TIME_IN_BED("/sleep/timeInBed", TimeSeriesValueType.COUNT),
+    MINUTES_TO_FALL_ASLEEP("/sleep/minutesToFallAsleep", TimeSeriesValueType.COUNT),
+    MINUTES_AFTER_WAKEUP("/sleep/minutesAfterWakeup", TimeSeriesValueType.COUNT),
+    TIME_ENTERED_BED("/sleep/startTime", TimeSeriesValueType.TIME_OF_DAY),
+    EFFICIENCY("/sleep/efficiency", TimeSeriesValueType.COUNT),
     //body
-    WEIGHT("/body/weight"),
-    BMI("/body/bmi"),
-    FAT("/body/fat");
+    WEIGHT("/body/weight", TimeSeriesValueType.DECIMAL),
+    BMI("/body/bmi", TimeSeriesValueType.DECIMAL),
+    FAT("/body/fat", TimeSeriesValueType.DECIMAL);
 
     private String resourcePath;
+    private TimeSeriesValueType valueType;
 
-    TimeSeriesResourceType(String resourcePath) {
+    TimeSeriesResourceType(String resourcePath, TimeSeriesValueType valueType) {
         this.resourcePath = resourcePath;
+        this.valueType = valueType;
     }
 
     public String getResourcePath() {
         return resourcePath;
     }
+
+    public TimeSeriesValueType getValueType() {
+        return valueType;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package com.fitbit.api.common.model.timeseries;
+
+import org.joda.time.LocalDate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Time series of several resources over one window of days, aligned by day: row {@code i} of every column is the
+ * {@code i}th day of the window. Columns are double arrays with NaN for days a resource has no value for; the
+ * underlying {@link TimeSeries} keep the exact values.
+ */
+public class TimeSeriesTable {
+
+    private final int startDay;
+    private final int size;
+    private final Map<TimeSeriesResourceType, TimeSeries> series;
+    private final Map<TimeSeriesResourceType, double[]> columns;
+
+    /**
+     * @param startDate first day of the window, inclusive
+     * @param endDate last day of the window, inclusive
+     * @param series values per resource; days outside of the window are ignored
+     */
+    public TimeSeriesTable(LocalDate startDate, LocalDate endDate, Map<TimeSeriesResourceType, TimeSeries> series) {
+        startDay = TimeSeries.toEpochDay(startDate);
+        size = TimeSeries.toEpochDay(endDate) - startDay + 1;
+        if (size < 1) {
+            throw new IllegalArgumentException("End date " + endDate + " is before start date " + startDate);
+        }
+        Map<TimeSeriesResourceType, TimeSeries> windowSeries = new EnumMap<TimeSeriesResourceType, TimeSeries>(TimeSeriesResourceType.class);
+        Map<TimeSeriesResourceType, double[]> windowColumns = new EnumMap<TimeSeriesResourceType, double[]>(TimeSeriesResourceType.class);
+        for (Map.Entry<TimeSeriesResourceType, TimeSeries> entry : series.entrySet()) {
+            TimeSeries timeSeries = entry.getValue().slice(startDate, endDate);
+            double[] column = new double[size];
+            Arrays.fill(column, Double.NaN);
+            for (int i = 0; i < timeSeries.size(); i++) {
+                column[timeSeries.getEpochDay(i) - startDay] = timeSeries.getDouble(i);
+            }
+            windowSeries.put(entry.getKey(), timeSeries);
+            windowColumns.put(entry.getKey(), column);
+        }
+        this.series = Collections.unmodifiableMap(windowSeries);
+        columns = windowColumns;
+    }
+
+    public LocalDate getStartDate() {
+        return TimeSeries.toLocalDate(startDay);
+    }
+
+    public LocalDate getEndDate() {
+        return TimeSeries.toLocalDate(startDay + size - 1);
+    }
+
+    /**
+     * @return number of days, i.e. rows
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getEpochDay(int row) {
+        checkRow(row);
+        return startDay + row;
+    }
+
+    public LocalDate getDate(int row) {
+        return TimeSeries.toLocalDate(getEpochDay(row));
+    }
+
+    /**
+     * @return row of the day, -1 if it is outside of the window
+     */
+    public int getRow(LocalDate date) {
+        int row = TimeSeries.toEpochDay(date) - startDay;
+        return row < 0 || row >= size ? -1 : row;
+    }
+
+    public Set<TimeSeriesResourceType> getResourceTypes() {
+        return series.keySet();
+    }
+
+    public boolean contains(TimeSeriesResourceType resourceType) {
+        return series.containsKey(resourceType);
+    }
+
+    /**
+     * @return values of the resource within the window, null if the resource was not queried
+     */
+    public TimeSeries getTimeSeries(TimeSeriesResourceType resourceType) {
+        return series.get(resourceType);
+    }
+
+    /**
+     * @return values of the resource by row, NaN where there is none; shared with this table, do not modify
+     */
+    public double[] getColumn(TimeSeriesResourceType resourceType) {
+        double[] column = columns.get(resourceType);
+        if (null == column) {
+            throw new IllegalArgumentException("Resource was not queried: " + resourceType);
+        }
+        return column;
+    }
+
+    public double getValue(TimeSeriesResourceType resourceType, int row) {
+        checkRow(row);
+        return getColumn(resourceType)[row];
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeriesTable{" +
+                "startDate=" + getStartDate() +
+                ", endDate=" + getEndDate() +
+                ", resourceTypes=" + series.keySet() +
+                '}';
+    }
+}
@@ -0,0 +1,23 @@
+package com.fitbit.api.common.model.timeseries;
+
+/**
+ * How the values of a {@link TimeSeriesResourceType} are decoded into a {@link TimeSeries}.
+ */
+public enum TimeSeriesValueType {
+    /**
+     * Whole numbers such as steps or minutes, stored as long.
+     */
+    COUNT,
+    /**
+     * Fractional numbers such as distance or weight, stored as double.
+     */
+    DECIMAL,
+    /**
+     * Clock times such as the time entered bed, stored as long minutes of day; -1 if there is none.
+     */
+    TIME_OF_DAY;
+
+    public boolean isIntegral() {
+        return this != DECIMAL;
+    }
+}
@@ -5,6 +5,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -26,6 +28,7 @@ public class Alarm {
 
 
     public Alarm(JSONObject json) throws JSONException {
+        label = json.optString("label", null);
         vibe = json.getString("vibe");
         enabled = json.getBoolean("enabled");
         time = json.getString("time");
@@ -49,6 +52,47 @@ public class Alarm {
         this.weekDays = weekDays;
     }
 
+    /**
+     * Copy constructor
+     *
+     * @param alarm alarm to copy
+     */
+    public Alarm(Alarm alarm) {
+        label = alarm.label;
+        vibe = alarm.vibe;
+        enabled = alarm.enabled;
+        time = alarm.time;
+        syncedToDevice = alarm.syncedToDevice;
+        snoozeCount = alarm.snoozeCount;
+        id = alarm.id;
+        snoozeLength = alarm.snoozeLength;
+        recurring = alarm.recurring;
+        deleted = alarm.deleted;
+        weekDays = null == alarm.weekDays ? null : new ArrayList<String>(alarm.weekDays);
+    }
+
+    /**
+     * Compares the user visible settings of two alarms, ignoring id and device sync state.
+     * Label and vibe are only compared when set on this alarm, as the API fills in defaults for them.
+     *
+     * @param other alarm to compare with
+     *
+     * @return true if pushing this alarm over the other one would not change anything
+     */
+    public boolean hasSameSettings(Alarm other) {
+        if (null == other) return false;
+        if (enabled != other.enabled) return false;
+        if (recurring != other.recurring) return false;
+        if (time != null ? !time.equals(other.time) : other.time != null) return false;
+        if (null != label && !label.equals(other.label)) return false;
+        if (null != vibe && !vibe.equals(other.vibe)) return false;
+        if (snoozeLength != 0 && snoozeLength != other.snoozeLength) return false;
+        if (snoozeCount != 0 && snoozeCount != other.snoozeCount) return false;
+        List<String> days = null == weekDays ? Collections.<String>emptyList() : weekDays;
+        List<String> otherDays = null == other.weekDays ? Collections.<String>emptyList() : other.weekDays;
+        return new HashSet<String>(days).equals(new HashSet<String>(otherDays));
+    }
+
     public String getLabel() { return label; }
 
     public void setLabel(String label) { this.label = label; }
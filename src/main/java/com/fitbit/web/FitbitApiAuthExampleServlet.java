@@ -30,7 +30,7 @@ public class FitbitApiAuthExampleServlet extends HttpServlet {
     public static final String OAUTH_TOKEN = "oauth_token";
     public static final String OAUTH_VERIFIER = "oauth_verifier";
 
-    private FitbitAPIEntityCache entityCache = new FitbitApiEntityCacheMapImpl();
+    private FitbitAPIEntityCache entityCache = new FitbitApiEntityCacheBoundedImpl();
     private FitbitApiCredentialsCache credentialsCache = new FitbitApiCredentialsCacheMapImpl();
     private FitbitApiSubscriptionStorage subscriptionStore = new FitbitApiSubscriptionStorageInMemoryImpl();
 
@@ -77,6 +77,8 @@ public class FitbitApiAuthExampleServlet extends HttpServlet {
             if (!resourceCredentials.isAuthorized()) {
                 // The verifier is required in the request to get token credentials:
                 resourceCredentials.setTempTokenVerifier(tempTokenVerifier);
+                // Caches may hand out copies, store the verifier with them:
+                apiClientService.saveResourceCredentials(new LocalUserDetail(resourceCredentials.getLocalUserId()), resourceCredentials);
                 try {
                     // Get token credentials for user:
                     apiClientService.getTokenCredentials(new LocalUserDetail(resourceCredentials.getLocalUserId()));
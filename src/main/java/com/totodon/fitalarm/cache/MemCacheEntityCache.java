@@ -0,0 +1,188 @@
+package com.totodon.fitalarm.cache;
+
+import com.fitbit.api.client.BulkEntityCache;
+import com.fitbit.api.model.APIResourceCredentials;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.totodon.molitan.gae.utils.ObjectConvertor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fitbit entity cache shared by all instances of the application through App Engine memcache, the service
+ * MemCacheUtility uses. A notification handled by any instance removes the entry for all of them, and a new instance
+ * finds the entries the others have fetched.
+ * <p/>
+ * Entries live in their own memcache namespace under "local user id|key", so reloaded credentials still find them.
+ * Values are encoded by {@link ObjectConvertor}, which puts a format header in front and deflates them once they
+ * exceed the compression threshold. Values that are not serializable are not cached. Entries that cannot be decoded,
+ * e.g. written by an incompatible version, are dropped and count as misses.
+ */
+public class MemCacheEntityCache implements BulkEntityCache {
+
+    private static final Logger log = Logger.getLogger(MemCacheEntityCache.class.getName());
+
+    public static final String DEFAULT_NAMESPACE = "fitbit-entities";
+    public static final int DEFAULT_TTL_SECS = 3600;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = ObjectConvertor.DEFAULT_COMPRESSION_THRESHOLD;
+
+    private final MemcacheService memcache;
+    private final int ttlSecs;
+    private final int compressionThreshold;
+
+    public MemCacheEntityCache() {
+        this(DEFAULT_NAMESPACE, DEFAULT_TTL_SECS, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param namespace memcache namespace of the entries
+     * @param ttlSecs time to live of the entries, 0 for as long as memcache keeps them
+     * @param compressionThreshold serialized size in bytes above which values are deflated
+     */
+    public MemCacheEntityCache(String namespace, int ttlSecs, int compressionThreshold) {
+        this(MemcacheServiceFactory.getMemcacheService(namespace), ttlSecs, compressionThreshold);
+    }
+
+    public MemCacheEntityCache(MemcacheService memcache, int ttlSecs, int compressionThreshold) {
+        this.memcache = memcache;
+        this.ttlSecs = ttlSecs;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public Object get(APIResourceCredentials credentials, Object key) {
+        String memcacheKey = getMemcacheKey(credentials, key);
+        Object bytes = memcache.get(memcacheKey);
+        if (!(bytes instanceof byte[])) {
+            return null;
+        }
+        try {
+            return decode((byte[]) bytes);
+        } catch (Exception e) {
+            log.warning("Dropping undecodable entry " + memcacheKey + ": " + e);
+            memcache.delete(memcacheKey);
+            return null;
+        }
+    }
+
+    /**
+     * @return always null; the previous value is not read back to save a memcache call
+     */
+    @Override
+    public Object put(APIResourceCredentials credentials, Object key, Object value) {
+        String memcacheKey = getMemcacheKey(credentials, key);
+        if (!(value instanceof Serializable)) {
+            if (null != value) {
+                log.fine("Not caching " + memcacheKey + ", " + value.getClass().getName() + " is not serializable");
+            }
+            memcache.delete(memcacheKey);
+            return null;
+        }
+        try {
+            memcache.put(memcacheKey, encode(value), getExpiration());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to encode " + memcacheKey, e);
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the entry without reading it first.
+     *
+     * @return {@link Boolean#TRUE} if there was an entry, null otherwise; the previous value is not read back to save a
+     * memcache call and its decoding
+     */
+    @Override
+    public Object remove(APIResourceCredentials credentials, Object key) {
+        return memcache.delete(getMemcacheKey(credentials, key)) ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Deletes the entries of all users with one memcache call, without reading them first.
+     */
+    @Override
+    public int removeAll(Map<APIResourceCredentials, ? extends Collection<?>> keysByCredentials) {
+        List<String> memcacheKeys = new ArrayList<String>();
+        for (Map.Entry<APIResourceCredentials, ? extends Collection<?>> entry : keysByCredentials.entrySet()) {
+            for (Object key : entry.getValue()) {
+                memcacheKeys.add(getMemcacheKey(entry.getKey(), key));
+            }
+        }
+        return memcacheKeys.isEmpty() ? 0 : memcache.deleteAll(memcacheKeys).size();
+    }
+
+    /**
+     * Version stamp of the entries of a user, changed by {@link #incrementVersion(APIResourceCredentials)} whenever
+     * they are invalidated. Lets instances holding copies of the entries notice that they are out of date.
+     *
+     * @return current version, -1 if unknown
+     */
+    public long getVersion(APIResourceCredentials credentials) {
+        Object version = memcache.get(getVersionKey(credentials));
+        return version instanceof Long ? (Long) version : -1;
+    }
+
+    /**
+     * Starts a new version of the entries of a user. A version that memcache has lost restarts from the current time,
+     * so it never repeats one handed out before.
+     *
+     * @return new version, -1 if it could not be changed
+     */
+    public long incrementVersion(APIResourceCredentials credentials) {
+        Long version = memcache.increment(getVersionKey(credentials), 1L, System.currentTimeMillis());
+        return null == version ? -1 : version;
+    }
+
+    /**
+     * Starts a new version of the entries of several users with one memcache call, as
+     * {@link #incrementVersion(APIResourceCredentials)}.
+     *
+     * @return new version by credentials, -1 for those that could not be changed
+     */
+    public Map<APIResourceCredentials, Long> incrementVersions(Collection<APIResourceCredentials> credentials) {
+        Map<String, APIResourceCredentials> byVersionKey = new HashMap<String, APIResourceCredentials>();
+        for (APIResourceCredentials user : credentials) {
+            byVersionKey.put(getVersionKey(user), user);
+        }
+        Map<String, Long> incremented = memcache.incrementAll(byVersionKey.keySet(), 1L, System.currentTimeMillis());
+        Map<APIResourceCredentials, Long> versions = new HashMap<APIResourceCredentials, Long>();
+        for (Map.Entry<String, APIResourceCredentials> entry : byVersionKey.entrySet()) {
+            Long version = null == incremented ? null : incremented.get(entry.getKey());
+            versions.put(entry.getValue(), null == version ? -1L : version);
+        }
+        return versions;
+    }
+
+    protected Expiration getExpiration() {
+        return ttlSecs > 0 ? Expiration.byDeltaSeconds(ttlSecs) : null;
+    }
+
+    /**
+     * @return key of an entry within the namespace; memcache hashes keys that are too long
+     */
+    protected String getMemcacheKey(APIResourceCredentials credentials, Object key) {
+        String owner = null == credentials || null == credentials.getLocalUserId() ? "" : credentials.getLocalUserId();
+        return owner + '|' + key;
+    }
+
+    protected String getVersionKey(APIResourceCredentials credentials) {
+        return "#version|" + getMemcacheKey(credentials, "");
+    }
+
+    byte[] encode(Object value) throws IOException {
+        return ObjectConvertor.getBytes(value, compressionThreshold);
+    }
+
+    Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        return ObjectConvertor.getObject(bytes);
+    }
+}
@@ -0,0 +1,220 @@
+package com.totodon.fitalarm.cache;
+
+import com.fitbit.api.client.BulkEntityCache;
+import com.fitbit.api.client.FitbitApiEntityCacheBoundedImpl;
+import com.fitbit.api.model.APIResourceCredentials;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Fitbit entity cache keeping a small cache in each instance in front of the {@link MemCacheEntityCache} shared by all
+ * of them, so that entities of active users are served from local memory without a memcache call or deserialization.
+ * <p/>
+ * Each user has a version stamp in memcache that is changed whenever one of their entries is removed, as done for
+ * every subscription notification. Local entries remember the version they were read at and are only served while it
+ * is current. The version is read again at most once per check interval per user, so an instance notices a
+ * notification handled by another one within that interval; removals made by the instance itself apply at once.
+ * Local entries also expire after their own time to live, which bounds how long an instance keeps a copy of an entry
+ * that another instance has replaced.
+ */
+public class TwoTierEntityCache implements BulkEntityCache {
+
+    private static final Logger log = Logger.getLogger(TwoTierEntityCache.class.getName());
+
+    public static final int DEFAULT_NEAR_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_NEAR_TTL_MILLIS = 5 * 60 * 1000L;
+    public static final long DEFAULT_VERSION_CHECK_MILLIS = 1000L;
+
+    private static final Object VERSION_KEY = new Object();
+
+    private final FitbitApiEntityCacheBoundedImpl nearCache;
+    private final FitbitApiEntityCacheBoundedImpl versionChecks;
+    private final MemCacheEntityCache farCache;
+    private final long versionCheckMillis;
+
+    private final AtomicLong nearHitCount = new AtomicLong();
+    private final AtomicLong farHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public TwoTierEntityCache() {
+        this(new MemCacheEntityCache(), DEFAULT_NEAR_MAX_ENTRIES, DEFAULT_NEAR_TTL_MILLIS, DEFAULT_VERSION_CHECK_MILLIS);
+    }
+
+    /**
+     * @param farCache cache shared by all instances
+     * @param nearMaxEntries number of entries kept at most in this instance
+     * @param nearTtlMillis time to live of the entries kept in this instance
+     * @param versionCheckMillis time for which the version of a user read from memcache is trusted
+     */
+    public TwoTierEntityCache(MemCacheEntityCache farCache, int nearMaxEntries, long nearTtlMillis, long versionCheckMillis) {
+        int concurrencyLevel = Runtime.getRuntime().availableProcessors() * 2;
+        this.farCache = farCache;
+        nearCache = new FitbitApiEntityCacheBoundedImpl(nearMaxEntries, nearTtlMillis, concurrencyLevel);
+        versionChecks = new FitbitApiEntityCacheBoundedImpl(nearMaxEntries, Math.max(1, versionCheckMillis), concurrencyLevel);
+        this.versionCheckMillis = versionCheckMillis;
+    }
+
+    @Override
+    public Object get(APIResourceCredentials credentials, Object key) {
+        long version = getVersion(credentials);
+        Object near = nearCache.get(credentials, key);
+        if (near instanceof NearEntry && version >= 0 && ((NearEntry) near).version == version) {
+            nearHitCount.incrementAndGet();
+            return ((NearEntry) near).value;
+        }
+
+        Object value = farCache.get(credentials, key);
+        if (null == value) {
+            if (null != near) {
+                nearCache.remove(credentials, key);
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+        farHitCount.incrementAndGet();
+        if (version < 0) {
+            // memcache lost the version, local entries of the user are not served until a new one is started
+            version = startVersion(credentials);
+        }
+        putNear(credentials, key, value, version);
+        return value;
+    }
+
+    /**
+     * Stores the entry in both tiers. Does not change the version of the user, so copies of the entry other instances
+     * hold are kept until they expire.
+     *
+     * @return always null, as {@link MemCacheEntityCache#put(APIResourceCredentials, Object, Object)}
+     */
+    @Override
+    public Object put(APIResourceCredentials credentials, Object key, Object value) {
+        farCache.put(credentials, key, value);
+        long version = getVersion(credentials);
+        if (version < 0) {
+            version = startVersion(credentials);
+        }
+        putNear(credentials, key, value, version);
+        return null;
+    }
+
+    /**
+     * Removes the entry from both tiers and starts a new version of the user, so that other instances drop their
+     * copies of it.
+     *
+     * @return the local copy if there was one, else {@link Boolean#TRUE} if there was a shared entry, as
+     * {@link MemCacheEntityCache#remove(APIResourceCredentials, Object)}, else null
+     */
+    @Override
+    public Object remove(APIResourceCredentials credentials, Object key) {
+        Object removed = farCache.remove(credentials, key);
+        Object near = nearCache.remove(credentials, key);
+        startVersion(credentials);
+        return near instanceof NearEntry ? ((NearEntry) near).value : removed;
+    }
+
+    /**
+     * Removes the entries from both tiers with one memcache call, then starts a new version of each user with another,
+     * instead of one version change per entry.
+     */
+    @Override
+    public int removeAll(Map<APIResourceCredentials, ? extends Collection<?>> keysByCredentials) {
+        if (keysByCredentials.isEmpty()) {
+            return 0;
+        }
+        int removed = farCache.removeAll(keysByCredentials);
+        for (Map.Entry<APIResourceCredentials, ? extends Collection<?>> entry : keysByCredentials.entrySet()) {
+            for (Object key : entry.getValue()) {
+                nearCache.remove(entry.getKey(), key);
+            }
+        }
+        for (Map.Entry<APIResourceCredentials, Long> version : farCache.incrementVersions(keysByCredentials.keySet()).entrySet()) {
+            if (version.getValue() < 0) {
+                log.warning("Unable to change the entity version of user " + version.getKey().getLocalUserId() + ", dropping local entries");
+                nearCache.removeAll(version.getKey());
+            }
+            rememberVersion(version.getKey(), version.getValue());
+        }
+        return removed;
+    }
+
+    /**
+     * Makes all instances drop their local copies of the entries of a user, keeping the shared ones.
+     */
+    public void invalidate(APIResourceCredentials credentials) {
+        nearCache.removeAll(credentials);
+        startVersion(credentials);
+    }
+
+    public long getNearHitCount() {
+        return nearHitCount.get();
+    }
+
+    public long getFarHitCount() {
+        return farHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return version of the user, read from memcache once the last read is older than the check interval
+     */
+    private long getVersion(APIResourceCredentials credentials) {
+        Object checked = versionChecks.get(credentials, VERSION_KEY);
+        if (checked instanceof Long) {
+            return (Long) checked;
+        }
+        long version = farCache.getVersion(credentials);
+        rememberVersion(credentials, version);
+        return version;
+    }
+
+    private long startVersion(APIResourceCredentials credentials) {
+        long version = farCache.incrementVersion(credentials);
+        if (version < 0) {
+            log.warning("Unable to change the entity version of user " + credentials.getLocalUserId() + ", dropping local entries");
+            nearCache.removeAll(credentials);
+        }
+        rememberVersion(credentials, version);
+        return version;
+    }
+
+    private void rememberVersion(APIResourceCredentials credentials, long version) {
+        if (versionCheckMillis > 0) {
+            versionChecks.put(credentials, VERSION_KEY, version);
+        }
+    }
+
+    private void putNear(APIResourceCredentials credentials, Object key, Object value, long version) {
+        if (version < 0) {
+            // without a known version the entry could not be invalidated by other instances
+            nearCache.remove(credentials, key);
+        } else {
+            nearCache.put(credentials, key, new NearEntry(value, version));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TwoTierEntityCache{" +
+                "nearHits=" + nearHitCount +
+                ", farHits=" + farHitCount +
+                ", misses=" + missCount +
+                ", near=" + nearCache +
+                '}';
+    }
+
+    private static class NearEntry {
+        final Object value;
+        final long version;
+
+        NearEntry(Object value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
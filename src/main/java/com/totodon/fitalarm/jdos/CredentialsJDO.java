@@ -0,0 +1,93 @@
+package com.totodon.fitalarm.jdos;
+
+import com.fitbit.api.model.APIResourceCredentials;
+import com.totodon.molitan.jdos.IJDO;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Stored form of the {@link APIResourceCredentials} of a local user. Created as a copy, so it is a consistent snapshot
+ * of the credentials at the time they were saved.
+ */
+@SuppressWarnings("serial")
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class CredentialsJDO implements IJDO, Serializable {
+
+    @PrimaryKey
+    @Persistent
+    private String id;
+
+    @Persistent
+    private String tempToken;
+
+    @Persistent
+    private String tempTokenSecret;
+
+    @Persistent
+    private String tempTokenVerifier;
+
+    @Persistent
+    private String accessToken;
+
+    @Persistent
+    private String accessTokenSecret;
+
+    @Persistent
+    private String resourceId;
+
+    @Persistent
+    private String resourceURL;
+
+    @Persistent
+    private Date savedAt;
+
+    protected CredentialsJDO() {
+    }
+
+    public CredentialsJDO(APIResourceCredentials credentials, Date savedAt) {
+        this.id = credentials.getLocalUserId();
+        this.tempToken = credentials.getTempToken();
+        this.tempTokenSecret = credentials.getTempTokenSecret();
+        this.tempTokenVerifier = credentials.getTempTokenVerifier();
+        this.accessToken = credentials.getAccessToken();
+        this.accessTokenSecret = credentials.getAccessTokenSecret();
+        this.resourceId = credentials.getResourceId();
+        this.resourceURL = credentials.getResourceURL();
+        this.savedAt = savedAt;
+    }
+
+    public APIResourceCredentials toResourceCredentials() {
+        APIResourceCredentials credentials = new APIResourceCredentials(id, tempToken, tempTokenSecret);
+        credentials.setTempTokenVerifier(tempTokenVerifier);
+        credentials.setAccessToken(accessToken);
+        credentials.setAccessTokenSecret(accessTokenSecret);
+        credentials.setResourceId(resourceId);
+        credentials.setResourceURL(resourceURL);
+        return credentials;
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    public String getTempToken() {
+        return tempToken;
+    }
+
+    public boolean isAuthorized() {
+        return null != accessToken;
+    }
+
+    /**
+     * @return time the credentials were saved, which is when their temporary token was issued until they are authorized
+     */
+    public Date getSavedAt() {
+        return savedAt;
+    }
+}
@@ -19,6 +19,9 @@ public class PrefixJDO implements IJDO, Serializable {
     @Persistent
     private String prefix;
 
+    protected PrefixJDO() {
+    }
+
     public PrefixJDO(String id, String prefix) {
         this.id = id;
         this.prefix = prefix;
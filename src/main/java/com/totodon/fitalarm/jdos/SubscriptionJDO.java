@@ -0,0 +1,99 @@
+package com.totodon.fitalarm.jdos;
+
+import com.fitbit.api.client.LocalSubscriptionDetail;
+import com.fitbit.api.model.APICollectionType;
+import com.fitbit.api.model.FitbitResourceOwner;
+import com.fitbit.api.model.ResourceOwnerType;
+import com.fitbit.api.model.SubscriptionDetail;
+import com.totodon.molitan.jdos.IJDO;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Stored form of a {@link LocalSubscriptionDetail}, keyed by subscriber, subscription id and collection.
+ */
+@SuppressWarnings("serial")
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class SubscriptionJDO implements IJDO, Serializable {
+
+    @PrimaryKey
+    @Persistent
+    private String id;
+
+    @Persistent
+    private String subscriberId;
+
+    @Persistent
+    private String subscriptionId;
+
+    @Persistent
+    private String ownerType;
+
+    @Persistent
+    private String ownerId;
+
+    @Persistent
+    private String collectionType;
+
+    @Persistent
+    private boolean knownSubscription;
+
+    @Persistent
+    private Date lastUpdateNotificationDate;
+
+    protected SubscriptionJDO() {
+    }
+
+    public SubscriptionJDO(LocalSubscriptionDetail subscription) {
+        SubscriptionDetail detail = subscription.getSubscriptionDetail();
+        this.id = getId(detail);
+        this.subscriberId = detail.getSubscriberId();
+        this.subscriptionId = detail.getSubscriptionId();
+        if (null != detail.getOwner()) {
+            this.ownerType = detail.getOwner().getResourceOwnerType().name();
+            this.ownerId = detail.getOwner().getId();
+        }
+        if (null != detail.getCollectionType()) {
+            this.collectionType = detail.getCollectionType().name();
+        }
+        this.knownSubscription = subscription.isKnownSubscription();
+        this.lastUpdateNotificationDate = subscription.getLastUpdateNotificationDate();
+    }
+
+    /**
+     * @return key a subscription is stored under
+     */
+    public static String getId(SubscriptionDetail detail) {
+        return detail.getSubscriberId() + '|' + detail.getSubscriptionId() + '|' + detail.getCollectionType();
+    }
+
+    public LocalSubscriptionDetail toLocalSubscriptionDetail() {
+        FitbitResourceOwner owner = null == ownerType ? null : FitbitResourceOwner.fromIdentifier(ResourceOwnerType.valueOf(ownerType), ownerId);
+        APICollectionType collection = null == collectionType ? null : APICollectionType.valueOf(collectionType);
+        LocalSubscriptionDetail subscription = new LocalSubscriptionDetail(new SubscriptionDetail(subscriberId, subscriptionId, owner, collection), knownSubscription);
+        subscription.setLastUpdateNotificationDate(lastUpdateNotificationDate);
+        return subscription;
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public Date getLastUpdateNotificationDate() {
+        return lastUpdateNotificationDate;
+    }
+
+    public void setLastUpdateNotificationDate(Date lastUpdateNotificationDate) {
+        this.lastUpdateNotificationDate = lastUpdateNotificationDate;
+    }
+}
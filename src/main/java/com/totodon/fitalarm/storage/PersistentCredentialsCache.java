@@ -0,0 +1,369 @@
+package com.totodon.fitalarm.storage;
+
+import com.fitbit.api.client.FitbitApiCredentialsCache;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.model.APIResourceCredentials;
+import com.totodon.fitalarm.jdos.CredentialsJDO;
+import com.totodon.molitan.jdos.IJDO;
+import com.totodon.molitan.managers.PersistanceManager;
+import com.totodon.molitan.managers.exceptions.PersistanceServiceException;
+import com.totodon.molitan.services.IPersistanceService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Credentials cache kept in the datastore, so authorized users survive instance restarts. Reads are lock free lookups
+ * in concurrent maps and never write; credentials not known to the instance are loaded from the datastore on first use.
+ * Users found neither in memory nor in the datastore are not looked up again for the miss interval; only the most
+ * recent misses are remembered.
+ * <p/>
+ * Saved credentials are copied into an immutable {@link CredentialsJDO} right away. The maps hold these snapshots and
+ * reads hand out a copy, so callers changing what they got do not change the cache. The snapshots are written in
+ * batches, once the batch size is reached or the oldest pending write is older than the write delay. The writes run on
+ * the given scheduler, or without one on the thread saving or expiring credentials that finds them due; {@link #flush()}
+ * writes them at once. Credentials that are not authorized yet, and the first save after authorization, are written at
+ * once, since the user may return from authorization to another instance.
+ * <p/>
+ * Temporary tokens expire after the given time; credentials that were not authorized by then are dropped.
+ */
+public class PersistentCredentialsCache implements FitbitApiCredentialsCache {
+
+    private static final Logger log = Logger.getLogger(PersistentCredentialsCache.class.getName());
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    public static final long DEFAULT_WRITE_DELAY_MILLIS = 2000L;
+    public static final long DEFAULT_TEMP_TOKEN_TTL_MILLIS = 60 * 60 * 1000L;
+    public static final long DEFAULT_MISS_INTERVAL_MILLIS = 60 * 1000L;
+    public static final int DEFAULT_MAX_MISSES = 1000;
+
+    private static final CredentialsJDO DELETED = new CredentialsJDO(new APIResourceCredentials(null, null, null), null);
+
+    private final IPersistanceService persistanceService;
+    private final int batchSize;
+    private final long writeDelayMillis;
+    private final long tempTokenTtlMillis;
+    private final long missIntervalMillis;
+
+    private final ConcurrentMap<String, CredentialsJDO> byUser = new ConcurrentHashMap<String, CredentialsJDO>();
+    private final ConcurrentMap<String, TempToken> byTempToken = new ConcurrentHashMap<String, TempToken>();
+    private final ConcurrentMap<String, CredentialsJDO> pendingWrites = new ConcurrentHashMap<String, CredentialsJDO>();
+    private final Set<String> storedAuthorized = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Map<String, Long> misses;
+    private volatile long oldestPendingAt = Long.MAX_VALUE;
+
+    public PersistentCredentialsCache() {
+        this(PersistanceManager.getPersistanceService(), DEFAULT_BATCH_SIZE, DEFAULT_WRITE_DELAY_MILLIS, DEFAULT_TEMP_TOKEN_TTL_MILLIS, null);
+    }
+
+    /**
+     * @param persistanceService service the credentials are stored through
+     * @param batchSize number of pending writes that are flushed at once
+     * @param writeDelayMillis time a write may be pending at most
+     * @param tempTokenTtlMillis time after which temporary tokens expire
+     * @param scheduler executor to flush pending writes on, null to flush them on the threads saving credentials
+     */
+    public PersistentCredentialsCache(IPersistanceService persistanceService, int batchSize, long writeDelayMillis,
+                                      long tempTokenTtlMillis, ScheduledExecutorService scheduler) {
+        this(persistanceService, batchSize, writeDelayMillis, tempTokenTtlMillis, scheduler, DEFAULT_MISS_INTERVAL_MILLIS, DEFAULT_MAX_MISSES);
+    }
+
+    /**
+     * @param persistanceService service the credentials are stored through
+     * @param batchSize number of pending writes that are flushed at once
+     * @param writeDelayMillis time a write may be pending at most
+     * @param tempTokenTtlMillis time after which temporary tokens expire
+     * @param scheduler executor to flush pending writes on, null to flush them on the threads saving credentials
+     * @param missIntervalMillis time for which a user without stored credentials is not looked up again
+     * @param maxMisses number of users without stored credentials that are remembered at most
+     */
+    public PersistentCredentialsCache(IPersistanceService persistanceService, int batchSize, long writeDelayMillis,
+                                      long tempTokenTtlMillis, ScheduledExecutorService scheduler,
+                                      long missIntervalMillis, final int maxMisses) {
+        this.persistanceService = persistanceService;
+        this.batchSize = Math.max(1, batchSize);
+        this.writeDelayMillis = writeDelayMillis;
+        this.tempTokenTtlMillis = tempTokenTtlMillis;
+        this.missIntervalMillis = missIntervalMillis;
+        misses = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxMisses || System.currentTimeMillis() - eldest.getValue() >= PersistentCredentialsCache.this.missIntervalMillis;
+            }
+        };
+        if (null != scheduler) {
+            long period = Math.max(1, writeDelayMillis);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public APIResourceCredentials getResourceCredentials(LocalUserDetail user) {
+        if (null == user || null == user.getUserId()) {
+            return null;
+        }
+        String userId = user.getUserId();
+        CredentialsJDO credentials = byUser.get(userId);
+        if (null == credentials && pendingWrites.get(userId) != DELETED) {
+            long now = System.currentTimeMillis();
+            synchronized (misses) {
+                Long missedAt = misses.get(userId);
+                if (null != missedAt && now - missedAt < missIntervalMillis) {
+                    return null;
+                }
+            }
+            credentials = load(userId);
+            if (null == credentials) {
+                synchronized (misses) {
+                    // put again so that it moves to the end, behind the misses that expire before it
+                    misses.remove(userId);
+                    misses.put(userId, now);
+                }
+            }
+        }
+        return null == credentials ? null : credentials.toResourceCredentials();
+    }
+
+    @Override
+    public APIResourceCredentials getResourceCredentialsByTempToken(String tempToken) {
+        if (null == tempToken) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        TempToken entry = byTempToken.get(tempToken);
+        if (null == entry) {
+            entry = loadByTempToken(tempToken);
+            if (null == entry) {
+                return null;
+            }
+        }
+        if (entry.isExpired(now)) {
+            expire(tempToken, entry);
+            return null;
+        }
+        return entry.credentials.toResourceCredentials();
+    }
+
+    @Override
+    public APIResourceCredentials saveResourceCredentials(LocalUserDetail user, APIResourceCredentials resourceCredentials) {
+        String userId = user.getUserId();
+        long now = System.currentTimeMillis();
+        CredentialsJDO snapshot = new CredentialsJDO(resourceCredentials, new Date(now));
+        CredentialsJDO previous = byUser.put(userId, snapshot);
+        synchronized (misses) {
+            misses.remove(userId);
+        }
+        if (null != previous && null != previous.getTempToken() && !previous.getTempToken().equals(snapshot.getTempToken())) {
+            byTempToken.remove(previous.getTempToken());
+        }
+        if (null != snapshot.getTempToken()) {
+            // saved again with the same temporary token, e.g. with the verifier, keeps its expiry
+            TempToken existing = byTempToken.get(snapshot.getTempToken());
+            long issuedAt = null != existing ? existing.issuedAt : now;
+            byTempToken.put(snapshot.getTempToken(), new TempToken(snapshot, issuedAt, tempTokenTtlMillis));
+        }
+        queueWrite(userId, snapshot);
+        if (!snapshot.isAuthorized() || !storedAuthorized.contains(userId)) {
+            flush();
+        } else {
+            flushIfDue();
+        }
+        return null == previous ? null : previous.toResourceCredentials();
+    }
+
+    @Override
+    public APIResourceCredentials expireResourceCredentials(LocalUserDetail user) {
+        String userId = user.getUserId();
+        CredentialsJDO previous = byUser.remove(userId);
+        if (null == previous) {
+            previous = load(userId);
+            byUser.remove(userId);
+        }
+        if (null != previous && null != previous.getTempToken()) {
+            byTempToken.remove(previous.getTempToken());
+        }
+        queueWrite(userId, DELETED);
+        flushIfDue();
+        return null == previous ? null : previous.toResourceCredentials();
+    }
+
+    /**
+     * Writes all pending changes to the datastore, waiting for a write in progress on another thread first.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            writePending();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of changes not written to the datastore yet
+     */
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Called with the flush lock held.
+     */
+    private void writePending() {
+        oldestPendingAt = pendingWrites.isEmpty() ? Long.MAX_VALUE : System.currentTimeMillis();
+        Map<String, CredentialsJDO> batch = new ConcurrentHashMap<String, CredentialsJDO>(pendingWrites);
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<IJDO> saves = new ArrayList<IJDO>();
+        List<Object> deletes = new ArrayList<Object>();
+        for (Map.Entry<String, CredentialsJDO> entry : batch.entrySet()) {
+            if (entry.getValue() == DELETED) {
+                deletes.add(entry.getKey());
+            } else {
+                saves.add(entry.getValue());
+            }
+            if (entry.getValue() == DELETED || !entry.getValue().isAuthorized()) {
+                storedAuthorized.remove(entry.getKey());
+            }
+        }
+        try {
+            if (!saves.isEmpty()) {
+                persistanceService.saveObjects(saves);
+            }
+            if (!deletes.isEmpty()) {
+                // credentials that were never stored are skipped
+                persistanceService.deleteObjects(CredentialsJDO.class, deletes);
+            }
+        } catch (PersistanceServiceException e) {
+            // kept pending and retried with the next flush
+            log.log(Level.SEVERE, "Unable to write " + batch.size() + " credentials", e);
+            return;
+        }
+        for (Map.Entry<String, CredentialsJDO> entry : batch.entrySet()) {
+            if (entry.getValue() != DELETED && entry.getValue().isAuthorized()) {
+                storedAuthorized.add(entry.getKey());
+            }
+            // changes made while writing stay pending
+            pendingWrites.remove(entry.getKey(), entry.getValue());
+        }
+        if (pendingWrites.isEmpty()) {
+            oldestPendingAt = Long.MAX_VALUE;
+        }
+        purgeExpiredTempTokens();
+    }
+
+    private void queueWrite(String userId, CredentialsJDO snapshot) {
+        pendingWrites.put(userId, snapshot);
+        if (oldestPendingAt == Long.MAX_VALUE) {
+            oldestPendingAt = System.currentTimeMillis();
+        }
+    }
+
+    private void flushIfDue() {
+        long oldest = oldestPendingAt;
+        if (oldest != Long.MAX_VALUE && (pendingWrites.size() >= batchSize || System.currentTimeMillis() - oldest >= writeDelayMillis)
+                && flushLock.tryLock()) {
+            // a write already in progress on another thread is not waited for
+            try {
+                writePending();
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    private CredentialsJDO load(String userId) {
+        Object stored = persistanceService.getObject(CredentialsJDO.class, userId);
+        if (!(stored instanceof CredentialsJDO)) {
+            return null;
+        }
+        CredentialsJDO jdo = (CredentialsJDO) stored;
+        if (jdo.isAuthorized()) {
+            storedAuthorized.add(userId);
+        }
+        CredentialsJDO raced = byUser.putIfAbsent(userId, jdo);
+        if (null != raced) {
+            return raced;
+        }
+        if (null != jdo.getTempToken()) {
+            long issuedAt = null == jdo.getSavedAt() ? System.currentTimeMillis() : jdo.getSavedAt().getTime();
+            byTempToken.putIfAbsent(jdo.getTempToken(), new TempToken(jdo, issuedAt, tempTokenTtlMillis));
+        }
+        return jdo;
+    }
+
+    private TempToken loadByTempToken(String tempToken) {
+        if (tempToken.indexOf('\'') >= 0 || tempToken.indexOf('\\') >= 0) {
+            return null;
+        }
+        try {
+            Object found = persistanceService.executeQuery(CredentialsJDO.class, "tempToken == '" + tempToken + "'");
+            if (found instanceof Collection) {
+                for (Object jdo : (Collection<?>) found) {
+                    load(((CredentialsJDO) jdo).getId());
+                }
+            }
+        } catch (PersistanceServiceException e) {
+            log.log(Level.SEVERE, "Unable to look up temporary token", e);
+        }
+        return byTempToken.get(tempToken);
+    }
+
+    private void expire(String tempToken, TempToken entry) {
+        if (!byTempToken.remove(tempToken, entry)) {
+            return;
+        }
+        CredentialsJDO credentials = entry.credentials;
+        if (!credentials.isAuthorized() && null != credentials.getId() && byUser.remove(credentials.getId(), credentials)) {
+            log.info("Temporary token of user " + credentials.getId() + " expired before authorization");
+            queueWrite(credentials.getId(), DELETED);
+        }
+    }
+
+    private void purgeExpiredTempTokens() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, TempToken>> it = byTempToken.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, TempToken> entry = it.next();
+            if (entry.getValue().isExpired(now)) {
+                expire(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static class TempToken {
+        final CredentialsJDO credentials;
+        final long issuedAt;
+        final long expiresAt;
+
+        TempToken(CredentialsJDO credentials, long issuedAt, long ttlMillis) {
+            this.credentials = credentials;
+            this.issuedAt = issuedAt;
+            this.expiresAt = ttlMillis > 0 ? issuedAt + ttlMillis : Long.MAX_VALUE;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.totodon.fitalarm.storage;
+
+import com.fitbit.api.client.FitbitApiSubscriptionStorage;
+import com.fitbit.api.client.LocalSubscriptionDetail;
+import com.fitbit.api.model.FitbitResourceOwner;
+import com.fitbit.api.model.SubscriptionDetail;
+import com.totodon.fitalarm.jdos.SubscriptionJDO;
+import com.totodon.molitan.managers.PersistanceManager;
+import com.totodon.molitan.managers.exceptions.PersistanceServiceException;
+import com.totodon.molitan.services.IPersistanceService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Subscription storage kept in the datastore, so subscriptions survive instance restarts, and indexed in memory by
+ * subscription id and by owner. {@link #getBySubscriptionId(String)}, called for every entity cache lookup, is a hash
+ * lookup.
+ * <p/>
+ * All stored subscriptions are loaded on first use and reloaded once per refresh interval, which drops those deleted
+ * by other instances. Subscriptions saved by other instances in between are looked up in the datastore when their id is
+ * first asked for; ids found in neither place are not looked up again for the miss interval. Only the most recent
+ * misses are remembered, since the ids come from notification bodies.
+ */
+public class PersistentSubscriptionStorage implements FitbitApiSubscriptionStorage {
+
+    private static final Logger log = Logger.getLogger(PersistentSubscriptionStorage.class.getName());
+
+    public static final long DEFAULT_MISS_INTERVAL_MILLIS = 60 * 1000L;
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_MISSES = 1000;
+
+    private final IPersistanceService persistanceService;
+    private final long missIntervalMillis;
+    private final long refreshIntervalMillis;
+
+    private final ConcurrentMap<String, LocalSubscriptionDetail> byKey = new ConcurrentHashMap<String, LocalSubscriptionDetail>();
+    private final ConcurrentMap<String, LocalSubscriptionDetail> bySubscriptionId = new ConcurrentHashMap<String, LocalSubscriptionDetail>();
+    private final ConcurrentMap<FitbitResourceOwner, Set<LocalSubscriptionDetail>> byOwner = new ConcurrentHashMap<FitbitResourceOwner, Set<LocalSubscriptionDetail>>();
+    private final Map<String, Long> misses;
+
+    private volatile boolean loaded;
+    private volatile long loadedAt;
+    private boolean reloading;
+
+    public PersistentSubscriptionStorage() {
+        this(PersistanceManager.getPersistanceService(), DEFAULT_MISS_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param persistanceService service the subscriptions are stored through
+     * @param missIntervalMillis time for which an id not found in the datastore is not looked up again
+     */
+    public PersistentSubscriptionStorage(IPersistanceService persistanceService, long missIntervalMillis) {
+        this(persistanceService, missIntervalMillis, DEFAULT_REFRESH_INTERVAL_MILLIS, DEFAULT_MAX_MISSES);
+    }
+
+    /**
+     * @param persistanceService service the subscriptions are stored through
+     * @param missIntervalMillis time for which an id not found in the datastore is not looked up again
+     * @param refreshIntervalMillis time after which all subscriptions are reloaded from the datastore
+     * @param maxMisses number of ids not found that are remembered at most
+     */
+    public PersistentSubscriptionStorage(IPersistanceService persistanceService, long missIntervalMillis, long refreshIntervalMillis, final int maxMisses) {
+        this.persistanceService = persistanceService;
+        this.missIntervalMillis = missIntervalMillis;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        misses = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxMisses || System.currentTimeMillis() - eldest.getValue() >= PersistentSubscriptionStorage.this.missIntervalMillis;
+            }
+        };
+    }
+
+    @Override
+    public void save(LocalSubscriptionDetail subscription) {
+        ensureLoaded();
+        try {
+            persistanceService.saveObject(new SubscriptionJDO(subscription));
+        } catch (PersistanceServiceException e) {
+            log.log(Level.SEVERE, "Unable to store subscription " + subscription.getSubscriptionDetail().getSubscriptionId(), e);
+        }
+        index(subscription);
+    }
+
+    @Override
+    public LocalSubscriptionDetail getBySubscriptionId(String subscriptionId) {
+        ensureLoaded();
+        if (null == subscriptionId) {
+            return null;
+        }
+        LocalSubscriptionDetail subscription = bySubscriptionId.get(subscriptionId);
+        if (null != subscription) {
+            return subscription;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (misses) {
+            Long missedAt = misses.get(subscriptionId);
+            if (null != missedAt && now - missedAt < missIntervalMillis) {
+                return null;
+            }
+        }
+        subscription = loadBySubscriptionId(subscriptionId);
+        if (null == subscription) {
+            synchronized (misses) {
+                // put again so that it moves to the end, behind the misses that expire before it
+                misses.remove(subscriptionId);
+                misses.put(subscriptionId, now);
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * @return subscriptions of the owner, empty if there are none
+     */
+    public List<LocalSubscriptionDetail> getByOwner(FitbitResourceOwner owner) {
+        ensureLoaded();
+        Set<LocalSubscriptionDetail> subscriptions = null == owner ? null : byOwner.get(owner);
+        return null == subscriptions ? Collections.<LocalSubscriptionDetail>emptyList() : new ArrayList<LocalSubscriptionDetail>(subscriptions);
+    }
+
+    @Override
+    public void delete(LocalSubscriptionDetail subscription) {
+        ensureLoaded();
+        SubscriptionDetail detail = subscription.getSubscriptionDetail();
+        try {
+            persistanceService.deleteObject(SubscriptionJDO.class, SubscriptionJDO.getId(detail));
+        } catch (PersistanceServiceException e) {
+            log.log(Level.SEVERE, "Unable to delete subscription " + detail.getSubscriptionId(), e);
+        }
+        unindex(subscription);
+    }
+
+    /**
+     * @return snapshot of the subscriptions known to this instance
+     */
+    @Override
+    public List<LocalSubscriptionDetail> getAllSubscriptions() {
+        ensureLoaded();
+        return new ArrayList<LocalSubscriptionDetail>(byKey.values());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            if (refreshIntervalMillis > 0 && System.currentTimeMillis() - loadedAt >= refreshIntervalMillis) {
+                reload();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            try {
+                for (LocalSubscriptionDetail subscription : query(null)) {
+                    index(subscription);
+                }
+                log.info("Loaded " + byKey.size() + " subscriptions");
+            } catch (PersistanceServiceException e) {
+                log.log(Level.SEVERE, "Unable to load subscriptions", e);
+            }
+            // not retried on failure, ids are still looked up one by one
+            loadedAt = System.currentTimeMillis();
+            loaded = true;
+        }
+    }
+
+    /**
+     * Reloads all subscriptions on the calling thread while the others keep using the indexes. Subscriptions that are
+     * no longer stored are dropped; those still stored keep the instance, and with it the notification date, held here.
+     */
+    private void reload() {
+        synchronized (this) {
+            if (reloading) {
+                return;
+            }
+            reloading = true;
+        }
+        try {
+            // saved while the query runs, not in its result but not to be dropped either
+            Set<String> known = new HashSet<String>(byKey.keySet());
+            Set<String> stored = new HashSet<String>();
+            for (LocalSubscriptionDetail subscription : query(null)) {
+                String key = SubscriptionJDO.getId(subscription.getSubscriptionDetail());
+                stored.add(key);
+                // known but no longer indexed: deleted here while the query ran
+                if (!known.contains(key) && !byKey.containsKey(key)) {
+                    index(subscription);
+                }
+            }
+            int dropped = 0;
+            for (String key : known) {
+                LocalSubscriptionDetail subscription = byKey.get(key);
+                if (!stored.contains(key) && null != subscription) {
+                    unindex(subscription);
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                log.info("Dropped " + dropped + " subscriptions deleted elsewhere");
+            }
+        } catch (PersistanceServiceException e) {
+            log.log(Level.WARNING, "Unable to reload subscriptions", e);
+        } finally {
+            loadedAt = System.currentTimeMillis();
+            synchronized (this) {
+                reloading = false;
+            }
+        }
+    }
+
+    private LocalSubscriptionDetail loadBySubscriptionId(String subscriptionId) {
+        if (subscriptionId.indexOf('\'') >= 0 || subscriptionId.indexOf('\\') >= 0) {
+            return null;
+        }
+        try {
+            LocalSubscriptionDetail result = null;
+            for (LocalSubscriptionDetail subscription : query("subscriptionId == '" + subscriptionId + "'")) {
+                index(subscription);
+                result = subscription;
+            }
+            return result;
+        } catch (PersistanceServiceException e) {
+            log.log(Level.SEVERE, "Unable to look up subscription " + subscriptionId, e);
+            return null;
+        }
+    }
+
+    private List<LocalSubscriptionDetail> query(String filter) throws PersistanceServiceException {
+        List<LocalSubscriptionDetail> result = new ArrayList<LocalSubscriptionDetail>();
+        Object found = persistanceService.executeQuery(SubscriptionJDO.class, filter);
+        if (found instanceof Collection) {
+            for (Object jdo : (Collection<?>) found) {
+                result.add(((SubscriptionJDO) jdo).toLocalSubscriptionDetail());
+            }
+        }
+        return result;
+    }
+
+    private void index(LocalSubscriptionDetail subscription) {
+        SubscriptionDetail detail = subscription.getSubscriptionDetail();
+        LocalSubscriptionDetail previous = byKey.put(SubscriptionJDO.getId(detail), subscription);
+        bySubscriptionId.put(detail.getSubscriptionId(), subscription);
+        synchronized (misses) {
+            misses.remove(detail.getSubscriptionId());
+        }
+        if (null != detail.getOwner()) {
+            Set<LocalSubscriptionDetail> owned = byOwner.get(detail.getOwner());
+            if (null == owned) {
+                Set<LocalSubscriptionDetail> created = Collections.newSetFromMap(new ConcurrentHashMap<LocalSubscriptionDetail, Boolean>());
+                owned = byOwner.putIfAbsent(detail.getOwner(), created);
+                if (null == owned) {
+                    owned = created;
+                }
+            }
+            if (null != previous) {
+                // equal, but possibly carrying an older notification date
+                owned.remove(previous);
+            }
+            owned.add(subscription);
+        }
+    }
+
+    private void unindex(LocalSubscriptionDetail subscription) {
+        SubscriptionDetail detail = subscription.getSubscriptionDetail();
+        byKey.remove(SubscriptionJDO.getId(detail));
+        if (null != detail.getOwner()) {
+            Set<LocalSubscriptionDetail> owned = byOwner.get(detail.getOwner());
+            if (null != owned) {
+                owned.remove(subscription);
+            }
+        }
+        LocalSubscriptionDetail indexed = bySubscriptionId.get(detail.getSubscriptionId());
+        if (null != indexed && indexed.equals(subscription) && bySubscriptionId.remove(detail.getSubscriptionId(), indexed)) {
+            // another collection may still be subscribed under the same id
+            for (LocalSubscriptionDetail other : byKey.values()) {
+                if (detail.getSubscriptionId().equals(other.getSubscriptionDetail().getSubscriptionId())) {
+                    bySubscriptionId.putIfAbsent(detail.getSubscriptionId(), other);
+                    break;
+                }
+            }
+        }
+    }
+}
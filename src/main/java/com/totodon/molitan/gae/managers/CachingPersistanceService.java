@@ -0,0 +1,408 @@
+package com.totodon.molitan.gae.managers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.totodon.molitan.gae.utils.ObjectConvertor;
+import com.totodon.molitan.jdos.IJDO;
+import com.totodon.molitan.managers.exceptions.PersistanceServiceException;
+import com.totodon.molitan.services.IPersistanceService;
+
+/**
+ * Read-through, write-through memcache layer in front of another persistence service.
+ * <p/>
+ * Classes are cached once a policy is set for them. Lookups of those classes with useMemCache read all ids with one
+ * memcache getAll and fetch only the rest from the datastore with one batched get, adding what was found to memcache
+ * and remembering ids that were not found for the shorter time to live of the policy. Only ids the delegate reports as
+ * missing are remembered, a lookup that fails throws and caches nothing. Saves store the objects in memcache once they
+ * are committed, deletes remove them. Classes without a policy are passed through unchanged, including their
+ * useMemCache flag.
+ * <p/>
+ * Objects removed by {@link #deleteQuery(Class, String)} stay cached until they expire, as their ids are not known.
+ */
+public class CachingPersistanceService implements IPersistanceService {
+
+	private static final Logger log = Logger.getLogger(CachingPersistanceService.class.getName());
+
+	public static final String DEFAULT_NAMESPACE = "molitan-objects";
+
+	/* time after a delete during which lookups may not add the deleted object back */
+	private static final long DELETE_NO_READD_MILLIS = 2000;
+
+	/* cached for ids that were not found, never produced by serialization */
+	private static final byte[] MISSING = new byte[0];
+
+	private final IPersistanceService delegate;
+	private final MemcacheService memcache;
+	private final ConcurrentMap<Class<?>, CachePolicy> policies = new ConcurrentHashMap<Class<?>, CachePolicy>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missingHitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public CachingPersistanceService(IPersistanceService delegate) {
+		this(delegate, MemcacheServiceFactory.getMemcacheService(DEFAULT_NAMESPACE));
+	}
+
+	public CachingPersistanceService(IPersistanceService delegate, MemcacheService memcache) {
+		this.delegate = delegate;
+		this.memcache = memcache;
+	}
+
+	/**
+	 * Caches the objects of a class.
+	 *
+	 * @param ttlSecs time to live of cached objects, 0 for as long as memcache keeps them
+	 * @param missingTtlSecs time for which ids that were not found are not looked up again, 0 not to remember them
+	 */
+	public void setPolicy(Class<?> classType, int ttlSecs, int missingTtlSecs) {
+		policies.put(classType, new CachePolicy(ttlSecs, missingTtlSecs));
+	}
+
+	/**
+	 * Stops caching the objects of a class. Objects already cached are left to expire.
+	 */
+	public void removePolicy(Class<?> classType) {
+		policies.remove(classType);
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of lookups answered by a remembered missing id
+	 */
+	public long getMissingHitCount() {
+		return missingHitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public Object getObject(Class<?> classType, Object id) {
+		return getObject(classType, id, false);
+	}
+
+	public Object getObject(Class<?> classType, Object id, boolean useMemCache) {
+		if(!useMemCache || !policies.containsKey(classType)) {
+			return delegate.getObject(classType, id, useMemCache);
+		}
+		return getObjects(classType, new Object[]{id}, true).get(0);
+	}
+
+	public List<Object> getObjects(Class<?> classType, List<Object> ids) {
+		return getObjects(classType, ids.toArray(), false);
+	}
+
+	public List<Object> getObjects(Class<?> classType, List<Object> ids, boolean useMemCache) {
+		return getObjects(classType, ids.toArray(), useMemCache);
+	}
+
+	public List<Object> getObjects(Class<?> classType, Object[] ids) {
+		return getObjects(classType, ids, false);
+	}
+
+	public List<Object> getObjects(Class<?> classType, Object[] ids, boolean useMemCache) {
+		CachePolicy policy = policies.get(classType);
+		if(!useMemCache || policy == null) {
+			return delegate.getObjects(classType, ids, useMemCache);
+		}
+
+		List<String> keys = new ArrayList<String>(ids.length);
+		for(Object id : ids) {
+			keys.add(getKey(classType, id));
+		}
+		Map<String, Object> cached;
+		try {
+			cached = memcache.getAll(keys);
+		} catch (Exception e) {
+			log.warning("Unable to read " + keys.size() + " cached objects: " + e);
+			cached = new HashMap<String, Object>();
+		}
+
+		Object[] result = new Object[ids.length];
+		List<Integer> missing = new ArrayList<Integer>();
+		for(int i = 0; i < ids.length; i++) {
+			Object bytes = cached.get(keys.get(i));
+			if(bytes instanceof byte[] && ((byte[]) bytes).length == 0) {
+				missingHitCount.incrementAndGet();
+				continue;
+			}
+			if(bytes instanceof byte[]) {
+				try {
+					result[i] = ObjectConvertor.getObject((byte[]) bytes);
+					hitCount.incrementAndGet();
+					continue;
+				} catch (Exception e) {
+					log.fine("Dropping undecodable object " + keys.get(i) + ": " + e);
+				}
+			}
+			missing.add(i);
+		}
+
+		if(!missing.isEmpty()) {
+			missCount.addAndGet(missing.size());
+			Object[] missingIds = new Object[missing.size()];
+			for(int i = 0; i < missingIds.length; i++) {
+				missingIds[i] = ids[missing.get(i)];
+			}
+			// throws when the lookup fails, so a null in the result is an object that does not exist
+			List<Object> found = delegate.getObjects(classType, missingIds, false);
+
+			Map<String, Object> loaded = new HashMap<String, Object>();
+			Map<String, Object> notFound = new HashMap<String, Object>();
+			for(int i = 0; i < missingIds.length; i++) {
+				Object object = found.get(i);
+				result[missing.get(i)] = object;
+				String key = keys.get(missing.get(i));
+				if(object == null) {
+					notFound.put(key, MISSING);
+				} else {
+					byte[] bytes = encode(object);
+					if(bytes != null) {
+						loaded.put(key, bytes);
+					}
+				}
+			}
+			// a value written through or deleted meanwhile is newer than the one just read
+			put(loaded, policy.ttlSecs, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			if(policy.missingTtlSecs > 0) {
+				put(notFound, policy.missingTtlSecs, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			}
+		}
+
+		return Arrays.asList(result);
+	}
+
+	public Object saveObject(IJDO jdo) throws PersistanceServiceException {
+		return saveObjects(new IJDO[]{jdo}, false).get(0);
+	}
+
+	public Object saveObject(IJDO jdo, boolean useMemCache) throws PersistanceServiceException {
+		return saveObjects(new IJDO[]{jdo}, useMemCache).get(0);
+	}
+
+	public List<Object> saveObjects(List<IJDO> jdos) throws PersistanceServiceException {
+		return saveObjects(jdos.toArray(new IJDO[jdos.size()]), false);
+	}
+
+	public List<Object> saveObjects(List<IJDO> jdos, boolean useMemCache) throws PersistanceServiceException {
+		return saveObjects(jdos.toArray(new IJDO[jdos.size()]), useMemCache);
+	}
+
+	public List<Object> saveObjects(IJDO[] jdos) throws PersistanceServiceException {
+		return saveObjects(jdos, false);
+	}
+
+	/**
+	 * Saves through the delegate and stores the objects of cached classes in memcache once committed, whether or not
+	 * useMemCache is set. If the save fails, they are removed from memcache instead.
+	 */
+	public List<Object> saveObjects(IJDO[] jdos, boolean useMemCache) throws PersistanceServiceException {
+		// cached classes are written below, the delegate only caches the others
+		boolean delegateMemCache = false;
+		for(IJDO jdo : jdos) {
+			delegateMemCache |= useMemCache && !policies.containsKey(jdo.getClass());
+		}
+
+		List<Object> ids;
+		try {
+			ids = delegate.saveObjects(jdos, delegateMemCache);
+		} catch (PersistanceServiceException e) {
+			evict(jdos);
+			throw e;
+		} catch (RuntimeException e) {
+			evict(jdos);
+			throw e;
+		}
+
+		Map<CachePolicy, Map<String, Object>> saved = new LinkedHashMap<CachePolicy, Map<String, Object>>();
+		for(int i = 0; i < jdos.length; i++) {
+			CachePolicy policy = policies.get(jdos[i].getClass());
+			if(policy == null) {
+				continue;
+			}
+			Map<String, Object> values = saved.get(policy);
+			if(values == null) {
+				values = new HashMap<String, Object>();
+				saved.put(policy, values);
+			}
+			String key = getKey(jdos[i].getClass(), ids.get(i));
+			byte[] bytes = encode(jdos[i]);
+			if(bytes == null) {
+				memcache.delete(key);
+			} else {
+				values.put(key, bytes);
+			}
+		}
+		for(Map.Entry<CachePolicy, Map<String, Object>> entry : saved.entrySet()) {
+			put(entry.getValue(), entry.getKey().ttlSecs, SetPolicy.SET_ALWAYS);
+		}
+
+		return ids;
+	}
+
+	public void deleteObjects(Class<?> classType, List<Object> ids) throws PersistanceServiceException {
+		deleteObjects(classType, ids.toArray(), false);
+	}
+
+	public void deleteObjects(Class<?> classType, List<Object> ids, boolean useMemCache) throws PersistanceServiceException {
+		deleteObjects(classType, ids.toArray(), useMemCache);
+	}
+
+	public void deleteObjects(Class<?> classType, Object[] ids) throws PersistanceServiceException {
+		deleteObjects(classType, ids, false);
+	}
+
+	public void deleteObjects(Class<?> classType, Object[] ids, boolean useMemCache) throws PersistanceServiceException {
+		boolean cached = policies.containsKey(classType);
+		try {
+			delegate.deleteObjects(classType, ids, useMemCache && !cached);
+		} finally {
+			if(cached) {
+				List<String> keys = new ArrayList<String>(ids.length);
+				for(Object id : ids) {
+					keys.add(getKey(classType, id));
+				}
+				delete(keys);
+			}
+		}
+	}
+
+	public void deleteObject(Class<?> classType, Object id) throws PersistanceServiceException {
+		deleteObject(classType, id, false);
+	}
+
+	public void deleteObject(Class<?> classType, Object id, boolean useMemCache) throws PersistanceServiceException {
+		boolean cached = policies.containsKey(classType);
+		try {
+			delegate.deleteObject(classType, id, useMemCache && !cached);
+		} finally {
+			if(cached) {
+				delete(Arrays.asList(getKey(classType, id)));
+			}
+		}
+	}
+
+	public void deleteObjects(IJDO[] jdos) throws PersistanceServiceException {
+		deleteObjects(jdos, false);
+	}
+
+	public void deleteObjects(IJDO[] jdos, boolean useMemCache) throws PersistanceServiceException {
+		try {
+			delegate.deleteObjects(jdos, useMemCache);
+		} finally {
+			evict(jdos);
+		}
+	}
+
+	public void deleteObjects(List<IJDO> jdos) throws PersistanceServiceException {
+		deleteObjects(jdos.toArray(new IJDO[jdos.size()]), false);
+	}
+
+	public void deleteObjects(List<IJDO> jdos, boolean useMemCache) throws PersistanceServiceException {
+		deleteObjects(jdos.toArray(new IJDO[jdos.size()]), useMemCache);
+	}
+
+	public void deleteObject(IJDO jdo) throws PersistanceServiceException {
+		deleteObject(jdo, false);
+	}
+
+	public void deleteObject(IJDO jdo, boolean useMemCache) throws PersistanceServiceException {
+		try {
+			delegate.deleteObject(jdo, useMemCache);
+		} finally {
+			evict(new IJDO[]{jdo});
+		}
+	}
+
+	public void deleteQuery(Class<?> classType, String filter) throws PersistanceServiceException {
+		delegate.deleteQuery(classType, filter);
+	}
+
+	public Object executeQuery(Class<?> classType, String filter) throws PersistanceServiceException {
+		return delegate.executeQuery(classType, filter);
+	}
+
+	public Object executeQuery(Class<?> classType, String filter, String ordering, String grouping, String range, boolean unique) throws PersistanceServiceException {
+		return delegate.executeQuery(classType, filter, ordering, grouping, range, unique);
+	}
+
+	protected String getKey(Class<?> classType, Object id) {
+		return classType.getName() + '|' + id;
+	}
+
+	/**
+	 * Removes the cached objects of the given JDOs, of cached classes only.
+	 */
+	private void evict(IJDO[] jdos) {
+		List<String> keys = new ArrayList<String>();
+		for(IJDO jdo : jdos) {
+			Object id = jdo.getId();
+			if(id != null && policies.containsKey(jdo.getClass())) {
+				keys.add(getKey(jdo.getClass(), id));
+			}
+		}
+		delete(keys);
+	}
+
+	private void delete(List<String> keys) {
+		if(keys.isEmpty()) {
+			return;
+		}
+		try {
+			memcache.deleteAll(keys, DELETE_NO_READD_MILLIS);
+		} catch (Exception e) {
+			log.warning("Unable to remove " + keys.size() + " cached objects: " + e);
+		}
+	}
+
+	private void put(Map<String, Object> values, int ttlSecs, SetPolicy setPolicy) {
+		if(values.isEmpty()) {
+			return;
+		}
+		try {
+			memcache.putAll(values, ttlSecs > 0 ? Expiration.byDeltaSeconds(ttlSecs) : null, setPolicy);
+		} catch (Exception e) {
+			log.warning("Unable to cache " + values.size() + " objects: " + e);
+		}
+	}
+
+	private static byte[] encode(Object object) {
+		if(!(object instanceof Serializable)) {
+			log.fine("Not caching " + object.getClass().getName() + ", it doesn't implement the java.io.Serializable interface");
+			return null;
+		}
+		try {
+			return ObjectConvertor.getBytes(object);
+		} catch (Exception e) {
+			log.warning("Unable to serialize " + object.getClass().getName() + ": " + e);
+			return null;
+		}
+	}
+
+	private static class CachePolicy {
+		final int ttlSecs;
+		final int missingTtlSecs;
+
+		CachePolicy(int ttlSecs, int missingTtlSecs) {
+			this.ttlSecs = ttlSecs;
+			this.missingTtlSecs = missingTtlSecs;
+		}
+	}
+}
@@ -1,16 +1,31 @@
 package com.totodon.molitan.gae.managers;
 
 import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.JDOUserException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
+import javax.jdo.annotations.PrimaryKey;
 
 import com.totodon.molitan.gae.utils.MemCacheUtility;
 import com.totodon.molitan.gae.utils.PMF;
+import com.google.appengine.api.datastore.Key;
 import com.totodon.molitan.jdos.IJDO;
+import com.totodon.molitan.managers.exceptions.BatchSaveException;
 import com.totodon.molitan.managers.exceptions.PersistanceServiceException;
 import com.totodon.molitan.services.IPersistanceService;
 
@@ -24,6 +39,15 @@ public final class GAEPersistanceManager implements IPersistanceService
 	private static GAEPersistanceManager instance = null;
 	private static final Logger log = Logger.getLogger(GAEPersistanceManager.class.getName());
 	
+	/* more than 5 entity groups in a transaction throw an exception */
+	private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 5;
+	/* the datastore puts at most 500 entities per call */
+	private static final int MAX_OBJECTS_PER_TRANSACTION = 500;
+	/* a query filters on at most 30 values of a contains() */
+	private static final int MAX_IDS_PER_QUERY = 30;
+	
+	private volatile Executor saveExecutor = null;
+	
 	private GAEPersistanceManager()
 	{
 		
@@ -39,6 +63,15 @@ public final class GAEPersistanceManager implements IPersistanceService
 		return instance;
 	}
 	
+	/**
+	 * Sets the executor the transactions of a batch save are committed on concurrently. On App Engine it has to
+	 * create its threads with the request thread factory of ThreadManager. Without one they are committed one after
+	 * the other on the calling thread.
+	 */
+	public void setSaveExecutor(Executor saveExecutor) {
+		this.saveExecutor = saveExecutor;
+	}
+	
 	public Object getObject(Class<?> classType, Object id) {
 		return getObject(classType, id, false);
 	}
@@ -62,7 +95,7 @@ public final class GAEPersistanceManager implements IPersistanceService
 	
 		try {
 			result = pm.getObjectById(classType, id);
-		} catch (Exception e) {
+		} catch (JDOObjectNotFoundException e) {
 			return null;
 		} finally {
 			pm.flush();
@@ -72,6 +105,114 @@ public final class GAEPersistanceManager implements IPersistanceService
 		return result; 
 	}
 	
+	public List<Object> getObjects(Class<?> classType, List<Object> ids) {
+		return getObjects(classType, ids.toArray(), false);
+	}
+	
+	public List<Object> getObjects(Class<?> classType, List<Object> ids, boolean useMemCache) {
+		return getObjects(classType, ids.toArray(), useMemCache);
+	}
+	
+	public List<Object> getObjects(Class<?> classType, Object[] ids) {
+		return getObjects(classType, ids, false);
+	}
+	
+	/**
+	 * Looks up all objects with one batched datastore get.
+	 * 
+	 * @return the objects in the order of the ids, null for those not found
+	 * @throws javax.jdo.JDOException if the datastore fails, rather than reporting the objects as not found
+	 */
+	public List<Object> getObjects(Class<?> classType, Object[] ids, boolean useMemCache) {
+		
+		Object[] result = new Object[ids.length];
+		List<Integer> missing = new ArrayList<Integer>(ids.length);
+		
+		for(int i = 0; i < ids.length; i++) {
+			if(useMemCache) {
+				try {
+					result[i] = MemCacheUtility.get(MemCacheUtility.getUniqueId(classType, ids[i]));
+				} catch (Exception e) {
+					log.severe(e.getMessage());
+				}
+			}
+			if(result[i] == null) {
+				missing.add(i);
+			}
+		}
+		
+		if(!missing.isEmpty()) {
+			Object[] missingIds = new Object[missing.size()];
+			for(int i = 0; i < missingIds.length; i++) {
+				missingIds[i] = ids[missing.get(i)];
+			}
+			
+			PersistenceManager pm = PMF.get().getPersistenceManager();
+			
+			try {
+				Object[] found = lookUpObjects(pm, classType, missingIds);
+				for(int i = 0; i < found.length; i++) {
+					result[missing.get(i)] = found[i];
+				}
+			} finally {
+				pm.flush();
+				pm.close();
+			}
+		}
+		
+		return Arrays.asList(result);
+	}
+	
+	/**
+	 * Only a missing object makes the batch fail with JDOObjectNotFoundException, other datastore errors are thrown
+	 * on. The ids are then looked up again with queries on the primary key, whose results leave out the missing ones.
+	 * 
+	 * @return the objects in the order of the ids, null for those not found
+	 */
+	private Object[] lookUpObjects(PersistenceManager pm, Class<?> classType, Object[] ids) {
+		Object[] objectIds = new Object[ids.length];
+		for(int i = 0; i < ids.length; i++) {
+			objectIds[i] = pm.newObjectIdInstance(classType, ids[i]);
+		}
+		
+		try {
+			return pm.getObjectsById(true, objectIds);
+		} catch (JDOObjectNotFoundException e) {
+			// the batch fails as a whole, only now is it worth telling the missing ones apart
+		}
+		
+		String filter = ":ids.contains(" + getPrimaryKeyName(classType) + ")";
+		Map<Object, Object> found = new HashMap<Object, Object>();
+		for(int from = 0; from < ids.length; from += MAX_IDS_PER_QUERY) {
+			List<Object> chunk = Arrays.asList(ids).subList(from, Math.min(ids.length, from + MAX_IDS_PER_QUERY));
+			Query query = pm.newQuery(classType, filter);
+			try {
+				for(Object object : (Collection<?>) query.execute(chunk)) {
+					found.put(((IJDO) object).getId(), object);
+				}
+			} finally {
+				query.closeAll();
+			}
+		}
+		
+		Object[] result = new Object[ids.length];
+		for(int i = 0; i < ids.length; i++) {
+			result[i] = found.get(ids[i]);
+		}
+		return result;
+	}
+	
+	private static String getPrimaryKeyName(Class<?> classType) {
+		for(Class<?> type = classType; type != null && type != Object.class; type = type.getSuperclass()) {
+			for(Field field : type.getDeclaredFields()) {
+				if(field.isAnnotationPresent(PrimaryKey.class)) {
+					return field.getName();
+				}
+			}
+		}
+		throw new JDOUserException(classType.getName() + " has no primary key field");
+	}
+	
 	public IJDO nonTransactionalSaveObject(IJDO jdo) throws PersistanceServiceException {
 		return nonTransactionalSaveObject(jdo);
 	}
@@ -131,52 +272,201 @@ public final class GAEPersistanceManager implements IPersistanceService
 		return saveObjects(jdos, false);
 	}
 	
+	/**
+	 * Stores the objects in as few transactions as the datastore allows. Objects are grouped by entity group, and up to
+	 * five groups share a transaction, each stored with one batched put. Objects of the same group are always stored in
+	 * the same transaction. The transactions are committed concurrently when a save executor is set.
+	 * <p/>
+	 * Each transaction stores all of its objects or none. If any fails, the others are still committed and a
+	 * {@link BatchSaveException} tells the stored objects apart from those to save again; transactions already
+	 * committed cannot be rolled back by the datastore.
+	 * 
+	 * @return ids of the objects in the order they were passed
+	 */
 	public List<Object> saveObjects(IJDO[] jdos, boolean useMemCache) throws PersistanceServiceException {
 		
-		// TODO: implement automatic rollback in case of more than 5 entity groups save interuption
+		if(useMemCache) {
+			for(IJDO jdo : jdos) {
+				if(!(jdo instanceof Serializable)) {
+					throw new PersistanceServiceException(jdo.toString() + " doesn't implement the java.io.Serializable interface");
+				}
+			}
+		}
+		
+		List<SaveTransaction> transactions = groupTransactions(jdos, useMemCache);
+		
+		Executor executor = saveExecutor;
+		if(executor == null || transactions.size() < 2) {
+			for(SaveTransaction transaction : transactions) {
+				transaction.run();
+			}
+		} else {
+			List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(transactions.size());
+			for(SaveTransaction transaction : transactions) {
+				FutureTask<Void> task = new FutureTask<Void>(transaction, null);
+				tasks.add(task);
+				try {
+					executor.execute(task);
+				} catch (Exception e) {
+					// the executor is out of threads, commit on this one
+					task.run();
+				}
+			}
+			for(int i = 0; i < tasks.size(); i++) {
+				try {
+					tasks.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new PersistanceServiceException("Interrupted while saving " + jdos.length + " objects");
+				} catch (ExecutionException e) {
+					transactions.get(i).failure = String.valueOf(e.getCause());
+				}
+			}
+		}
+		
+		Object[] ids = new Object[jdos.length];
+		List<Object> savedIds = new ArrayList<Object>(jdos.length);
+		List<Object> failedObjects = new ArrayList<Object>();
+		String failure = null;
+		for(SaveTransaction transaction : transactions) {
+			if(transaction.failure != null) {
+				failure = transaction.failure;
+				failedObjects.addAll(transaction.jdos);
+				continue;
+			}
+			for(int i = 0; i < transaction.ids.length; i++) {
+				ids[transaction.indexes.get(i)] = transaction.ids[i];
+				savedIds.add(transaction.ids[i]);
+			}
+		}
+		if(failure != null) {
+			throw new BatchSaveException(failedObjects.size() + " of " + jdos.length + " objects not saved: " + failure, savedIds, failedObjects);
+		}
+		
+		return Arrays.asList(ids);
+	}
+	
+	private List<SaveTransaction> groupTransactions(IJDO[] jdos, boolean useMemCache) {
+		Map<Object, List<Integer>> indexesByGroup = new LinkedHashMap<Object, List<Integer>>();
+		for(int i = 0; i < jdos.length; i++) {
+			Object group = getEntityGroup(jdos[i]);
+			List<Integer> indexes = indexesByGroup.get(group);
+			if(indexes == null) {
+				indexes = new ArrayList<Integer>();
+				indexesByGroup.put(group, indexes);
+			}
+			indexes.add(i);
+		}
+		
+		List<SaveTransaction> transactions = new ArrayList<SaveTransaction>();
+		SaveTransaction transaction = null;
+		for(List<Integer> indexes : indexesByGroup.values()) {
+			if(transaction == null || transaction.groups == MAX_ENTITY_GROUPS_PER_TRANSACTION
+					|| transaction.indexes.size() + indexes.size() > MAX_OBJECTS_PER_TRANSACTION) {
+				transaction = new SaveTransaction(useMemCache);
+				transactions.add(transaction);
+			}
+			transaction.groups++;
+			for(Integer index : indexes) {
+				transaction.indexes.add(index);
+				transaction.jdos.add(jdos[index]);
+			}
+		}
+		return transactions;
+	}
+	
+	/**
+	 * @return key identifying the entity group the object is stored in
+	 */
+	private static Object getEntityGroup(IJDO jdo) {
+		Object id = jdo.getId();
+		if(id instanceof Key) {
+			Key root = (Key) id;
+			while(root.getParent() != null) {
+				root = root.getParent();
+			}
+			return root;
+		}
+		if(id == null) {
+			// the datastore assigns a new root key, the object is a group of its own
+			return new Object();
+		}
+		return Arrays.asList(jdo.getClass(), id);
+	}
+	
+	/**
+	 * Objects of up to five entity groups stored in one transaction with their own PersistenceManager.
+	 */
+	private class SaveTransaction implements Runnable {
+		final boolean useMemCache;
+		final List<Integer> indexes = new ArrayList<Integer>();
+		final List<IJDO> jdos = new ArrayList<IJDO>();
+		int groups = 0;
+		Object[] ids = null;
+		volatile String failure = null;
+		
+		SaveTransaction(boolean useMemCache) {
+			this.useMemCache = useMemCache;
+		}
+		
+		public void run() {
+			ids = new Object[jdos.size()];
+			PersistenceManager pm = PMF.get().getPersistenceManager();
+			
+			try {
+				pm.currentTransaction().begin();
+				IJDO[] saved = pm.makePersistentAll(jdos.toArray(new IJDO[jdos.size()]));
+				pm.currentTransaction().commit();
+				
+				for(int i = 0; i < saved.length; i++) {
+					ids[i] = saved[i].getId();
+				}
+			} catch (Exception e) {
+				if(pm.currentTransaction().isActive()) {
+	        		pm.currentTransaction().rollback();
+	        	}
+				log.log(Level.SEVERE, "Unable to save " + jdos.size() + " objects of " + groups + " entity groups", e);
+				failure = String.valueOf(e.getMessage());
+				return;
+			} finally {
+	        	pm.flush();
+	            pm.close();
+	        }
+			
+			if(useMemCache) {
+				for(int i = 0; i < ids.length; i++) {
+					try {
+						cache(jdos.get(i), ids[i]);
+					} catch (PersistanceServiceException e) {
+						log.severe(e.getMessage());
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stores all objects with one batched datastore put, without a transaction.
+	 */
+	public List<Object> nonTransactionalSaveObjects(IJDO[] jdos, boolean useMemCache) throws PersistanceServiceException {
 		
 		List<Object> result = new ArrayList<Object>();
 		
 		PersistenceManager pm = PMF.get().getPersistenceManager();
 		
 		try {
-			pm.currentTransaction().begin();
+			IJDO[] saved = pm.makePersistentAll(jdos);
 			
-			int i = 0;
-			for(IJDO jdo : jdos) {
-				Object id = pm.makePersistent(jdo).getId();
+			for(int i = 0; i < saved.length; i++) {
+				Object id = saved[i].getId();
 				result.add(id);
-				/* This is a hack since more than 5 entity groups in a transaction throw an exception */
-				if(i++ == 4) {
-					i = 0;
-					pm.currentTransaction().commit();
-					
-					if(useMemCache) {
-						if(jdo instanceof Serializable) {
-							try {
-								int uniqueMemCacheId = MemCacheUtility.getUniqueId(jdo.getClass(), id);
-								MemCacheUtility.invalidate(uniqueMemCacheId);
-								MemCacheUtility.cache(uniqueMemCacheId, jdo);
-							} catch (Exception e) {
-								log.severe(e.getMessage());
-							}
-						} else {
-							throw new PersistanceServiceException(jdo.toString() + " doesn't implement the java.io.Serializable interface");
-						}
-					}
-					
-					pm.currentTransaction().begin();
+				if(useMemCache) {
+					cache(jdos[i], id);
 				}
 			}
-			
-			if(i <= 4) {
-				pm.currentTransaction().commit();
-			}
-			
+		} catch (PersistanceServiceException e) {
+			throw e;
 		} catch (Exception e) {
-			if(pm.currentTransaction().isActive()) {
-        		pm.currentTransaction().rollback();
-        	}
 			throw new PersistanceServiceException(e.getMessage());
 		} finally {
         	pm.flush();
@@ -186,6 +476,20 @@ public final class GAEPersistanceManager implements IPersistanceService
         return result;
 	}
 	
+	private void cache(IJDO jdo, Object id) throws PersistanceServiceException {
+		if(jdo instanceof Serializable) {
+			try {
+				int uniqueMemCacheId = MemCacheUtility.getUniqueId(jdo.getClass(), id);
+				MemCacheUtility.invalidate(uniqueMemCacheId);
+				MemCacheUtility.cache(uniqueMemCacheId, jdo);
+			} catch (Exception e) {
+				log.severe(e.getMessage());
+			}
+		} else {
+			throw new PersistanceServiceException(jdo.toString() + " doesn't implement the java.io.Serializable interface");
+		}
+	}
+	
 	public void deleteObjects(Class<?> classType, List<Object> ids) throws PersistanceServiceException {
 		Object[] idsArray = new Object[ids.size()];
 		deleteObjects(classType, ids.toArray(idsArray));
@@ -197,14 +501,48 @@ public final class GAEPersistanceManager implements IPersistanceService
 	}
 	
 	public void deleteObjects(Class<?> classType, Object[] ids) throws PersistanceServiceException {
-		for(Object id : ids) {
-			deleteObject(classType, id);
-		}
+		deleteObjects(classType, ids, false);
 	}
 	
+	/**
+	 * Looks up and deletes all objects with one batched datastore call each, without a transaction. Ids not found are
+	 * skipped.
+	 */
 	public void deleteObjects(Class<?> classType, Object[] ids, boolean useMemCache) throws PersistanceServiceException {
-		for(Object id : ids) {
-			deleteObject(classType, id, useMemCache);
+		PersistenceManager pm = PMF.get().getPersistenceManager();
+		
+		try {
+			deleteObjects(pm, classType, ids, useMemCache);
+		} finally {
+			pm.flush();
+			pm.close();
+		}
+	}
+	
+	private void deleteObjects(PersistenceManager pm, Class<?> classType, Object[] ids, boolean useMemCache) throws PersistanceServiceException {
+		List<Object> found = new ArrayList<Object>(ids.length);
+		for(Object object : lookUpObjects(pm, classType, ids)) {
+			if(object != null) {
+				found.add(object);
+			}
+		}
+		
+		try {
+			if(!found.isEmpty()) {
+				pm.deletePersistentAll(found);
+			}
+		} catch (Exception e) {
+			throw new PersistanceServiceException(e.getMessage());
+		}
+		
+		if(useMemCache) {
+			for(Object id : ids) {
+				try {
+					MemCacheUtility.invalidate(MemCacheUtility.getUniqueId(classType, id));
+				} catch (Exception e) {
+					log.severe(e.getMessage());
+				}
+			}
 		}
 	}
 	
@@ -247,14 +585,33 @@ public final class GAEPersistanceManager implements IPersistanceService
 	}
 	
 	public void deleteObjects(IJDO[] jdos) throws PersistanceServiceException {
-		for(IJDO jdo : jdos) {
-			deleteObject(jdo, false);
-		}
+		deleteObjects(jdos, false);
 	}
 	
+	/**
+	 * Deletes the objects of each class with one batched datastore call, without a transaction. Objects no longer
+	 * stored are skipped.
+	 */
 	public void deleteObjects(IJDO[] jdos, boolean useMemCache) throws PersistanceServiceException {
+		Map<Class<?>, List<Object>> idsByClass = new LinkedHashMap<Class<?>, List<Object>>();
 		for(IJDO jdo : jdos) {
-			deleteObject(jdo, useMemCache);
+			List<Object> ids = idsByClass.get(jdo.getClass());
+			if(ids == null) {
+				ids = new ArrayList<Object>();
+				idsByClass.put(jdo.getClass(), ids);
+			}
+			ids.add(jdo.getId());
+		}
+		
+		PersistenceManager pm = PMF.get().getPersistenceManager();
+		
+		try {
+			for(Map.Entry<Class<?>, List<Object>> entry : idsByClass.entrySet()) {
+				deleteObjects(pm, entry.getKey(), entry.getValue().toArray(), useMemCache);
+			}
+		} finally {
+			pm.flush();
+			pm.close();
 		}
 	}
 	
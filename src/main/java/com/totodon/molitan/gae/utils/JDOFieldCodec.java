@@ -0,0 +1,274 @@
+package com.totodon.molitan.gae.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jdo.spi.PersistenceCapable;
+
+import com.totodon.molitan.jdos.IJDO;
+
+/**
+ * Writes the fields of {@link IJDO} objects directly, without the class descriptors and reflection per call of Java
+ * serialization. Takes classes with a no-argument constructor whose fields are all primitives, their wrappers,
+ * strings, dates or byte arrays; fields added by the JDO enhancer are left out.
+ * <p/>
+ * The fields of a class are looked up once. The output starts with the class name and a fingerprint of the field names
+ * and types, so bytes written before a class changed fail to decode instead of filling in the wrong fields.
+ * Objects still attached to an open PersistenceManager are left to Java serialization, which loads their fields first.
+ */
+public class JDOFieldCodec implements ObjectCodec {
+
+	public static final byte ID = 1;
+
+	private static final byte TYPE_BOOLEAN = 1;
+	private static final byte TYPE_BYTE = 2;
+	private static final byte TYPE_SHORT = 3;
+	private static final byte TYPE_CHAR = 4;
+	private static final byte TYPE_INT = 5;
+	private static final byte TYPE_LONG = 6;
+	private static final byte TYPE_FLOAT = 7;
+	private static final byte TYPE_DOUBLE = 8;
+	private static final byte TYPE_STRING = 9;
+	private static final byte TYPE_DATE = 10;
+	private static final byte TYPE_BYTES = 11;
+
+	private static final Map<Class<?>, Byte> TYPES = new HashMap<Class<?>, Byte>();
+
+	static {
+		TYPES.put(boolean.class, TYPE_BOOLEAN);
+		TYPES.put(Boolean.class, TYPE_BOOLEAN);
+		TYPES.put(byte.class, TYPE_BYTE);
+		TYPES.put(Byte.class, TYPE_BYTE);
+		TYPES.put(short.class, TYPE_SHORT);
+		TYPES.put(Short.class, TYPE_SHORT);
+		TYPES.put(char.class, TYPE_CHAR);
+		TYPES.put(Character.class, TYPE_CHAR);
+		TYPES.put(int.class, TYPE_INT);
+		TYPES.put(Integer.class, TYPE_INT);
+		TYPES.put(long.class, TYPE_LONG);
+		TYPES.put(Long.class, TYPE_LONG);
+		TYPES.put(float.class, TYPE_FLOAT);
+		TYPES.put(Float.class, TYPE_FLOAT);
+		TYPES.put(double.class, TYPE_DOUBLE);
+		TYPES.put(Double.class, TYPE_DOUBLE);
+		TYPES.put(String.class, TYPE_STRING);
+		TYPES.put(Date.class, TYPE_DATE);
+		TYPES.put(byte[].class, TYPE_BYTES);
+	}
+
+	private final ConcurrentMap<Class<?>, Schema> schemas = new ConcurrentHashMap<Class<?>, Schema>();
+
+	public byte getId() {
+		return ID;
+	}
+
+	public boolean canEncode(Object object) {
+		if(!(object instanceof IJDO)) {
+			return false;
+		}
+		if(object instanceof PersistenceCapable && ((PersistenceCapable) object).jdoGetPersistenceManager() != null) {
+			return false;
+		}
+		return getSchema(object.getClass()) != null;
+	}
+
+	public void encode(Object object, OutputStream out) throws IOException {
+		Schema schema = getSchema(object.getClass());
+		if(schema == null) {
+			throw new IOException(object.getClass().getName() + " is not supported");
+		}
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeUTF(object.getClass().getName());
+		data.writeInt(schema.fingerprint);
+		try {
+			for(int i = 0; i < schema.fields.length; i++) {
+				writeValue(data, schema.types[i], schema.fields[i].getType().isPrimitive(), schema.fields[i].get(object));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException("Unable to read the fields of " + object.getClass().getName() + ": " + e.getMessage());
+		}
+		data.flush();
+	}
+
+	public Object decode(InputStream in) throws IOException, ClassNotFoundException {
+		DataInputStream data = new DataInputStream(in);
+		String className = data.readUTF();
+		Class<?> classType = Class.forName(className, false, getClassLoader());
+		if(!IJDO.class.isAssignableFrom(classType)) {
+			throw new IOException(className + " is not a JDO");
+		}
+		Schema schema = getSchema(classType);
+		if(schema == null) {
+			throw new IOException(className + " is not supported");
+		}
+		if(data.readInt() != schema.fingerprint) {
+			throw new IOException("Fields of " + className + " have changed");
+		}
+		try {
+			Object object = schema.constructor.newInstance();
+			for(int i = 0; i < schema.fields.length; i++) {
+				Object value = readValue(data, schema.types[i], schema.fields[i].getType().isPrimitive());
+				if(value != null) {
+					schema.fields[i].set(object, value);
+				}
+			}
+			return object;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to create " + className + ": " + e);
+		}
+	}
+
+	private static ClassLoader getClassLoader() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader != null ? loader : JDOFieldCodec.class.getClassLoader();
+	}
+
+	/**
+	 * @return fields of the class, null if it is not supported
+	 */
+	private Schema getSchema(Class<?> classType) {
+		Schema schema = schemas.get(classType);
+		if(schema == null) {
+			schema = Schema.create(classType);
+			schemas.putIfAbsent(classType, schema);
+		}
+		return schema.supported ? schema : null;
+	}
+
+	private static void writeValue(DataOutputStream data, byte type, boolean primitive, Object value) throws IOException {
+		if(!primitive) {
+			if(value == null) {
+				data.writeBoolean(false);
+				return;
+			}
+			data.writeBoolean(true);
+		}
+		switch(type) {
+			case TYPE_BOOLEAN: data.writeBoolean((Boolean) value); break;
+			case TYPE_BYTE: data.writeByte((Byte) value); break;
+			case TYPE_SHORT: data.writeShort((Short) value); break;
+			case TYPE_CHAR: data.writeChar((Character) value); break;
+			case TYPE_INT: data.writeInt((Integer) value); break;
+			case TYPE_LONG: data.writeLong((Long) value); break;
+			case TYPE_FLOAT: data.writeFloat((Float) value); break;
+			case TYPE_DOUBLE: data.writeDouble((Double) value); break;
+			case TYPE_DATE: data.writeLong(((Date) value).getTime()); break;
+			case TYPE_STRING: writeBytes(data, ((String) value).getBytes("UTF-8")); break;
+			case TYPE_BYTES: writeBytes(data, (byte[]) value); break;
+			default: throw new IOException("Unknown field type " + type);
+		}
+	}
+
+	private static Object readValue(DataInputStream data, byte type, boolean primitive) throws IOException {
+		if(!primitive && !data.readBoolean()) {
+			return null;
+		}
+		switch(type) {
+			case TYPE_BOOLEAN: return data.readBoolean();
+			case TYPE_BYTE: return data.readByte();
+			case TYPE_SHORT: return data.readShort();
+			case TYPE_CHAR: return data.readChar();
+			case TYPE_INT: return data.readInt();
+			case TYPE_LONG: return data.readLong();
+			case TYPE_FLOAT: return data.readFloat();
+			case TYPE_DOUBLE: return data.readDouble();
+			case TYPE_DATE: return new Date(data.readLong());
+			case TYPE_STRING: return new String(readBytes(data), "UTF-8");
+			case TYPE_BYTES: return readBytes(data);
+			default: throw new IOException("Unknown field type " + type);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if(length < 0) {
+			throw new IOException("Corrupt field length " + length);
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return bytes;
+	}
+
+	private static class Schema {
+		final boolean supported;
+		final Constructor<?> constructor;
+		final Field[] fields;
+		final byte[] types;
+		final int fingerprint;
+
+		private Schema(boolean supported, Constructor<?> constructor, Field[] fields, byte[] types, int fingerprint) {
+			this.supported = supported;
+			this.constructor = constructor;
+			this.fields = fields;
+			this.types = types;
+			this.fingerprint = fingerprint;
+		}
+
+		static Schema create(Class<?> classType) {
+			Schema unsupported = new Schema(false, null, null, null, 0);
+			Constructor<?> constructor;
+			try {
+				constructor = classType.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (Exception e) {
+				return unsupported;
+			}
+
+			List<Field> fields = new ArrayList<Field>();
+			for(Class<?> type = classType; type != null && type != Object.class; type = type.getSuperclass()) {
+				for(Field field : type.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() || field.getName().startsWith("jdo")) {
+						continue;
+					}
+					if(!TYPES.containsKey(field.getType())) {
+						return unsupported;
+					}
+					fields.add(field);
+				}
+			}
+			Collections.sort(fields, new Comparator<Field>() {
+				public int compare(Field a, Field b) {
+					int byName = a.getName().compareTo(b.getName());
+					return byName != 0 ? byName : a.getDeclaringClass().getName().compareTo(b.getDeclaringClass().getName());
+				}
+			});
+
+			byte[] types = new byte[fields.size()];
+			StringBuilder signature = new StringBuilder(classType.getName());
+			try {
+				for(int i = 0; i < types.length; i++) {
+					Field field = fields.get(i);
+					field.setAccessible(true);
+					types[i] = TYPES.get(field.getType());
+					signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+				}
+			} catch (SecurityException e) {
+				return unsupported;
+			}
+			return new Schema(true, constructor, fields.toArray(new Field[fields.size()]), types, signature.toString().hashCode());
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.totodon.molitan.gae.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary form of objects put in memcache, registered with {@link ObjectConvertor#register(ObjectCodec)}.
+ * ObjectConvertor writes the id of the codec in front of its output and hands the bytes back to the same codec, so
+ * codecs only write the object itself.
+ */
+public interface ObjectCodec {
+
+	/**
+	 * @return id of the codec, unique among the registered ones and never changed once bytes were written with it
+	 */
+	byte getId();
+
+	boolean canEncode(Object object);
+
+	void encode(Object object, OutputStream out) throws IOException;
+
+	Object decode(InputStream in) throws IOException, ClassNotFoundException;
+}
@@ -1,28 +1,225 @@
 package com.totodon.molitan.gae.utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-public class ObjectConvertor 
+/**
+ * Turns objects into the bytes put in memcache and back, through the first registered {@link ObjectCodec} that takes
+ * them; {@link JDOFieldCodec} for plain JDOs and {@link SerializationCodec} for everything else by default.
+ * <p/>
+ * The bytes start with a three byte header: format version, codec id and flags. Payloads above the compression
+ * threshold are deflated when that makes them smaller. Bytes written before the header was introduced, plain Java
+ * serialization streams, are still read. Streams and buffers are kept per thread and reused.
+ */
+public class ObjectConvertor
 {
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	static final byte FORMAT_VERSION = 2;
+	static final byte FLAG_DEFLATED = 1;
+	private static final int HEADER_LENGTH = 3;
+
+	/* first bytes of a Java serialization stream */
+	private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+	private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+	/* buffers grown beyond this by a large object are not kept for the thread */
+	private static final int MAX_POOLED_BUFFER_LENGTH = 64 * 1024;
+
+	private static volatile ObjectCodec[] codecs = new ObjectCodec[] { new JDOFieldCodec(), new SerializationCodec() };
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Registers a codec ahead of those already registered, replacing any with the same id.
+	 */
+	public static synchronized void register(ObjectCodec codec)
+	{
+		ObjectCodec[] current = codecs;
+		ObjectCodec[] updated = new ObjectCodec[current.length + 1];
+		int count = 0;
+		updated[count++] = codec;
+		for(ObjectCodec registered : current) {
+			if(registered.getId() != codec.getId()) {
+				updated[count++] = registered;
+			}
+		}
+		ObjectCodec[] result = new ObjectCodec[count];
+		System.arraycopy(updated, 0, result, 0, count);
+		codecs = result;
+	}
+
 	public static byte[] getBytes(Object obj) throws java.io.IOException
 	{
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(); 
-	    ObjectOutputStream oos = new ObjectOutputStream(bos); 
-	    oos.writeObject(obj);
-	    oos.flush(); 
-	    oos.close(); 
-	    bos.close();
-	    byte [] data = bos.toByteArray();
-	    
-	    return data;
+		return getBytes(obj, DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	/**
+	 * @param compressionThreshold payload size in bytes above which it is deflated
+	 */
+	public static byte[] getBytes(Object obj, int compressionThreshold) throws java.io.IOException
+	{
+		ObjectCodec codec = null;
+		for(ObjectCodec candidate : codecs) {
+			if(candidate.canEncode(obj)) {
+				codec = candidate;
+				break;
+			}
+		}
+		if(codec == null) {
+			throw new java.io.NotSerializableException(obj.getClass().getName());
+		}
+
+		Buffers buffers = Buffers.acquire();
+		try {
+			PooledOutputStream out = buffers.out;
+			out.write(FORMAT_VERSION);
+			out.write(codec.getId());
+			out.write(0);
+			codec.encode(obj, out);
+
+			int length = out.size() - HEADER_LENGTH;
+			if(length > compressionThreshold) {
+				PooledOutputStream deflated = buffers.deflate(out.buffer(), HEADER_LENGTH, length);
+				if(deflated.size() < length) {
+					byte[] data = new byte[HEADER_LENGTH + deflated.size()];
+					System.arraycopy(out.buffer(), 0, data, 0, HEADER_LENGTH);
+					data[2] |= FLAG_DEFLATED;
+					System.arraycopy(deflated.buffer(), 0, data, HEADER_LENGTH, deflated.size());
+					return data;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			buffers.release();
+		}
 	}
 
 	public static Object getObject(byte[] bytes) throws java.io.IOException, ClassNotFoundException
 	{
-		Object object = null;
-		object = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes)).readObject();
+		if(bytes.length >= 2 && bytes[0] == STREAM_MAGIC_0 && bytes[1] == STREAM_MAGIC_1) {
+			return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+		}
+		if(bytes.length < HEADER_LENGTH || bytes[0] != FORMAT_VERSION) {
+			throw new IOException("Unknown format " + (bytes.length == 0 ? "(empty)" : String.valueOf(bytes[0])));
+		}
+		ObjectCodec codec = null;
+		for(ObjectCodec candidate : codecs) {
+			if(candidate.getId() == bytes[1]) {
+				codec = candidate;
+				break;
+			}
+		}
+		if(codec == null) {
+			throw new IOException("Unknown codec " + bytes[1]);
+		}
+
+		if((bytes[2] & FLAG_DEFLATED) == 0) {
+			return codec.decode(new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH));
+		}
+		Buffers buffers = Buffers.acquire();
+		try {
+			PooledOutputStream inflated = buffers.inflate(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+			InputStream in = new ByteArrayInputStream(inflated.buffer(), 0, inflated.size());
+			return codec.decode(in);
+		} finally {
+			buffers.release();
+		}
+	}
+
+	private static class PooledOutputStream extends ByteArrayOutputStream
+	{
+		PooledOutputStream(int size)
+		{
+			super(size);
+		}
+
+		byte[] buffer()
+		{
+			return buf;
+		}
+	}
+
+	/**
+	 * Streams, buffers and (de)compressors of a thread. Codecs that call back into ObjectConvertor get fresh ones.
+	 */
+	private static class Buffers
+	{
+		PooledOutputStream out = new PooledOutputStream(512);
+		PooledOutputStream zipped = new PooledOutputStream(512);
+		final byte[] chunk = new byte[4096];
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		final Inflater inflater = new Inflater();
+		boolean inUse;
+
+		static Buffers acquire()
+		{
+			Buffers buffers = BUFFERS.get();
+			if(buffers.inUse) {
+				buffers = new Buffers();
+			}
+			buffers.inUse = true;
+			return buffers;
+		}
+
+		void release()
+		{
+			if(out.buffer().length > MAX_POOLED_BUFFER_LENGTH) {
+				out = new PooledOutputStream(512);
+			}
+			if(zipped.buffer().length > MAX_POOLED_BUFFER_LENGTH) {
+				zipped = new PooledOutputStream(512);
+			}
+			out.reset();
+			zipped.reset();
+			deflater.reset();
+			inflater.reset();
+			if(BUFFERS.get() == this) {
+				inUse = false;
+			} else {
+				deflater.end();
+				inflater.end();
+			}
+		}
+
+		PooledOutputStream deflate(byte[] bytes, int offset, int length)
+		{
+			deflater.setInput(bytes, offset, length);
+			deflater.finish();
+			while(!deflater.finished()) {
+				zipped.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return zipped;
+		}
 
-		return object;
+		PooledOutputStream inflate(byte[] bytes, int offset, int length) throws IOException
+		{
+			inflater.setInput(bytes, offset, length);
+			try {
+				while(!inflater.finished()) {
+					int count = inflater.inflate(chunk);
+					if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Truncated data");
+					}
+					zipped.write(chunk, 0, count);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt data: " + e.getMessage());
+			}
+			return zipped;
+		}
 	}
 }
@@ -0,0 +1,34 @@
+package com.totodon.molitan.gae.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Java serialization, used for everything no other codec takes.
+ */
+public class SerializationCodec implements ObjectCodec {
+
+	public static final byte ID = 0;
+
+	public byte getId() {
+		return ID;
+	}
+
+	public boolean canEncode(Object object) {
+		return object == null || object instanceof Serializable;
+	}
+
+	public void encode(Object object, OutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(object);
+		oos.flush();
+	}
+
+	public Object decode(InputStream in) throws IOException, ClassNotFoundException {
+		return new ObjectInputStream(in).readObject();
+	}
+}
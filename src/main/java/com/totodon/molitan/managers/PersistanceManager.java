@@ -1,10 +1,20 @@
 package com.totodon.molitan.managers;
 
+import com.totodon.molitan.gae.managers.CachingPersistanceService;
 import com.totodon.molitan.gae.managers.GAEPersistanceManager;
 import com.totodon.molitan.services.IPersistanceService;
 
 public class PersistanceManager {
+	private static final CachingPersistanceService cachingService = new CachingPersistanceService(GAEPersistanceManager.getInstance());
+	
 	public static IPersistanceService getPersistanceService() {
-		return GAEPersistanceManager.getInstance();
+		return cachingService;
+	}
+	
+	/**
+	 * @return the service returned by {@link #getPersistanceService()}, to set the cache policies of classes on
+	 */
+	public static CachingPersistanceService getCachingPersistanceService() {
+		return cachingService;
 	}
 }
@@ -0,0 +1,35 @@
+package com.totodon.molitan.managers.exceptions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when some transactions of a batch save failed. Each transaction either stored all of its objects or none, so
+ * the objects listed as failed can simply be saved again.
+ */
+@SuppressWarnings("serial")
+public class BatchSaveException extends PersistanceServiceException {
+	
+	private final List<Object> savedIds;
+	private final List<Object> failedObjects;
+	
+	public BatchSaveException(String message, List<Object> savedIds, List<Object> failedObjects) {
+		super(message);
+		this.savedIds = Collections.unmodifiableList(savedIds);
+		this.failedObjects = Collections.unmodifiableList(failedObjects);
+	}
+	
+	/**
+	 * @return ids of the objects that were stored
+	 */
+	public List<Object> getSavedIds() {
+		return savedIds;
+	}
+	
+	/**
+	 * @return objects that were not stored, in the order they were passed
+	 */
+	public List<Object> getFailedObjects() {
+		return failedObjects;
+	}
+}
@@ -11,6 +11,18 @@ public interface IPersistanceService {
 	Object getObject(Class<?> classType, Object id);
 	
 	Object getObject(Class<?> classType, Object id, boolean useMemCache);
+	
+	List<Object> getObjects(Class<?> classType, List<Object> ids);
+	
+	List<Object> getObjects(Class<?> classType, List<Object> ids, boolean useMemCache);
+	
+	List<Object> getObjects(Class<?> classType, Object[] ids);
+	
+	/**
+	 * @return the objects in the order of the ids, null only for those that do not exist; a lookup that fails throws
+	 *         instead
+	 */
+	List<Object> getObjects(Class<?> classType, Object[] ids, boolean useMemCache);
 
 	Object saveObject(IJDO jdo) throws PersistanceServiceException;
 	